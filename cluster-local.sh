@@ -0,0 +1,29 @@
+#!/bin/bash
+
+# Run a cluster of N nodes (default 3) on this machine from target/classes:
+# node i serves HTTP on 8000+i and talks to its peers on 9000+i. Extra
+# arguments go to every JVM. With CHAT_DATA_ROOT set, node i journals to
+# $CHAT_DATA_ROOT/node<i>. The cluster secret is $CHAT_CLUSTER_SECRET, or a
+# random one for this run. Ctrl-C stops them all.
+nodes=${1:-3}
+secret=${CHAT_CLUSTER_SECRET:-$(od -An -N16 -tx1 /dev/urandom | tr -d ' \n')}
+shift
+list=""
+for i in $(seq 0 $((nodes - 1))); do
+  list="$list${list:+,}127.0.0.1:$((9000 + i))"
+done
+pids=""
+trap 'kill $pids 2>/dev/null' EXIT
+for i in $(seq 0 $((nodes - 1))); do
+  data=""
+  if [ -n "$CHAT_DATA_ROOT" ]; then
+    data="-Dchat.data.dir=$CHAT_DATA_ROOT/node$i"
+  fi
+  java -Dchat.port=$((8000 + i)) -Dchat.cluster.nodes=$list \
+    -Dchat.cluster.self=127.0.0.1:$((9000 + i)) \
+    -Dchat.cluster.secret="$secret" $data "$@" \
+    -cp target/classes SimpleChatServer &
+  pids="$pids $!"
+done
+echo "Cluster of $nodes: http://localhost:8000 to http://localhost:$((8000 + nodes - 1))"
+wait
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Writes {@code -Dbench.messages} (default 10M) messages spread over
+ * {@code -Dbench.rooms} rooms to a scratch journal, then times a cold replay
+ * of the segments into a RoomStore with the default retention, and a replay
+ * of the snapshot that compacts them.
+ *
+ * <pre>mvn -Pbench test-compile exec:java -Dbench.messages=10000000</pre>
+ */
+public class JournalReplayBenchmark {
+  public static void main(String[] args) throws IOException {
+    long messages = Long.getLong("bench.messages", 10_000_000L);
+    int roomCount = Integer.getInteger("bench.rooms", 100);
+    Path dir = Files.createTempDirectory("journal-bench");
+    try {
+      RoomStore rooms = new RoomStore(10_000, 0);
+      ChatJournal journal = ChatJournal.open(
+          dir, 64L << 20, 20, new RoomReplayer(rooms), rooms::writeState);
+      long started = System.nanoTime();
+      String text = "The quick brown fox jumps over the lazy dog";
+      long now = System.currentTimeMillis();
+      for (long i = 0; i < messages; i++) {
+        journal.message("room-" + (i % roomCount), UUID.randomUUID().toString(),
+            i / roomCount + 1, "user" + (i % 1000), text, now);
+      }
+      journal.close();
+      report("Wrote", messages, started);
+
+      RoomStore replayed = new RoomStore(10_000, 0);
+      started = System.nanoTime();
+      journal = ChatJournal.open(dir, 64L << 20, 20,
+          new RoomReplayer(replayed), replayed::writeState);
+      report("Replayed segments", messages, started);
+      System.out.println("  on-disk bytes: " + size(dir));
+
+      journal.snapshot();
+      journal.close();
+      RoomStore compacted = new RoomStore(10_000, 0);
+      started = System.nanoTime();
+      ChatJournal.open(dir, 64L << 20, 20, new RoomReplayer(compacted),
+          compacted::writeState).close();
+      report("Replayed snapshot", messages, started);
+      System.out.println("  on-disk bytes: " + size(dir));
+    } finally {
+      try (Stream<Path> files = Files.list(dir)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(dir);
+    }
+  }
+
+  private static void report(String what, long messages, long startedNanos) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+    System.out.printf("%-18s %,d messages in %,d ms (%,.0f msg/s)%n", what,
+        messages, millis, messages * 1000.0 / Math.max(1, millis));
+  }
+
+  private static long size(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.mapToLong(file -> file.toFile().length()).sum();
+    }
+  }
+
+  /** Same replay rules as the server, without users and sessions. */
+  private static class RoomReplayer implements ChatJournal.Events {
+    private final RoomStore rooms;
+    private long messages;
+
+    RoomReplayer(RoomStore rooms) {
+      this.rooms = rooms;
+    }
+
+    @Override
+    public void user(String username, String salt, String hashedPassword) {}
+
+    @Override
+    public void session(String token, String username, long createdAtMillis,
+        long lastSeenMillis) {}
+
+    @Override
+    public void sessionEnded(String token) {}
+
+    @Override
+    public void room(String roomId, String creator, long createdAtMillis) {
+      rooms.restore(roomId, creator, createdAtMillis);
+    }
+
+    @Override
+    public void message(String roomId, String id, long seq, String sender,
+        String text, long createdAtMillis) {
+      rooms.getOrCreate(roomId).restore(
+          new MessageObject(id, seq, sender, text, roomId, createdAtMillis));
+      if (++messages % 100_000 == 0)
+        rooms.evictExpired();
+    }
+
+    @Override
+    public void deleted(String roomId, String messageId, long seq) {
+      rooms.getOrCreate(roomId).restoreDelete(messageId, seq);
+    }
+
+    @Override
+    public void roomSeq(String roomId, long lastSeq) {
+      rooms.getOrCreate(roomId).restoreSeq(lastSeq);
+    }
+  }
+}
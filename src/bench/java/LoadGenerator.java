@@ -0,0 +1,571 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Soak test: starts the server in this JVM, registers {@code -Dbench.users}
+ * synthetic users spread over {@code -Dbench.rooms} rooms, then has every
+ * user make one request each {@code -Dbench.intervalMs}, picked from
+ * {@code -Dbench.mix} (weights for post, get, rooms and delete). Two
+ * scenarios set the defaults, and any of them can be overridden:
+ * <ul>
+ *   <li>{@code mix} - 200 users in 10 rooms, every 100 ms, mixed traffic;
+ *   <li>{@code poll} - 10,000 users in 50 rooms, each fetching
+ *       {@code /getMessages?since=} every 3 s as script.js did before push,
+ *       with one request in twenty a post.
+ * </ul>
+ * Every {@code -Dbench.reportSeconds} (default 5) it prints throughput,
+ * errors, latency percentiles, heap in use and GC time; after
+ * {@code -Dbench.warmupSeconds} (default 10) and {@code -Dbench.seconds}
+ * (default 60) more it prints the same per request type for the measured
+ * part, and heap after a full GC at its start and end.
+ *
+ * <p>Requests run on {@code -Dbench.threads} (default 64) threads sharing
+ * keep-alive connections. Latency counts from when a request was due, not
+ * when a thread got to it, so a generator or server that falls behind shows
+ * as latency rather than as a quietly lower rate.
+ *
+ * <p>Server settings go in as usual ({@code -Dchat.transport=nio}); the
+ * port defaults to a free one, password hashing to 1,000 iterations, as
+ * registration would otherwise dominate, and rate limits to off, as every
+ * user comes from one address. The server has no stop, so this exits the
+ * JVM when done.
+ *
+ * <pre>mvn -Pbench test-compile exec:java -Dbench.main=LoadGenerator -Dbench.scenario=poll</pre>
+ */
+public class LoadGenerator {
+  private static final String PASSWORD = "load-test-password";
+  private static final Pattern ID = Pattern.compile("\"id\":\"([^\"]+)\"");
+  private static final Pattern CURSOR = Pattern.compile("\"cursor\":(\\d+)");
+  private static final Pattern TOKEN = Pattern.compile("\"token\":\"([^\"]+)\"");
+  private static final int KEPT_IDS = 20;
+
+  enum Op { POST, GET, ROOMS, DELETE }
+
+  private final int port;
+  private final ConcurrentLinkedQueue<Connection> idle =
+      new ConcurrentLinkedQueue<>();
+  private final Map<Op, Stats> stats = new EnumMap<>(Op.class);
+  private final Map<String, LongAdder> errorKinds = new ConcurrentHashMap<>();
+
+  private LoadGenerator(int port) {
+    this.port = port;
+    for (Op op : Op.values()) {
+      stats.put(op, new Stats());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String scenario = System.getProperty("bench.scenario", "mix");
+    boolean poll = "poll".equals(scenario);
+    if (!poll && !"mix".equals(scenario))
+      throw new IllegalArgumentException("Unknown bench.scenario '" + scenario
+          + "', expected mix or poll.");
+    int users = Integer.getInteger("bench.users", poll ? 10_000 : 200);
+    int rooms = Integer.getInteger("bench.rooms", poll ? 50 : 10);
+    long intervalMs = Long.getLong("bench.intervalMs", poll ? 3_000L : 100L);
+    String mixSpec = System.getProperty("bench.mix",
+        poll ? "get=95,post=5" : "post=25,get=50,rooms=15,delete=10");
+    int threads = Integer.getInteger("bench.threads", 64);
+    long warmup = Long.getLong("bench.warmupSeconds", 10L);
+    long seconds = Long.getLong("bench.seconds", 60L);
+    long reportSeconds = Long.getLong("bench.reportSeconds", 5L);
+    Op[] mix = parseMix(mixSpec);
+
+    if (System.getProperty("chat.port") == null) {
+      try (ServerSocket free = new ServerSocket(0)) {
+        System.setProperty("chat.port", String.valueOf(free.getLocalPort()));
+      }
+    }
+    setDefault("chat.auth.pbkdf2Iterations", "1000");
+    setDefault("chat.log.level", "WARN");
+    setDefault("chat.ratelimit.enabled", "false");
+    SimpleChatServer.main(new String[0]);
+    LoadGenerator load = new LoadGenerator(Integer.getInteger("chat.port"));
+
+    System.out.printf("%s: %,d users in %d rooms, one request each %d ms (%s),"
+        + " %d threads%n", scenario, users, rooms, intervalMs, mixSpec, threads);
+    long started = System.nanoTime();
+    List<User> population = load.setUp(users, rooms, threads);
+    System.out.printf("Registered %,d users in %.1f s%n", users,
+        (System.nanoTime() - started) / 1e9);
+
+    load.run(population, mix, intervalMs, threads, warmup, seconds,
+        reportSeconds);
+    System.exit(0);
+  }
+
+  private static void setDefault(String key, String value) {
+    if (System.getProperty(key) == null)
+      System.setProperty(key, value);
+  }
+
+  // "post=25,get=50" as a table of 100 picks in proportion
+  private static Op[] parseMix(String spec) {
+    List<Op> table = new ArrayList<>();
+    for (String part : spec.split(",")) {
+      String[] pair = part.trim().split("=");
+      if (pair.length != 2)
+        throw new IllegalArgumentException("Bad bench.mix entry '" + part + "'");
+      Op op = Op.valueOf(pair[0].trim().toUpperCase());
+      for (int i = Integer.parseInt(pair[1].trim()); i > 0; i--) {
+        table.add(op);
+      }
+    }
+    if (table.isEmpty())
+      throw new IllegalArgumentException("bench.mix has no weight");
+    return table.toArray(new Op[0]);
+  }
+
+  private List<User> setUp(int users, int rooms, int threads)
+      throws Exception {
+    List<User> population = new ArrayList<>(users);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<User>> registered = new ArrayList<>(users);
+      for (int i = 0; i < users; i++) {
+        String name = String.format("load%06d", i);
+        String room = rooms <= 1 ? "general" : "load-" + (i % rooms);
+        registered.add(pool.submit(() -> new User(register(name), room)));
+      }
+      for (Future<User> user : registered) {
+        population.add(user.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+    String token = population.get(0).token;
+    for (int r = 0; rooms > 1 && r < rooms; r++) {
+      Response created = send("POST", "/createRoom", token,
+          "roomName=load-" + r);
+      if (created.status != 201 && created.status != 409)
+        throw new IOException("Could not create room: " + created);
+    }
+    return population;
+  }
+
+  // Retries while the hashing queue is full; logs in if already registered
+  private String register(String name) throws IOException, InterruptedException {
+    String form = "username=" + name + "&password=" + PASSWORD;
+    String path = "/register";
+    while (true) {
+      Response response = send("POST", path, null, form);
+      if (response.status == 503) {
+        Thread.sleep(50);
+      } else if (response.status == 409 && path.equals("/register")) {
+        path = "/login";
+      } else {
+        Matcher token = TOKEN.matcher(response.body);
+        if (response.status / 100 != 2 || !token.find())
+          throw new IOException("Could not register " + name + ": " + response);
+        return token.group(1);
+      }
+    }
+  }
+
+  private void run(List<User> population, Op[] mix, long intervalMs,
+      int threads, long warmup, long seconds, long reportSeconds)
+      throws InterruptedException {
+    ScheduledThreadPoolExecutor scheduler =
+        new ScheduledThreadPoolExecutor(threads);
+    long start = System.nanoTime();
+    long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+    for (User user : population) {
+      // Relative to start, however long scheduling 10,000 users takes
+      user.due = start + ThreadLocalRandom.current().nextLong(intervalNanos);
+      scheduler.scheduleAtFixedRate(() -> tick(user, mix, intervalNanos),
+          user.due - System.nanoTime(), intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    System.out.printf("%6s %9s %7s %8s %8s %9s %8s %6s%n", "time", "req/s",
+        "errors", "p50 ms", "p99 ms", "p99.9 ms", "heap MB", "gc ms");
+    Snapshot previous = snapshot();
+    Snapshot measured = null;
+    long heapBefore = 0;
+    long end = start + TimeUnit.SECONDS.toNanos(warmup + seconds);
+    long next = start;
+    while ((next += TimeUnit.SECONDS.toNanos(reportSeconds)) <= end) {
+      TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+      Snapshot now = snapshot();
+      printInterval((next - start) / 1_000_000_000, now.minus(previous),
+          reportSeconds);
+      previous = now;
+      if (measured == null && next - start >= TimeUnit.SECONDS.toNanos(warmup)) {
+        heapBefore = heapAfterGc();
+        measured = snapshot();
+      }
+    }
+    if (measured == null) {
+      heapBefore = heapAfterGc();
+      measured = snapshot();
+    }
+    Snapshot total = snapshot().minus(measured);
+    scheduler.shutdownNow();
+    scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    long heapAfter = heapAfterGc();
+    printSummary(total, seconds, heapBefore, heapAfter);
+  }
+
+  private void tick(User user, Op[] mix, long intervalNanos) {
+    long due = user.due;
+    user.due += intervalNanos;
+    Op op = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+    if (op == Op.DELETE && user.posted.isEmpty())
+      op = Op.POST;
+    Stats stat = stats.get(op);
+    try {
+      Response response = request(user, op);
+      if (response.status / 100 == 2) {
+        stat.latency.record((System.nanoTime() - due) / 1_000);
+        return;
+      }
+      errorKinds.computeIfAbsent(op + " " + response.status,
+          k -> new LongAdder()).increment();
+    } catch (IOException e) {
+      errorKinds.computeIfAbsent(op + " " + e.getClass().getSimpleName(),
+          k -> new LongAdder()).increment();
+    }
+    stat.errors.increment();
+  }
+
+  private Response request(User user, Op op) throws IOException {
+    switch (op) {
+      case POST: {
+        Response response = send("POST", "/postMessage", user.token,
+            "room=" + user.room + "&message=" + encode(
+                "Load test message " + (++user.sent) + " from " + user.room));
+        Matcher id = ID.matcher(response.body);
+        if (response.status == 200 && id.find()) {
+          if (user.posted.size() == KEPT_IDS)
+            user.posted.pollFirst();
+          user.posted.addLast(id.group(1));
+        }
+        return response;
+      }
+      case GET: {
+        Response response = send("GET", "/getMessages?room=" + user.room
+            + (user.cursor > 0 ? "&since=" + user.cursor : "&limit=50"),
+            user.token, null);
+        Matcher cursor = CURSOR.matcher(response.body);
+        if (response.status == 200 && cursor.find())
+          user.cursor = Long.parseLong(cursor.group(1));
+        return response;
+      }
+      case ROOMS:
+        return send("GET", "/getRooms", user.token, null);
+      case DELETE:
+        return send("DELETE", "/deleteMessage", user.token, "roomId="
+            + user.room + "&messageId=" + user.posted.pollLast());
+      default:
+        throw new AssertionError(op);
+    }
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (java.io.UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private Response send(String method, String target, String token,
+      String form) throws IOException {
+    Connection connection = idle.poll();
+    if (connection == null)
+      connection = new Connection(port);
+    try {
+      Response response = connection.exchange(method, target, token, form);
+      if (response.keepAlive) {
+        idle.add(connection);
+      } else {
+        connection.close();
+      }
+      return response;
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  private Snapshot snapshot() {
+    Snapshot snapshot = new Snapshot();
+    for (Op op : Op.values()) {
+      Stats stat = stats.get(op);
+      snapshot.latency.put(op, stat.latency.snapshot());
+      snapshot.errors.put(op, stat.errors.sum());
+    }
+    long gcMillis = 0;
+    for (GarbageCollectorMXBean gc
+        : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcMillis += Math.max(0, gc.getCollectionTime());
+    }
+    snapshot.gcMillis = gcMillis;
+    return snapshot;
+  }
+
+  private static long heapUsed() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long heapAfterGc() {
+    System.gc();
+    return heapUsed();
+  }
+
+  private static void printInterval(long elapsed, Snapshot delta,
+      long seconds) {
+    long[] all = delta.combined();
+    System.out.printf("%5ds %,9.0f %,7d %8s %8s %9s %,8d %,6d%n", elapsed,
+        count(all) * 1.0 / seconds, delta.errorCount(), millis(all, 0.5),
+        millis(all, 0.99), millis(all, 0.999), heapUsed() >> 20,
+        delta.gcMillis);
+  }
+
+  private void printSummary(Snapshot total, long seconds, long heapBefore,
+      long heapAfter) {
+    System.out.printf("%nOver %d s measured:%n%-7s %10s %9s %7s %8s %8s %9s"
+        + " %8s%n", seconds, "", "requests", "req/s", "errors", "p50 ms",
+        "p99 ms", "p99.9 ms", "max ms");
+    for (Op op : Op.values()) {
+      long[] counts = total.latency.get(op);
+      long errors = total.errors.get(op);
+      if (count(counts) + errors == 0)
+        continue;
+      System.out.printf("%-7s %,10d %,9.0f %,7d %8s %8s %9s %8s%n",
+          op.name().toLowerCase(), count(counts),
+          count(counts) * 1.0 / seconds, errors, millis(counts, 0.5),
+          millis(counts, 0.99), millis(counts, 0.999), millis(counts, 1.0));
+    }
+    for (Map.Entry<String, LongAdder> kind : errorKinds.entrySet()) {
+      System.out.printf("  %s: %,d%n", kind.getKey(), kind.getValue().sum());
+    }
+    System.out.printf("Heap after full GC: %,d MB before, %,d MB after"
+        + " (%+,d MB); GC %,d ms%n", heapBefore >> 20, heapAfter >> 20,
+        (heapAfter - heapBefore) >> 20, total.gcMillis);
+  }
+
+  private static long count(long[] counts) {
+    long count = 0;
+    for (long c : counts) {
+      count += c;
+    }
+    return count;
+  }
+
+  private static String millis(long[] counts, double q) {
+    long micros = Metrics.Histogram.quantile(counts, q);
+    return micros < 0 ? "-" : String.format("%.1f", micros / 1000.0);
+  }
+
+  /** One simulated browser; only ever driven by one tick at a time. */
+  private static final class User {
+    final String token;
+    final String room;
+    final Deque<String> posted = new ArrayDeque<>(); // Newest last
+    long due;
+    long cursor;
+    int sent;
+
+    User(String token, String room) {
+      this.token = token;
+      this.room = room;
+    }
+  }
+
+  private static final class Stats {
+    final Metrics.Histogram latency = new Metrics.Histogram();
+    final LongAdder errors = new LongAdder();
+  }
+
+  private static final class Snapshot {
+    final Map<Op, long[]> latency = new EnumMap<>(Op.class);
+    final Map<Op, Long> errors = new EnumMap<>(Op.class);
+    long gcMillis;
+
+    Snapshot minus(Snapshot earlier) {
+      Snapshot delta = new Snapshot();
+      for (Op op : Op.values()) {
+        long[] now = latency.get(op);
+        long[] then = earlier.latency.get(op);
+        long[] diff = new long[now.length];
+        for (int i = 0; i < diff.length; i++) {
+          diff[i] = now[i] - then[i];
+        }
+        delta.latency.put(op, diff);
+        delta.errors.put(op, errors.get(op) - earlier.errors.get(op));
+      }
+      delta.gcMillis = gcMillis - earlier.gcMillis;
+      return delta;
+    }
+
+    long[] combined() {
+      long[] all = null;
+      for (long[] counts : latency.values()) {
+        if (all == null)
+          all = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+          all[i] += counts[i];
+        }
+      }
+      return all;
+    }
+
+    long errorCount() {
+      long count = 0;
+      for (long e : errors.values()) {
+        count += e;
+      }
+      return count;
+    }
+  }
+
+  private static final class Response {
+    final int status;
+    final String body;
+    final boolean keepAlive;
+
+    Response(int status, String body, boolean keepAlive) {
+      this.status = status;
+      this.body = body;
+      this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public String toString() {
+      return status + " " + body;
+    }
+  }
+
+  /** A keep-alive HTTP/1.1 connection, used by one request at a time. */
+  private static final class Connection {
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream in;
+
+    Connection(int port) throws IOException {
+      socket = new Socket("127.0.0.1", port);
+      socket.setTcpNoDelay(true);
+      out = socket.getOutputStream();
+      in = new BufferedInputStream(socket.getInputStream());
+    }
+
+    Response exchange(String method, String target, String token,
+        String form) throws IOException {
+      StringBuilder head = new StringBuilder(256);
+      head.append(method).append(' ').append(target)
+          .append(" HTTP/1.1\r\nHost: localhost\r\n");
+      if (token != null)
+        head.append("Authorization: Bearer ").append(token).append("\r\n");
+      byte[] body = form == null
+          ? new byte[0] : form.getBytes(StandardCharsets.UTF_8);
+      if (form != null) {
+        head.append("Content-Type: application/x-www-form-urlencoded\r\n")
+            .append("Content-Length: ").append(body.length).append("\r\n");
+      }
+      byte[] headBytes = head.append("\r\n").toString()
+          .getBytes(StandardCharsets.US_ASCII);
+      byte[] request = new byte[headBytes.length + body.length];
+      System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+      System.arraycopy(body, 0, request, headBytes.length, body.length);
+      out.write(request);
+      return readResponse();
+    }
+
+    private Response readResponse() throws IOException {
+      String status = readLine();
+      if (!status.startsWith("HTTP/1.1 ") || status.length() < 12)
+        throw new IOException("Bad status line: " + status);
+      int code = Integer.parseInt(status.substring(9, 12));
+      long length = -1;
+      boolean chunked = false;
+      boolean keepAlive = true;
+      for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+        int colon = line.indexOf(':');
+        if (colon < 0)
+          continue;
+        String name = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Content-Length")) {
+          length = Long.parseLong(value);
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+          chunked = value.equalsIgnoreCase("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+          keepAlive = !value.equalsIgnoreCase("close");
+        }
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      if (chunked) {
+        for (long size; (size = Long.parseLong(readLine().split(";")[0].trim(),
+            16)) > 0; readLine()) {
+          copy(size, body);
+        }
+        while (!readLine().isEmpty()) {
+          // Trailers
+        }
+      } else if (length >= 0) {
+        copy(length, body);
+      } else {
+        throw new IOException("Response without a length");
+      }
+      return new Response(code, body.toString("UTF-8"), keepAlive);
+    }
+
+    private void copy(long length, ByteArrayOutputStream to)
+        throws IOException {
+      byte[] buffer = new byte[8192];
+      while (length > 0) {
+        int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+        if (n < 0)
+          throw new EOFException("Connection closed mid-body");
+        to.write(buffer, 0, n);
+        length -= n;
+      }
+    }
+
+    private String readLine() throws IOException {
+      StringBuilder line = new StringBuilder();
+      for (int b; (b = in.read()) != '\n'; ) {
+        if (b < 0)
+          throw new EOFException("Connection closed mid-response");
+        if (b != '\r')
+          line.append((char) b);
+      }
+      return line.toString();
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // Already broken
+      }
+    }
+  }
+}
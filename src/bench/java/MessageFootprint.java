@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Heap held per message by a room of {@code -Dbench.messages} (default 1M)
+ * short chat lines from {@code -Dbench.senders} users, replayed as the
+ * journal would, so every id, sender and room arrives as a fresh string.
+ * Reports the retained heap after loading, and again after every message has
+ * been served once as JSON. Retention is off so nothing is evicted.
+ *
+ * <pre>mvn -Pbench test-compile exec:java -Dbench.main=MessageFootprint</pre>
+ */
+public class MessageFootprint {
+  private static final String[] LINES = {
+    "hi all", "morning!", "anyone around?", "brb", "lol",
+    "ok that makes sense", "can you share the link again?",
+    "deploy is done, looks good so far", "lunch?", "thanks!",
+    "I'll take a look after the standup", "+1", "same here",
+    "the build is red again", "who broke main", "merged",
+  };
+
+  public static void main(String[] args) throws IOException {
+    int messages = Integer.getInteger("bench.messages", 1_000_000);
+    int senders = Integer.getInteger("bench.senders", 1000);
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    Random random = new Random(42);
+
+    long before = retained(memory);
+    ChatRoom room = new ChatRoom("general");
+    long now = System.currentTimeMillis() - messages;
+    for (int i = 0; i < messages; i++) {
+      room.restore(new MessageObject(UUID.randomUUID().toString(), i + 1,
+          "user" + random.nextInt(senders),
+          LINES[random.nextInt(LINES.length)] + " " + (char) ('a' + i % 26),
+          new String("general"), now + i));
+    }
+    long loaded = retained(memory);
+    room.snapshotJson().writeTo(new OutputStream() {
+      @Override
+      public void write(int b) {}
+
+      @Override
+      public void write(byte[] b, int off, int len) {}
+    });
+    long served = retained(memory);
+
+    System.out.printf("%,d messages, %,d live%n", messages, room.size());
+    report("Loaded", loaded - before, messages);
+    report("After serving", served - before, messages);
+  }
+
+  private static void report(String what, long bytes, int messages) {
+    System.out.printf("%-14s %,8.1f MB  %,6.1f bytes/message%n", what,
+        bytes / 1048576.0, (double) bytes / messages);
+  }
+
+  // Used heap once collections stop finding garbage
+  private static long retained(MemoryMXBean memory) {
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 10; i++) {
+      System.gc();
+      long now = memory.getHeapMemoryUsage().getUsed();
+      if (now >= used - 1024)
+        return now;
+      used = now;
+    }
+    return used;
+  }
+}
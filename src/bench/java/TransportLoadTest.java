@@ -0,0 +1,207 @@
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives the JDK and NIO transports in turn with {@code -Dbench.clients}
+ * (default 32) raw-socket clients for {@code -Dbench.seconds} (default 5) per
+ * phase, after {@code -Dbench.warmupSeconds} (default 2) unmeasured. Both
+ * serve the same small JSON response from the same executor, so only the
+ * transport differs. Two phases each:
+ * <ul>
+ *   <li>keep-alive - each client reuses one connection, giving requests/s;
+ *   <li>connect - a new connection per request, giving connections/s.
+ * </ul>
+ * Latency is from writing the request to reading the last body byte.
+ *
+ * <pre>mvn -Pbench test-compile exec:java -Dbench.main=TransportLoadTest</pre>
+ */
+public class TransportLoadTest {
+  private static final byte[] BODY = ("{\"success\":true,\"messages\":[{\"id\":"
+      + "\"0d5c1a0e-8f0e-4a36-9d41-1c9e1d0f7a11\",\"seq\":1,\"sender\":\"alice\","
+      + "\"text\":\"The quick brown fox jumps over the lazy dog\",\"room\":"
+      + "\"general\"}]}").getBytes(StandardCharsets.UTF_8);
+
+  public static void main(String[] args) throws Exception {
+    int clients = Integer.getInteger("bench.clients", 32);
+    long seconds = Long.getLong("bench.seconds", 5L);
+    long warmup = Long.getLong("bench.warmupSeconds", 2L);
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    HttpHandler handler = exchange -> {
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, BODY.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(BODY);
+      }
+    };
+    System.out.printf("%d clients, %d s per phase%n", clients, seconds);
+    try {
+      for (String transport : new String[] {"jdk", "nio"}) {
+        measure(transport, handler, executor, clients, warmup, seconds);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void measure(String transport, HttpHandler handler,
+      ExecutorService executor, int clients, long warmup, long seconds)
+      throws IOException, InterruptedException {
+    InetSocketAddress any = new InetSocketAddress("127.0.0.1", 0);
+    HttpServer server = "nio".equals(transport)
+        ? NioHttpServer.open(any, 1024)
+        : HttpServer.create(any, 1024);
+    server.createContext("/", handler);
+    server.setExecutor(executor);
+    server.start();
+    int port = server.getAddress().getPort();
+    try {
+      for (boolean keepAlive : new boolean[] {true, false}) {
+        run(port, clients, keepAlive, warmup);
+        Result result = run(port, clients, keepAlive, seconds);
+        System.out.printf("%-4s %-10s %,10.0f %s  p50 %,7d us  p99 %,7d us"
+            + "  errors %d%n", transport, keepAlive ? "keep-alive" : "connect",
+            result.count() * 1.0 / seconds, keepAlive ? "req/s " : "conn/s",
+            result.quantile(0.5), result.quantile(0.99), result.errors.sum());
+      }
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  private static Result run(int port, int clients, boolean keepAlive,
+      long seconds) throws InterruptedException {
+    Result result = new Result();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    List<Thread> threads = new ArrayList<>(clients);
+    for (int i = 0; i < clients; i++) {
+      Thread thread = new Thread(() -> {
+        while (System.nanoTime() < deadline) {
+          try {
+            if (keepAlive) {
+              keepAlive(port, deadline, result);
+            } else {
+              connectOnce(port, result);
+            }
+          } catch (IOException e) {
+            result.errors.increment();
+          }
+        }
+      }, "load-client-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return result;
+  }
+
+  private static void keepAlive(int port, long deadline, Result result)
+      throws IOException {
+    byte[] request = request(true);
+    try (Socket socket = new Socket("127.0.0.1", port)) {
+      socket.setTcpNoDelay(true);
+      OutputStream out = socket.getOutputStream();
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      while (System.nanoTime() < deadline) {
+        long started = System.nanoTime();
+        out.write(request);
+        readResponse(in);
+        result.record(started);
+      }
+    }
+  }
+
+  private static void connectOnce(int port, Result result) throws IOException {
+    long started = System.nanoTime();
+    try (Socket socket = new Socket("127.0.0.1", port)) {
+      socket.setTcpNoDelay(true);
+      // Reset rather than leave thousands of client ports in TIME_WAIT
+      socket.setSoLinger(true, 0);
+      socket.getOutputStream().write(request(false));
+      readResponse(new BufferedInputStream(socket.getInputStream()));
+      result.record(started);
+    }
+  }
+
+  private static byte[] request(boolean keepAlive) {
+    return ("GET /getMessages?room=general HTTP/1.1\r\nHost: localhost\r\n"
+        + (keepAlive ? "" : "Connection: close\r\n") + "\r\n")
+        .getBytes(StandardCharsets.US_ASCII);
+  }
+
+  // Status line and headers, then Content-Length bytes of body
+  private static void readResponse(InputStream in) throws IOException {
+    long length = -1;
+    StringBuilder line = new StringBuilder();
+    boolean first = true;
+    while (true) {
+      int b = in.read();
+      if (b < 0)
+        throw new EOFException("Connection closed mid-response");
+      if (b != '\n') {
+        if (b != '\r')
+          line.append((char) b);
+        continue;
+      }
+      if (line.length() == 0)
+        break;
+      String header = line.toString();
+      if (first && !header.startsWith("HTTP/1.1 200"))
+        throw new IOException("Unexpected status: " + header);
+      first = false;
+      int colon = header.indexOf(':');
+      if (colon > 0
+          && header.substring(0, colon).equalsIgnoreCase("Content-Length"))
+        length = Long.parseLong(header.substring(colon + 1).trim());
+      line.setLength(0);
+    }
+    if (length < 0)
+      throw new IOException("No Content-Length");
+    while (length > 0) {
+      long skipped = in.skip(length);
+      if (skipped <= 0) {
+        if (in.read() < 0)
+          throw new EOFException("Connection closed mid-body");
+        skipped = 1;
+      }
+      length -= skipped;
+    }
+  }
+
+  private static final class Result {
+    final Metrics.Histogram latency = new Metrics.Histogram();
+    final LongAdder errors = new LongAdder();
+
+    void record(long startedNanos) {
+      latency.record((System.nanoTime() - startedNanos) / 1_000);
+    }
+
+    long count() {
+      long count = 0;
+      for (long c : latency.snapshot()) {
+        count += c;
+      }
+      return count;
+    }
+
+    long quantile(double q) {
+      return Metrics.Histogram.quantile(latency.snapshot(), q);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package chat.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Handles on the server's package-private classes. JMH refuses benchmarks in
+ * the default package, where the server lives, and a named package cannot
+ * refer to it, so the benchmarks reach it through these. Every handle is
+ * erased: server types become {@code Object} and primitives stay as they are,
+ * so call sites use {@code invokeExact} with Object-typed arguments. Kept in
+ * static finals they inline like direct calls.
+ */
+final class ChatInternals {
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  private ChatInternals() {}
+
+  static Class<?> type(String name) {
+    try {
+      return Class.forName(name);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("No server class " + name, e);
+    }
+  }
+
+  static MethodHandle method(String owner, String name, Class<?>... params) {
+    try {
+      Method method = type(owner).getDeclaredMethod(name, params);
+      method.setAccessible(true);
+      return erase(LOOKUP.unreflect(method));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("No method " + owner + "." + name, e);
+    }
+  }
+
+  static MethodHandle constructor(String owner, Class<?>... params) {
+    try {
+      Constructor<?> constructor = type(owner).getDeclaredConstructor(params);
+      constructor.setAccessible(true);
+      return erase(LOOKUP.unreflectConstructor(constructor));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("No constructor for " + owner, e);
+    }
+  }
+
+  static MethodHandle getter(String owner, String name) {
+    try {
+      Field field = type(owner).getDeclaredField(name);
+      field.setAccessible(true);
+      return erase(LOOKUP.unreflectGetter(field));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("No field " + owner + "." + name, e);
+    }
+  }
+
+  private static MethodHandle erase(MethodHandle handle) {
+    return handle.asType(handle.type().erase());
+  }
+}
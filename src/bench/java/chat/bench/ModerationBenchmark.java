@@ -0,0 +1,83 @@
+package chat.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Moderating one message, as {@code /postMessage} does, against word lists
+ * from the built-in nine up to a large custom list.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModerationBenchmark {
+  private static final MethodHandle NEW_ENGINE = ChatInternals.constructor(
+      "ModerationEngine", Collection.class, String.class, Path.class);
+  private static final MethodHandle CENSOR =
+      ChatInternals.method("ModerationEngine", "censor", String.class);
+  private static final MethodHandle CONTAINS_FORBIDDEN = ChatInternals.method(
+      "ModerationEngine", "containsForbidden", String.class);
+
+  @Param({"9", "1000", "10000"})
+  int words;
+
+  Object engine;
+  String clean = "Hey everyone, the deploy went out fine and the dashboards "
+      + "look good, see you at the retro tomorrow morning!";
+  String dirty = "Darn it, this stupid build broke again and my job "
+      + "application is due, what the heck is going on with this crap?";
+
+  @Setup
+  public void setUp() throws Throwable {
+    List<String> list = new ArrayList<>(Arrays.asList("darn", "heck",
+        "badword", "crap", "poop", "stupid", "job", "employment",
+        "job application"));
+    Random random = new Random(42);
+    while (list.size() < words) {
+      StringBuilder word = new StringBuilder();
+      int length = 4 + random.nextInt(8);
+      for (int i = 0; i < length; i++) {
+        word.append((char) ('a' + random.nextInt(26)));
+      }
+      list.add(word.toString());
+    }
+    engine = (Object) NEW_ENGINE.invokeExact(
+        (Object) list, (Object) "[censored]", (Object) null);
+  }
+
+  @Benchmark
+  public Object censorClean() throws Throwable {
+    return (Object) CENSOR.invokeExact(engine, (Object) clean);
+  }
+
+  @Benchmark
+  public Object censorDirty() throws Throwable {
+    return (Object) CENSOR.invokeExact(engine, (Object) dirty);
+  }
+
+  /** The check room names go through. */
+  @Benchmark
+  public boolean containsForbidden() throws Throwable {
+    return (boolean) CONTAINS_FORBIDDEN.invokeExact(engine, (Object) clean);
+  }
+}
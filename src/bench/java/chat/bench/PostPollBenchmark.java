@@ -0,0 +1,80 @@
+package chat.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One busy room: a poster appending while three clients poll with their own
+ * cursors, as they do between pushes. Retention runs as in the server, so the
+ * room stays at the default 10,000 messages however long it runs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PostPollBenchmark {
+  private static final MethodHandle NEW_ROOM =
+      ChatInternals.constructor("ChatRoom", String.class);
+  private static final MethodHandle APPEND = ChatInternals.method(
+      "ChatRoom", "append", String.class, String.class);
+  private static final MethodHandle EVICT =
+      ChatInternals.method("ChatRoom", "evict", int.class, long.class);
+  private static final MethodHandle SINCE =
+      ChatInternals.method("ChatRoom", "since", long.class, int.class);
+  private static final MethodHandle CURSOR =
+      ChatInternals.getter("ChatRoom$Page", "cursor");
+
+  @State(Scope.Group)
+  public static class Room {
+    Object room;
+    int posted;
+
+    @Setup
+    public void setUp() throws Throwable {
+      room = (Object) NEW_ROOM.invokeExact((Object) "general");
+      for (int i = 0; i < 1_000; i++) {
+        Object message = (Object) APPEND.invokeExact(
+            room, (Object) "seed", (Object) ("Earlier message " + i));
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Client {
+    long cursor;
+  }
+
+  @Benchmark
+  @Group("postPoll")
+  @GroupThreads(1)
+  public Object post(Room state) throws Throwable {
+    Object message = (Object) APPEND.invokeExact(
+        state.room, (Object) "alice", (Object) "Posted while others poll");
+    if (++state.posted % 1_000 == 0) {
+      int evicted = (int) EVICT.invokeExact(state.room, 10_000, 0L);
+    }
+    return message;
+  }
+
+  @Benchmark
+  @Group("postPoll")
+  @GroupThreads(3)
+  public Object poll(Room state, Client client) throws Throwable {
+    Object page = (Object) SINCE.invokeExact(state.room, client.cursor, 500);
+    client.cursor = (long) CURSOR.invokeExact(page);
+    return page;
+  }
+}
@@ -0,0 +1,130 @@
+package chat.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding request bodies and hashing passwords, on the post and auth paths.
+ * The {@code Legacy} benchmarks keep a copy of the reader and
+ * {@code URLDecoder} parsing that RequestCodec replaced, for comparison;
+ * both start from the body bytes as they come off the wire.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestParsingBenchmark {
+  private static final MethodHandle PARSE = ChatInternals.method(
+      "SimpleChatServer", "parseUrlEncoded", String.class);
+  private static final MethodHandle PARSE_FORM = ChatInternals.method(
+      "RequestCodec", "parseForm", byte[].class, int.class, int.class,
+      BiConsumer.class);
+  private static final MethodHandle PARSE_JSON = ChatInternals.method(
+      "RequestCodec", "parseJson", byte[].class, int.class, int.class,
+      BiConsumer.class);
+  private static final MethodHandle NEW_HASHER =
+      ChatInternals.method("PasswordHasher", "fromConfig");
+  private static final MethodHandle HASH =
+      ChatInternals.method("PasswordHasher", "hash", String.class);
+
+  String postForm = "message=Hello+everyone%2C+how+is+it+going+today%3F+"
+      + "%F0%9F%98%80&room=general";
+  String loginForm = "username=alice&password=correct+horse+battery+staple";
+  String postJson = "{\"room\":\"general\",\"message\":\"Hello everyone, "
+      + "how is it going today? \\ud83d\\ude00\"}";
+  String password = "correct horse battery staple";
+  byte[] postFormBytes;
+  byte[] postJsonBytes;
+  Object hasher;
+
+  @Setup
+  public void setUp() throws Throwable {
+    postFormBytes = postForm.getBytes(StandardCharsets.UTF_8);
+    postJsonBytes = postJson.getBytes(StandardCharsets.UTF_8);
+    hasher = (Object) NEW_HASHER.invokeExact();
+  }
+
+  @Benchmark
+  public Object parsePostForm() throws Throwable {
+    return (Object) PARSE.invokeExact((Object) postForm);
+  }
+
+  @Benchmark
+  public Object parseLoginForm() throws Throwable {
+    return (Object) PARSE.invokeExact((Object) loginForm);
+  }
+
+  /** A post body as the handler gets it from the codec. */
+  @Benchmark
+  public Object parsePostBody() throws Throwable {
+    Map<String, String> fields = new HashMap<>();
+    BiConsumer<String, String> put = fields::put;
+    PARSE_FORM.invokeExact((Object) postFormBytes, 0, postFormBytes.length,
+        (Object) put);
+    return fields;
+  }
+
+  @Benchmark
+  public Object parsePostBodyLegacy() throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new ByteArrayInputStream(postFormBytes), StandardCharsets.UTF_8))) {
+      return legacyParse(reader.readLine());
+    }
+  }
+
+  /** The same post sent as {@code application/json}. */
+  @Benchmark
+  public Object parsePostJson() throws Throwable {
+    Map<String, String> fields = new HashMap<>();
+    BiConsumer<String, String> put = fields::put;
+    PARSE_JSON.invokeExact((Object) postJsonBytes, 0, postJsonBytes.length,
+        (Object) put);
+    return fields;
+  }
+
+  /** One PBKDF2 hash at the configured cost, as register and login pay. */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Object hashPassword() throws Throwable {
+    return (Object) HASH.invokeExact(hasher, (Object) password);
+  }
+
+  private static Map<String, String> legacyParse(String formData)
+      throws IOException {
+    Map<String, String> map = new HashMap<>();
+    if (formData == null || formData.isEmpty())
+      return map;
+    for (String pair : formData.split("&")) {
+      String[] keyValue = pair.split("=", 2);
+      if (keyValue.length == 2) {
+        map.put(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8.name()),
+            URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8.name()));
+      } else if (keyValue.length == 1 && !keyValue[0].isEmpty()) {
+        map.put(
+            URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8.name()), "");
+      }
+    }
+    return map;
+  }
+}
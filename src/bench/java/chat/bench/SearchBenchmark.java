@@ -0,0 +1,91 @@
+package chat.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A page of 50 from /search on a room of 1,000,000 messages, eight words each
+ * drawn from a 10,000-word vocabulary with Zipf-like frequencies, so the
+ * commonest word is in about a tenth of them and the rarest in a few dozen.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+  private static final int MESSAGES = 1_000_000;
+  private static final int VOCABULARY = 10_000;
+  private static final int WORDS_PER_MESSAGE = 8;
+
+  private static final MethodHandle NEW_ROOM =
+      ChatInternals.constructor("ChatRoom", String.class);
+  private static final MethodHandle APPEND = ChatInternals.method(
+      "ChatRoom", "append", String.class, String.class);
+  private static final MethodHandle SEARCH = ChatInternals.method(
+      "ChatRoom", "search", String.class, long.class, int.class);
+
+  private Object room;
+
+  @Setup
+  public void setUp() throws Throwable {
+    double[] cumulative = new double[VOCABULARY];
+    double total = 0;
+    for (int rank = 0; rank < VOCABULARY; rank++) {
+      total += 1.0 / (rank + 1);
+      cumulative[rank] = total;
+    }
+    Random random = new Random(42);
+    room = (Object) NEW_ROOM.invokeExact((Object) "general");
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < MESSAGES; i++) {
+      text.setLength(0);
+      for (int w = 0; w < WORDS_PER_MESSAGE; w++) {
+        int at = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+        text.append(w == 0 ? "" : " ").append(word(at < 0 ? -at - 1 : at));
+      }
+      Object message = (Object) APPEND.invokeExact(
+          room, (Object) "alice", (Object) text.toString());
+    }
+  }
+
+  private static String word(int rank) {
+    return "w" + rank;
+  }
+
+  @Benchmark
+  public Object commonWord() throws Throwable {
+    return (Object) SEARCH.invokeExact(room, (Object) word(0), -1L, 50);
+  }
+
+  @Benchmark
+  public Object rareWord() throws Throwable {
+    return (Object) SEARCH.invokeExact(room, (Object) word(5_000), -1L, 50);
+  }
+
+  @Benchmark
+  public Object twoWords() throws Throwable {
+    return (Object) SEARCH.invokeExact(
+        room, (Object) (word(10) + " " + word(200)), -1L, 50);
+  }
+
+  // Paging to the first half of the room
+  @Benchmark
+  public Object deepPage() throws Throwable {
+    return (Object) SEARCH.invokeExact(
+        room, (Object) word(1), (long) (MESSAGES / 2), 50);
+  }
+}
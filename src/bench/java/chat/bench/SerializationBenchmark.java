@@ -0,0 +1,172 @@
+package chat.bench;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JSON output: escaping a string, encoding one message, and writing whole
+ * {@code /getMessages} responses for rooms of different sizes into a sink
+ * that only counts, so the network is left out. The {@code Legacy}
+ * benchmarks keep the replace-chain escaping that JsonOutput replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+  private static final String ROOM = "general";
+  private static final MethodHandle ESCAPE = ChatInternals.method(
+      "SimpleChatServer", "escapeJsonString", String.class);
+  private static final MethodHandle NEW_OUTPUT =
+      ChatInternals.constructor("JsonOutput", int.class);
+  private static final MethodHandle OUTPUT_STRING =
+      ChatInternals.method("JsonOutput", "string", String.class);
+  private static final MethodHandle OUTPUT_BYTES =
+      ChatInternals.method("JsonOutput", "toByteArray");
+  private static final MethodHandle NEW_ROOM =
+      ChatInternals.constructor("ChatRoom", String.class);
+  private static final MethodHandle APPEND = ChatInternals.method(
+      "ChatRoom", "append", String.class, String.class);
+  private static final MethodHandle LATEST =
+      ChatInternals.method("ChatRoom", "latest", int.class);
+  private static final MethodHandle SINCE =
+      ChatInternals.method("ChatRoom", "since", long.class, int.class);
+  private static final MethodHandle SNAPSHOT_JSON =
+      ChatInternals.method("ChatRoom", "snapshotJson");
+  private static final MethodHandle PAGE_JSON = ChatInternals.method(
+      "ChatRoom$Page", "json", String.class, boolean.class);
+  private static final MethodHandle WRITE_TO = ChatInternals.method(
+      "JsonBody", "writeTo", OutputStream.class);
+  private static final MethodHandle NEW_MESSAGE = ChatInternals.constructor(
+      "MessageObject", String.class, long.class, String.class, String.class,
+      String.class, long.class);
+  private static final MethodHandle JSON_BYTES =
+      ChatInternals.method("MessageObject", "jsonBytes");
+
+  @Param({"100", "10000"})
+  int roomSize;
+
+  Object room;
+  Object message;
+  String plain = "Just a normal sentence without anything to escape in it.";
+  String special = "Line one\nLine \"two\"\twith a back\\slash and ünïcödé";
+  String text = "A message with \"quotes\", a tab\tand ordinary words";
+  OutputStream sink;
+
+  @Setup
+  public void setUp(Blackhole blackhole) throws Throwable {
+    room = (Object) NEW_ROOM.invokeExact((Object) ROOM);
+    for (int i = 0; i < roomSize; i++) {
+      message = (Object) APPEND.invokeExact(
+          room, (Object) ("user" + i % 50), (Object) (text + " #" + i));
+    }
+    sink = new OutputStream() {
+      @Override
+      public void write(int b) {
+        blackhole.consume(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        blackhole.consume(len);
+      }
+    };
+  }
+
+  @Benchmark
+  public Object escapePlain() throws Throwable {
+    return (Object) ESCAPE.invokeExact((Object) plain);
+  }
+
+  @Benchmark
+  public Object escapeSpecial() throws Throwable {
+    return (Object) ESCAPE.invokeExact((Object) special);
+  }
+
+  @Benchmark
+  public Object escapePlainLegacy() {
+    return legacyEscape(plain);
+  }
+
+  @Benchmark
+  public Object escapeSpecialLegacy() {
+    return legacyEscape(special);
+  }
+
+  /** A quoted JSON string as UTF-8, escaped and encoded in one pass. */
+  @Benchmark
+  public Object stringToUtf8() throws Throwable {
+    Object out = (Object) NEW_OUTPUT.invokeExact(special.length() + 16);
+    out = (Object) OUTPUT_STRING.invokeExact(out, (Object) special);
+    return (Object) OUTPUT_BYTES.invokeExact(out);
+  }
+
+  @Benchmark
+  public Object stringToUtf8Legacy() {
+    return ("\"" + legacyEscape(special) + "\"")
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** What toJSON costs the first time, before the bytes are cached. */
+  @Benchmark
+  public Object messageFirstEncode() throws Throwable {
+    Object fresh = (Object) NEW_MESSAGE.invokeExact(
+        (Object) "6f1c2a9e-3b7d-4c55-9a0e-2d8f1b4e7c31", 42L,
+        (Object) "alice", (Object) text, (Object) ROOM, 1767225600000L);
+    return (Object) JSON_BYTES.invokeExact(fresh);
+  }
+
+  @Benchmark
+  public Object messageCachedEncode() throws Throwable {
+    return (Object) JSON_BYTES.invokeExact(message);
+  }
+
+  /** The default page a client asks for when it opens a room. */
+  @Benchmark
+  public void latestPage() throws Throwable {
+    Object page = (Object) LATEST.invokeExact(room, 50);
+    Object body = (Object) PAGE_JSON.invokeExact(page, (Object) ROOM, true);
+    WRITE_TO.invokeExact(body, (Object) sink);
+  }
+
+  /** The largest page a cursor fetch can return. */
+  @Benchmark
+  public void maxPageSince() throws Throwable {
+    Object page = (Object) SINCE.invokeExact(room, 0L, 500);
+    Object body = (Object) PAGE_JSON.invokeExact(page, (Object) ROOM, true);
+    WRITE_TO.invokeExact(body, (Object) sink);
+  }
+
+  /** A legacy request without a cursor, which gets the whole room. */
+  @Benchmark
+  public void wholeRoom() throws Throwable {
+    Object body = (Object) SNAPSHOT_JSON.invokeExact(room);
+    WRITE_TO.invokeExact(body, (Object) sink);
+  }
+
+  private static String legacyEscape(String s) {
+    return s.replace("\\", "\\\\")
+        .replace("\"", "\\\"")
+        .replace("\b", "\\b")
+        .replace("\f", "\\f")
+        .replace("\n", "\\n")
+        .replace("\r", "\\r")
+        .replace("\t", "\\t");
+  }
+}
@@ -0,0 +1,723 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Optional durability for users, sessions, rooms and messages: an
+ * append-only log of binary change records in numbered segment files, plus
+ * periodic snapshots that let older segments be deleted.
+ *
+ * <p>Callers only enqueue. A single writer thread encodes records into a
+ * direct buffer, writes them through a {@link FileChannel}, and fsyncs at
+ * most once per {@code fsyncIntervalMs}, so a burst of posts shares one
+ * fsync. A crash can lose that last interval, never corrupt earlier records.
+ *
+ * <p>On open, the newest snapshot and every later segment are replayed
+ * memory-mapped. Each record is framed as {@code [int length][int crc][type]
+ * [body]}; replay stops at the first torn or corrupt record and truncates
+ * the segment there. Replay targets must tolerate records they have already
+ * applied, since a snapshot can include changes also logged after it.
+ *
+ * <p>The same record encoding carries changes between cluster nodes; see
+ * {@link #encoder} and {@link #decodeAll}.
+ */
+class ChatJournal implements Closeable {
+  private static final Log LOG = Log.named("ChatJournal");
+  private static final byte USER = 1;
+  private static final byte SESSION = 2;
+  private static final byte ROOM = 3;
+  private static final byte MESSAGE = 4;
+  private static final byte DELETE = 5;
+  private static final byte ROOM_SEQ = 6;
+  private static final byte SESSION_END = 7;
+  private static final byte ROOM_CREATED = 8; // Supersedes ROOM
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final int HEADER_BYTES = 8;
+
+  /** One method per record type; used for replay, logging and snapshots. */
+  interface Events {
+    void user(String username, String salt, String hashedPassword);
+
+    void session(String token, String username, long createdAtMillis,
+        long lastSeenMillis);
+
+    void sessionEnded(String token);
+
+    /** {@code creator} may be null and {@code createdAtMillis} 0. */
+    void room(String roomId, String creator, long createdAtMillis);
+
+    void message(String roomId, String id, long seq, String sender,
+        String text, long createdAtMillis);
+
+    void deleted(String roomId, String messageId, long seq);
+
+    /** Only in snapshots: the room's sequence, deletes included. */
+    void roomSeq(String roomId, long lastSeq);
+  }
+
+  /** Writes the complete current state, for a snapshot. */
+  interface StateSource {
+    void writeState(Events out);
+  }
+
+  private interface Entry {
+    void writeTo(ChatJournal journal) throws IOException;
+  }
+
+  private static final Entry CLOSE = journal -> {};
+
+  private final Path dir;
+  private final long segmentBytes;
+  private final long fsyncIntervalNanos;
+  private final StateSource state;
+  private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+  private final Thread writerThread;
+  private ScheduledExecutorService snapshots;
+
+  // Writer thread only
+  private final RecordWriter writer = new RecordWriter(1 << 20);
+  private long segmentIndex;
+  private FileChannel segment;
+  private volatile boolean failed;
+
+  private ChatJournal(Path dir, long segmentBytes, long fsyncIntervalMs,
+      StateSource state, long firstSegment) throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMs);
+    this.state = state;
+    openSegment(firstSegment);
+    this.writerThread = new Thread(this::writeLoop, "journal-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Replays {@code dir} into {@code target} and returns a journal that
+   * appends to a fresh segment after it.
+   */
+  static ChatJournal open(Path dir, long segmentBytes, long fsyncIntervalMs,
+      Events target, StateSource state) throws IOException {
+    Files.createDirectories(dir);
+    long snapshot = newest(list(dir, SNAPSHOT_PREFIX, ".snap"));
+    long records = 0;
+    long started = System.nanoTime();
+    if (snapshot >= 0) {
+      records += replayFile(snapshotPath(dir, snapshot), target, false);
+    }
+    long lastSegment = Math.max(snapshot, 0);
+    for (long index : list(dir, SEGMENT_PREFIX, ".log")) {
+      if (index >= Math.max(snapshot, 0)) {
+        records += replayFile(segmentPath(dir, index), target, true);
+      }
+      lastSegment = Math.max(lastSegment, index);
+    }
+    LOG.info("journal.replayed", "records", records, "dir", dir, "ms",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    return new ChatJournal(
+        dir, segmentBytes, fsyncIntervalMs, state, lastSegment + 1);
+  }
+
+  /** Snapshots every {@code intervalMillis} and deletes covered segments. */
+  void startSnapshots(long intervalMillis) {
+    snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "journal-snapshot");
+      t.setDaemon(true);
+      return t;
+    });
+    snapshots.scheduleWithFixedDelay(() -> {
+      try {
+        snapshot();
+      } catch (IOException | RuntimeException e) {
+        LOG.error("journal.snapshot.failed", "error", e);
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Rolls to a new segment N, then writes the live state as snapshot N. Every
+   * change in segments before N was applied before the roll and so is in the
+   * snapshot, which makes those segments safe to delete.
+   */
+  void snapshot() throws IOException {
+    CompletableFuture<Long> rolled = new CompletableFuture<>();
+    enqueue(journal -> {
+      journal.openSegment(journal.segmentIndex + 1);
+      rolled.complete(journal.segmentIndex);
+    });
+    long index;
+    try {
+      index = rolled.get(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException | TimeoutException e) {
+      throw new IOException("Journal writer did not roll the segment", e);
+    }
+    Path tmp = dir.resolve(SNAPSHOT_PREFIX + index + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      RecordWriter out = new RecordWriter(1 << 20);
+      out.channel = channel;
+      try {
+        state.writeState(out);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      out.flush();
+      channel.force(true);
+    }
+    Files.move(tmp, snapshotPath(dir, index), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    int deleted = 0;
+    for (long old : list(dir, SNAPSHOT_PREFIX, ".snap")) {
+      if (old < index && Files.deleteIfExists(snapshotPath(dir, old)))
+        deleted++;
+    }
+    for (long old : list(dir, SEGMENT_PREFIX, ".log")) {
+      if (old < index && Files.deleteIfExists(segmentPath(dir, old)))
+        deleted++;
+    }
+    LOG.info("journal.snapshot", "index", index, "removedFiles", deleted);
+  }
+
+  // Logging methods mirror Events; they only enqueue for the writer
+  void user(String username, String salt, String hashedPassword) {
+    enqueue(journal -> journal.writer.user(username, salt, hashedPassword));
+  }
+
+  void session(String token, String username, long createdAtMillis,
+      long lastSeenMillis) {
+    enqueue(journal -> journal.writer.session(
+        token, username, createdAtMillis, lastSeenMillis));
+  }
+
+  void sessionEnded(String token) {
+    enqueue(journal -> journal.writer.sessionEnded(token));
+  }
+
+  void room(String roomId, String creator, long createdAtMillis) {
+    enqueue(journal -> journal.writer.room(roomId, creator, createdAtMillis));
+  }
+
+  void message(String roomId, String id, long seq, String sender,
+      String text, long createdAtMillis) {
+    enqueue(journal
+        -> journal.writer.message(roomId, id, seq, sender, text, createdAtMillis));
+  }
+
+  void deleted(String roomId, String messageId, long seq) {
+    enqueue(journal -> journal.writer.deleted(roomId, messageId, seq));
+  }
+
+  void roomSeq(String roomId, long lastSeq) {
+    enqueue(journal -> journal.writer.roomSeq(roomId, lastSeq));
+  }
+
+  /** These logging methods as {@link Events}, to combine with other sinks. */
+  Events events() {
+    return new Events() {
+      @Override
+      public void user(String username, String salt, String hashedPassword) {
+        ChatJournal.this.user(username, salt, hashedPassword);
+      }
+
+      @Override
+      public void session(String token, String username, long createdAtMillis,
+          long lastSeenMillis) {
+        ChatJournal.this.session(
+            token, username, createdAtMillis, lastSeenMillis);
+      }
+
+      @Override
+      public void sessionEnded(String token) {
+        ChatJournal.this.sessionEnded(token);
+      }
+
+      @Override
+      public void room(String roomId, String creator, long createdAtMillis) {
+        ChatJournal.this.room(roomId, creator, createdAtMillis);
+      }
+
+      @Override
+      public void message(String roomId, String id, long seq, String sender,
+          String text, long createdAtMillis) {
+        ChatJournal.this.message(
+            roomId, id, seq, sender, text, createdAtMillis);
+      }
+
+      @Override
+      public void deleted(String roomId, String messageId, long seq) {
+        ChatJournal.this.deleted(roomId, messageId, seq);
+      }
+
+      @Override
+      public void roomSeq(String roomId, long lastSeq) {
+        ChatJournal.this.roomSeq(roomId, lastSeq);
+      }
+    };
+  }
+
+  /** Both sinks in turn; either may be null. */
+  static Events tee(Events first, Events second) {
+    if (first == null || second == null)
+      return first == null ? second : first;
+    return new Events() {
+      @Override
+      public void user(String username, String salt, String hashedPassword) {
+        first.user(username, salt, hashedPassword);
+        second.user(username, salt, hashedPassword);
+      }
+
+      @Override
+      public void session(String token, String username, long createdAtMillis,
+          long lastSeenMillis) {
+        first.session(token, username, createdAtMillis, lastSeenMillis);
+        second.session(token, username, createdAtMillis, lastSeenMillis);
+      }
+
+      @Override
+      public void sessionEnded(String token) {
+        first.sessionEnded(token);
+        second.sessionEnded(token);
+      }
+
+      @Override
+      public void room(String roomId, String creator, long createdAtMillis) {
+        first.room(roomId, creator, createdAtMillis);
+        second.room(roomId, creator, createdAtMillis);
+      }
+
+      @Override
+      public void message(String roomId, String id, long seq, String sender,
+          String text, long createdAtMillis) {
+        first.message(roomId, id, seq, sender, text, createdAtMillis);
+        second.message(roomId, id, seq, sender, text, createdAtMillis);
+      }
+
+      @Override
+      public void deleted(String roomId, String messageId, long seq) {
+        first.deleted(roomId, messageId, seq);
+        second.deleted(roomId, messageId, seq);
+      }
+
+      @Override
+      public void roomSeq(String roomId, long lastSeq) {
+        first.roomSeq(roomId, lastSeq);
+        second.roomSeq(roomId, lastSeq);
+      }
+    };
+  }
+
+  /**
+   * Encodes records framed as in the journal into {@code out}. Each write to
+   * {@code out} holds whole records only: the buffer is passed on when the
+   * next record would not fit, and on {@link RecordWriter#flush}.
+   */
+  static RecordWriter encoder(WritableByteChannel out, int bufferBytes) {
+    RecordWriter writer = new RecordWriter(bufferBytes);
+    writer.channel = out;
+    return writer;
+  }
+
+  /**
+   * Decodes every record in {@code in}, which must hold whole records only,
+   * into {@code target}.
+   */
+  static void decodeAll(ByteBuffer in, Events target) throws IOException {
+    CRC32 crc = new CRC32();
+    while (in.hasRemaining()) {
+      if (in.remaining() < HEADER_BYTES)
+        throw new IOException("Truncated record header");
+      int length = in.getInt();
+      int checksum = in.getInt();
+      if (length <= 0 || length > in.remaining())
+        throw new IOException("Bad record length " + length);
+      ByteBuffer body = in.slice();
+      body.limit(length);
+      crc.reset();
+      crc.update(body.duplicate());
+      if ((int) crc.getValue() != checksum)
+        throw new IOException("Record checksum mismatch");
+      decode(body, target);
+      in.position(in.position() + length);
+    }
+  }
+
+  private void enqueue(Entry entry) {
+    if (!failed)
+      queue.add(entry);
+  }
+
+  /** Writes and fsyncs everything queued so far, then stops the writer. */
+  @Override
+  public void close() {
+    if (snapshots != null)
+      snapshots.shutdownNow();
+    queue.add(CLOSE);
+    try {
+      writerThread.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeLoop() {
+    List<Entry> batch = new ArrayList<>();
+    long lastForce = System.nanoTime();
+    boolean dirty = false;
+    boolean closing = false;
+    try {
+      while (!closing) {
+        Entry first;
+        if (dirty) {
+          long wait = fsyncIntervalNanos - (System.nanoTime() - lastForce);
+          first = queue.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+        } else {
+          first = queue.take();
+        }
+        if (first != null) {
+          batch.add(first);
+          queue.drainTo(batch, 8192);
+          for (Entry entry : batch) {
+            if (entry == CLOSE) {
+              closing = true;
+              continue;
+            }
+            entry.writeTo(this);
+            if (writer.position >= segmentBytes)
+              openSegment(segmentIndex + 1);
+          }
+          batch.clear();
+          writer.flush();
+          dirty = true;
+        }
+        // Group commit: one fsync covers every record since the last one
+        if (dirty && (closing
+                || System.nanoTime() - lastForce >= fsyncIntervalNanos)) {
+          segment.force(false);
+          lastForce = System.nanoTime();
+          dirty = false;
+        }
+      }
+      segment.close();
+    } catch (IOException | RuntimeException e) {
+      failed = true;
+      queue.clear();
+      LOG.error("journal.writer.stopped", "error", e, "impact",
+          "further changes will not be persisted");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void openSegment(long index) throws IOException {
+    if (segment != null) {
+      writer.flush();
+      segment.force(false);
+      segment.close();
+    }
+    segmentIndex = index;
+    segment = FileChannel.open(segmentPath(dir, index),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    writer.channel = segment;
+    writer.position = 0;
+  }
+
+  private static long replayFile(Path file, Events target, boolean truncateTail)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(
+             file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = channel.size();
+      if (size == 0)
+        return 0;
+      MappedByteBuffer mapped =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      long records = 0;
+      int valid = 0;
+      CRC32 crc = new CRC32();
+      while (mapped.remaining() >= HEADER_BYTES) {
+        int length = mapped.getInt();
+        int checksum = mapped.getInt();
+        if (length <= 0 || length > mapped.remaining())
+          break;
+        ByteBuffer body = mapped.slice();
+        body.limit(length);
+        crc.reset();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != checksum)
+          break;
+        decode(body, target);
+        mapped.position(mapped.position() + length);
+        valid = mapped.position();
+        records++;
+      }
+      if (valid < size) {
+        LOG.warn("journal.tornTail", "file", file, "validBytes", valid,
+            "sizeBytes", size, "truncating", truncateTail);
+        if (truncateTail)
+          channel.truncate(valid);
+      }
+      return records;
+    }
+  }
+
+  private static void decode(ByteBuffer in, Events target) {
+    byte type = in.get();
+    switch (type) {
+      case USER:
+        target.user(getString(in), getString(in), getString(in));
+        break;
+      case SESSION:
+        target.session(getString(in), getString(in), in.getLong(), in.getLong());
+        break;
+      case SESSION_END:
+        target.sessionEnded(getString(in));
+        break;
+      case ROOM:
+        target.room(getString(in), null, 0);
+        break;
+      case ROOM_CREATED:
+        String roomId = getString(in);
+        String creator = getString(in);
+        target.room(roomId, creator.isEmpty() ? null : creator, in.getLong());
+        break;
+      case MESSAGE:
+        target.message(getString(in), getString(in), in.getLong(),
+            getString(in), getString(in), in.getLong());
+        break;
+      case DELETE:
+        target.deleted(getString(in), getString(in), in.getLong());
+        break;
+      case ROOM_SEQ:
+        target.roomSeq(getString(in), in.getLong());
+        break;
+      default:
+        throw new IllegalStateException("Unknown journal record type " + type);
+    }
+  }
+
+  private static String getString(ByteBuffer in) {
+    int length = in.getInt();
+    String value;
+    if (in.hasArray()) {
+      value = new String(in.array(), in.arrayOffset() + in.position(), length,
+          StandardCharsets.UTF_8);
+    } else {
+      byte[] bytes = new byte[length];
+      in.duplicate().get(bytes);
+      value = new String(bytes, StandardCharsets.UTF_8);
+    }
+    in.position(in.position() + length);
+    return value;
+  }
+
+  private static List<Long> list(Path dir, String prefix, String suffix)
+      throws IOException {
+    List<Long> indexes = new ArrayList<>();
+    try (DirectoryStream<Path> files =
+             Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          indexes.add(Long.parseLong(name.substring(
+              prefix.length(), name.length() - suffix.length())));
+        } catch (NumberFormatException e) {
+          // Not one of ours
+        }
+      }
+    }
+    Collections.sort(indexes);
+    return indexes;
+  }
+
+  private static long newest(List<Long> indexes) {
+    return indexes.isEmpty() ? -1 : indexes.get(indexes.size() - 1);
+  }
+
+  private static Path segmentPath(Path dir, long index) {
+    return dir.resolve(String.format("%s%012d.log", SEGMENT_PREFIX, index));
+  }
+
+  private static Path snapshotPath(Path dir, long index) {
+    return dir.resolve(String.format("%s%012d.snap", SNAPSHOT_PREFIX, index));
+  }
+
+  /**
+   * Encodes records into a direct buffer that is written out when full or
+   * flushed. Each record is built in a scratch array first so its length and
+   * CRC can lead the frame.
+   */
+  static final class RecordWriter implements Events {
+    private final ByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    private byte[] scratch = new byte[256];
+    private int length;
+    WritableByteChannel channel;
+    long position;
+
+    private RecordWriter(int bufferBytes) {
+      buffer = ByteBuffer.allocateDirect(bufferBytes);
+    }
+
+    @Override
+    public void user(String username, String salt, String hashedPassword) {
+      begin(USER);
+      putString(username);
+      putString(salt);
+      putString(hashedPassword);
+      end();
+    }
+
+    @Override
+    public void session(String token, String username, long createdAtMillis,
+        long lastSeenMillis) {
+      begin(SESSION);
+      putString(token);
+      putString(username);
+      putLong(createdAtMillis);
+      putLong(lastSeenMillis);
+      end();
+    }
+
+    @Override
+    public void sessionEnded(String token) {
+      begin(SESSION_END);
+      putString(token);
+      end();
+    }
+
+    @Override
+    public void room(String roomId, String creator, long createdAtMillis) {
+      begin(ROOM_CREATED);
+      putString(roomId);
+      putString(creator == null ? "" : creator);
+      putLong(createdAtMillis);
+      end();
+    }
+
+    @Override
+    public void message(String roomId, String id, long seq, String sender,
+        String text, long createdAtMillis) {
+      begin(MESSAGE);
+      putString(roomId);
+      putString(id);
+      putLong(seq);
+      putString(sender);
+      putString(text);
+      putLong(createdAtMillis);
+      end();
+    }
+
+    @Override
+    public void deleted(String roomId, String messageId, long seq) {
+      begin(DELETE);
+      putString(roomId);
+      putString(messageId);
+      putLong(seq);
+      end();
+    }
+
+    @Override
+    public void roomSeq(String roomId, long lastSeq) {
+      begin(ROOM_SEQ);
+      putString(roomId);
+      putLong(lastSeq);
+      end();
+    }
+
+    private void begin(byte type) {
+      length = 0;
+      ensure(1);
+      scratch[length++] = type;
+    }
+
+    private void putString(String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      putInt(bytes.length);
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, scratch, length, bytes.length);
+      length += bytes.length;
+    }
+
+    private void putInt(int value) {
+      ensure(4);
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        scratch[length++] = (byte) (value >>> shift);
+      }
+    }
+
+    private void putLong(long value) {
+      ensure(8);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        scratch[length++] = (byte) (value >>> shift);
+      }
+    }
+
+    private void ensure(int extra) {
+      if (length + extra > scratch.length) {
+        scratch = Arrays.copyOf(
+            scratch, Math.max(scratch.length * 2, length + extra));
+      }
+    }
+
+    private void end() {
+      crc.reset();
+      crc.update(scratch, 0, length);
+      try {
+        if (buffer.remaining() < HEADER_BYTES + length)
+          flush();
+        if (buffer.remaining() < HEADER_BYTES + length) {
+          ByteBuffer large = ByteBuffer.allocate(HEADER_BYTES + length);
+          large.putInt(length).putInt((int) crc.getValue());
+          large.put(scratch, 0, length).flip();
+          writeFully(large);
+        } else {
+          buffer.putInt(length).putInt((int) crc.getValue());
+          buffer.put(scratch, 0, length);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      position += HEADER_BYTES + length;
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      writeFully(buffer);
+      buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+      while (source.hasRemaining()) {
+        channel.write(source);
+      }
+    }
+  }
+}
@@ -0,0 +1,594 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Messages of one room plus a bounded feed of deletions. Posts and deletes
+ * draw from the same monotonic sequence, so a single cursor tells a client
+ * exactly which changes it has already seen.
+ *
+ * <p>Messages sit in fixed-size chunks addressed by an ever-growing slot
+ * number. Writers serialize on the room and publish an immutable {@link View}
+ * after each change; readers work from whichever view they load and never
+ * take a lock. Deletes clear the slot found through an id index, and
+ * retention drops whole chunks from the head. A {@link SearchIndex} over the
+ * text is kept in step with every change.
+ */
+class ChatRoom {
+  private static final int CHUNK_SIZE = 256;
+  private static final int MAX_TOMBSTONES = 1000;
+
+  /** Sees every change under the room's write lock, so in seq order. */
+  interface ChangeListener {
+    void appended(MessageObject message);
+
+    void deleted(String roomId, String messageId, long seq);
+  }
+
+  private static final ChangeListener NO_LISTENER = new ChangeListener() {
+    @Override
+    public void appended(MessageObject message) {}
+
+    @Override
+    public void deleted(String roomId, String messageId, long seq) {}
+  };
+
+  final String id;
+  final String creator; // Null for rooms nobody created explicitly
+  final long createdAtMillis; // 0 if not known
+  private final ChangeListener listener;
+  private final Object writeLock = new Object();
+  // Both by slot, which restarts at 0 with each process, so an int is plenty
+  private final MessageIdIndex slotById = new MessageIdIndex(); // writeLock
+  private final SearchIndex index = new SearchIndex();
+  private int tombstoneCount; // writeLock
+  private volatile View view =
+      new View(new Chunk[0], 0, 0, 0, 0, 0, null, 0);
+  private volatile long lastActivityMillis; // Last post or delete
+
+  ChatRoom(String id) {
+    this(id, null, System.currentTimeMillis(), NO_LISTENER);
+  }
+
+  ChatRoom(String id, String creator, long createdAtMillis,
+      ChangeListener listener) {
+    this.id = id;
+    this.creator = creator;
+    this.createdAtMillis = createdAtMillis;
+    this.listener = listener;
+  }
+
+  MessageObject append(String sender, String text) {
+    synchronized (writeLock) {
+      MessageObject message =
+          new MessageObject(view.lastSeq + 1, sender, text, id);
+      appendLocked(message);
+      listener.appended(message);
+      return message;
+    }
+  }
+
+  /**
+   * Appends {@code texts} in order under one acquisition of the lock and
+   * publishes them as a single view, so readers see all of them or none.
+   */
+  List<MessageObject> appendAll(String sender, List<String> texts) {
+    if (texts.isEmpty())
+      return Collections.emptyList();
+    List<MessageObject> added = new ArrayList<>(texts.size());
+    synchronized (writeLock) {
+      View v = view;
+      Chunk[] chunks = v.chunks;
+      long slot = v.endSlot;
+      long seq = v.lastSeq;
+      for (String text : texts) {
+        MessageObject message = new MessageObject(++seq, sender, text, id);
+        chunks = place(chunks, v.chunkBase, slot++, message);
+        added.add(message);
+      }
+      lastActivityMillis = added.get(added.size() - 1).createdAtMillis;
+      view = new View(chunks, v.chunkBase, v.firstSlot, slot, seq,
+          v.liveCount + added.size(), v.tombstones, v.tombstoneHorizon);
+      for (MessageObject message : added) {
+        listener.appended(message);
+      }
+    }
+    return added;
+  }
+
+  /** Re-adds a journaled message unless the room is already past its seq. */
+  boolean restore(MessageObject message) {
+    synchronized (writeLock) {
+      if (message.seq <= view.lastSeq)
+        return false;
+      appendLocked(message);
+      return true;
+    }
+  }
+
+  private void appendLocked(MessageObject message) {
+    View v = view;
+    long slot = v.endSlot;
+    Chunk[] chunks = place(v.chunks, v.chunkBase, slot, message);
+    lastActivityMillis = message.createdAtMillis;
+    view = new View(chunks, v.chunkBase, v.firstSlot, slot + 1, message.seq,
+        v.liveCount + 1, v.tombstones, v.tombstoneHorizon);
+  }
+
+  /**
+   * Stores {@code message} at {@code slot} past the current view's end, and
+   * returns the chunk array, grown if needed. Nothing is visible to readers
+   * until the caller publishes a view that covers the slot.
+   */
+  private Chunk[] place(Chunk[] chunks, long chunkBase, long slot,
+      MessageObject message) {
+    if (slot >= chunkBase + (long) chunks.length * CHUNK_SIZE) {
+      chunks = Arrays.copyOf(chunks, chunks.length + 1);
+      chunks[chunks.length - 1] = new Chunk();
+    }
+    Chunk chunk = chunks[(int) ((slot - chunkBase) / CHUNK_SIZE)];
+    int offset = (int) (slot % CHUNK_SIZE);
+    chunk.seqs[offset] = message.seq;
+    chunk.messages.lazySet(offset, message); // Published by the view write
+    slotById.put(message, (int) slot);
+    index.add((int) slot, message.text);
+    return chunks;
+  }
+
+  boolean delete(String messageId, String sender) {
+    synchronized (writeLock) {
+      long seq = view.lastSeq + 1;
+      if (!deleteLocked(messageId, sender, seq))
+        return false;
+      lastActivityMillis = System.currentTimeMillis();
+      listener.deleted(id, messageId, seq);
+      return true;
+    }
+  }
+
+  /** Replays a journaled delete unless the room is already past its seq. */
+  void restoreDelete(String messageId, long seq) {
+    synchronized (writeLock) {
+      if (seq > view.lastSeq && !deleteLocked(messageId, null, seq)) {
+        // Evicted already, but clients may still hold it
+        pushTombstone(view, messageId, seq, 0);
+      }
+    }
+  }
+
+  /**
+   * Advances the sequence to a snapshot's {@code seq}. Cursors from before
+   * the snapshot cannot be trusted to have seen every delete, so they reset.
+   */
+  void restoreSeq(long seq) {
+    synchronized (writeLock) {
+      View v = view;
+      if (seq <= v.lastSeq)
+        return;
+      view = new View(v.chunks, v.chunkBase, v.firstSlot, v.endSlot, seq,
+          v.liveCount, v.tombstones, Math.max(v.tombstoneHorizon, seq));
+    }
+  }
+
+  /** Writes the room from a single view, for journal snapshots. */
+  void writeState(ChatJournal.Events out) {
+    View v = view;
+    out.room(id, creator, createdAtMillis);
+    for (long slot = v.firstSlot; slot < v.endSlot; slot++) {
+      MessageObject msg = v.at(slot);
+      if (msg != null) {
+        out.message(id, msg.getId(), msg.seq, msg.getSender(), msg.text,
+            msg.createdAtMillis);
+      }
+    }
+    out.roomSeq(id, v.lastSeq);
+  }
+
+  /**
+   * Like {@link #writeState}, plus the deletes still in the tombstone feed,
+   * all in seq order. A cluster peer that missed some of these changes
+   * applies exactly the ones after its own seq.
+   */
+  void writeChanges(ChatJournal.Events out) {
+    View v = view;
+    out.room(id, creator, createdAtMillis);
+    List<Tombstone> deletes = new ArrayList<>();
+    for (Tombstone t = v.tombstones; t != null; t = t.next) {
+      deletes.add(t);
+    }
+    int next = deletes.size() - 1; // Oldest delete
+    for (long slot = v.firstSlot; slot < v.endSlot; slot++) {
+      MessageObject msg = v.at(slot);
+      if (msg == null)
+        continue;
+      for (; next >= 0 && deletes.get(next).seq < msg.seq; next--) {
+        out.deleted(id, deletes.get(next).messageId, deletes.get(next).seq);
+      }
+      out.message(id, msg.getId(), msg.seq, msg.getSender(), msg.text,
+          msg.createdAtMillis);
+    }
+    for (; next >= 0; next--) {
+      out.deleted(id, deletes.get(next).messageId, deletes.get(next).seq);
+    }
+    out.roomSeq(id, v.lastSeq);
+  }
+
+  // A null sender skips the ownership check, for replay
+  private boolean deleteLocked(String messageId, String sender, long seq) {
+    int slot = slotById.get(messageId);
+    if (slot < 0)
+      return false;
+    View v = view;
+    Chunk chunk = v.chunk(slot);
+    int offset = slot % CHUNK_SIZE;
+    MessageObject msg = chunk.messages.get(offset);
+    if (msg == null || (sender != null && !msg.getSender().equals(sender)))
+      return false;
+    chunk.messages.set(offset, null);
+    slotById.remove(msg);
+    index.remove(slot, msg.text);
+    pushTombstone(v, messageId, seq, 1);
+    return true;
+  }
+
+  private void pushTombstone(View v, String messageId, long seq, int removed) {
+    Tombstone tombstones = new Tombstone(seq, messageId, v.tombstones);
+    long horizon = v.tombstoneHorizon;
+    if (++tombstoneCount > 2 * MAX_TOMBSTONES) {
+      // Trim in bulk so each delete stays constant time on average
+      Tombstone oldestKept = tombstones;
+      for (int i = 1; i < MAX_TOMBSTONES; i++) {
+        oldestKept = oldestKept.next;
+      }
+      horizon = oldestKept.next.seq;
+      tombstones = copyNewest(tombstones, MAX_TOMBSTONES);
+      tombstoneCount = MAX_TOMBSTONES;
+    }
+    view = new View(v.chunks, v.chunkBase, v.firstSlot, v.endSlot, seq,
+        v.liveCount - removed, tombstones, horizon);
+  }
+
+  /**
+   * Drops messages from the head until at most {@code maxMessages} remain and
+   * none is older than {@code cutoffMillis}; either bound is off when
+   * non-positive. Evicted messages are not deletes and get no tombstone.
+   */
+  int evict(int maxMessages, long cutoffMillis) {
+    synchronized (writeLock) {
+      View v = view;
+      long first = v.firstSlot;
+      int live = v.liveCount;
+      while (first < v.endSlot) {
+        Chunk chunk = v.chunk(first);
+        int offset = (int) (first % CHUNK_SIZE);
+        MessageObject msg = chunk.messages.get(offset);
+        if (msg != null) {
+          boolean overCount = maxMessages > 0 && live > maxMessages;
+          boolean expired = cutoffMillis > 0 && msg.createdAtMillis < cutoffMillis;
+          if (!overCount && !expired)
+            break;
+          chunk.messages.set(offset, null);
+          slotById.remove(msg);
+          live--;
+        }
+        first++;
+      }
+      int evicted = v.liveCount - live;
+      if (first == v.firstSlot)
+        return 0;
+      int dropped = (int) ((first - v.chunkBase) / CHUNK_SIZE);
+      Chunk[] chunks = dropped == 0
+          ? v.chunks
+          : Arrays.copyOfRange(v.chunks, dropped, v.chunks.length);
+      view = new View(chunks, v.chunkBase + (long) dropped * CHUNK_SIZE, first,
+          v.endSlot, v.lastSeq, live, v.tombstones, v.tombstoneHorizon);
+      index.dropBefore((int) first);
+      return evicted;
+    }
+  }
+
+  int size() {
+    return view.liveCount;
+  }
+
+  long lastSeq() {
+    return view.lastSeq;
+  }
+
+  /** Distinct words in the search index. */
+  int searchTerms() {
+    return index.terms();
+  }
+
+  /** When a message was last posted or deleted here; 0 if never. */
+  long lastActivityMillis() {
+    return lastActivityMillis;
+  }
+
+  /**
+   * Every message as a bare JSON array, streamed from a single view. Rooms
+   * can be large, so the length is not worked out up front and the body
+   * goes out chunked.
+   */
+  JsonBody snapshotJson() {
+    View v = view;
+    return new JsonBody() {
+      @Override
+      public long length() {
+        return -1;
+      }
+
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (long slot = v.firstSlot; slot < v.endSlot; slot++) {
+          MessageObject msg = v.at(slot);
+          if (msg == null)
+            continue;
+          if (!first)
+            out.write(',');
+          out.write(msg.jsonBytes());
+          first = false;
+        }
+        out.write(']');
+      }
+    };
+  }
+
+  /** Newest {@code limit} messages with a cursor for follow-up polls. */
+  Page latest(int limit) {
+    return latest(view, limit);
+  }
+
+  /** Changes after {@code cursor}, or a fresh latest page if it is stale. */
+  Page since(long cursor, int limit) {
+    View v = view;
+    if (cursor < v.tombstoneHorizon || cursor > v.lastSeq) {
+      return latest(v, limit);
+    }
+    List<MessageObject> page = new ArrayList<>();
+    long slot = firstSlotAfter(v, cursor);
+    for (; slot < v.endSlot && page.size() < limit; slot++) {
+      MessageObject msg = v.at(slot);
+      if (msg != null)
+        page.add(msg);
+    }
+    boolean truncated = slot < v.endSlot;
+    long newCursor = truncated ? page.get(page.size() - 1).seq : v.lastSeq;
+    List<String> deleted = new ArrayList<>();
+    for (Tombstone t = v.tombstones; t != null && t.seq > cursor; t = t.next) {
+      if (t.seq <= newCursor)
+        deleted.add(t.messageId);
+    }
+    return new Page(page, deleted, newCursor, truncated, false);
+  }
+
+  /** Up to {@code limit} messages older than {@code cursor}, oldest first. */
+  Page before(long cursor, int limit) {
+    View v = view;
+    List<MessageObject> page = new ArrayList<>();
+    long slot = firstSlotAfter(v, cursor - 1) - 1;
+    for (; slot >= v.firstSlot && page.size() < limit; slot--) {
+      MessageObject msg = v.at(slot);
+      if (msg != null)
+        page.add(msg);
+    }
+    Collections.reverse(page);
+    return new Page(page, Collections.emptyList(), v.lastSeq,
+        slot >= v.firstSlot, false);
+  }
+
+  /**
+   * Up to {@code limit} messages holding every word of {@code query}, newest
+   * first, from those before seq {@code before} (all when not positive). The
+   * page's cursor is the seq to pass as {@code before} for the next page.
+   */
+  Page search(String query, long before, int limit) {
+    View v = view;
+    long end = before > 0 ? firstSlotAfter(v, before - 1) : v.endSlot;
+    List<MessageObject> page = new ArrayList<>(Math.min(limit, 64));
+    boolean[] hasMore = new boolean[1];
+    // The index may be ahead of or behind v; v has the final say on each slot
+    index.search(SearchIndex.tokenize(query), (int) end, slot -> {
+      if (slot < v.firstSlot)
+        return false;
+      MessageObject msg = v.at(slot);
+      if (msg == null)
+        return true;
+      if (page.size() == limit) {
+        hasMore[0] = true;
+        return false;
+      }
+      page.add(msg);
+      return true;
+    });
+    long cursor = page.isEmpty() ? 0 : page.get(page.size() - 1).seq;
+    return new Page(page, Collections.emptyList(), cursor, hasMore[0], false);
+  }
+
+  private static Page latest(View v, int limit) {
+    List<MessageObject> page = new ArrayList<>(Math.min(limit, v.liveCount));
+    long slot = v.endSlot - 1;
+    for (; slot >= v.firstSlot && page.size() < limit; slot--) {
+      MessageObject msg = v.at(slot);
+      if (msg != null)
+        page.add(msg);
+    }
+    Collections.reverse(page);
+    return new Page(page, Collections.emptyList(), v.lastSeq,
+        slot >= v.firstSlot, true);
+  }
+
+  // Slot seqs only grow, deleted slots included, so this is a binary search
+  private static long firstSlotAfter(View v, long cursor) {
+    long lo = v.firstSlot;
+    long hi = v.endSlot;
+    while (lo < hi) {
+      long mid = (lo + hi) >>> 1;
+      if (v.chunk(mid).seqs[(int) (mid % CHUNK_SIZE)] <= cursor)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  // Copies the newest entries; older views keep walking their own list
+  private static Tombstone copyNewest(Tombstone head, int count) {
+    if (count == 0 || head == null)
+      return null;
+    return new Tombstone(
+        head.seq, head.messageId, copyNewest(head.next, count - 1));
+  }
+
+  private static final class Chunk {
+    final long[] seqs = new long[CHUNK_SIZE];
+    final AtomicReferenceArray<MessageObject> messages =
+        new AtomicReferenceArray<>(CHUNK_SIZE);
+  }
+
+  /** Immutable state of the room at one point in its sequence. */
+  private static final class View {
+    final Chunk[] chunks;
+    final long chunkBase; // Slot held by chunks[0] at offset 0
+    final long firstSlot;
+    final long endSlot;
+    final long lastSeq;
+    final int liveCount;
+    final Tombstone tombstones; // Newest first
+    // Cursors below this may have missed deletes whose tombstones were dropped
+    final long tombstoneHorizon;
+
+    View(Chunk[] chunks, long chunkBase, long firstSlot, long endSlot,
+        long lastSeq, int liveCount, Tombstone tombstones,
+        long tombstoneHorizon) {
+      this.chunks = chunks;
+      this.chunkBase = chunkBase;
+      this.firstSlot = firstSlot;
+      this.endSlot = endSlot;
+      this.lastSeq = lastSeq;
+      this.liveCount = liveCount;
+      this.tombstones = tombstones;
+      this.tombstoneHorizon = tombstoneHorizon;
+    }
+
+    Chunk chunk(long slot) {
+      return chunks[(int) ((slot - chunkBase) / CHUNK_SIZE)];
+    }
+
+    MessageObject at(long slot) {
+      return chunk(slot).messages.get((int) (slot % CHUNK_SIZE));
+    }
+  }
+
+  private static final class Tombstone {
+    final long seq;
+    final String messageId;
+    final Tombstone next;
+
+    Tombstone(long seq, String messageId, Tombstone next) {
+      this.seq = seq;
+      this.messageId = messageId;
+      this.next = next;
+    }
+  }
+
+  static class Page {
+    final List<MessageObject> messages;
+    final List<String> deletedIds;
+    final long cursor;
+    final boolean hasMore;
+    final boolean reset;
+    private volatile byte[] cursorJson; // Shared by every subscriber it reaches
+
+    Page(List<MessageObject> messages, List<String> deletedIds, long cursor,
+        boolean hasMore, boolean reset) {
+      this.messages = messages;
+      this.deletedIds = deletedIds;
+      this.cursor = cursor;
+      this.hasMore = hasMore;
+      this.reset = reset;
+    }
+
+    boolean hasChanges() {
+      return reset || !messages.isEmpty() || !deletedIds.isEmpty();
+    }
+
+    /**
+     * The page with its cursor, encoded once and cached for push delivery,
+     * where many subscribers are usually sent the same page.
+     */
+    byte[] cursorJson(String roomId) {
+      byte[] bytes = cursorJson;
+      if (bytes == null) {
+        JsonBody body = json(roomId, true);
+        ByteArrayOutputStream buffer =
+            new ByteArrayOutputStream((int) body.length());
+        try {
+          body.writeTo(buffer);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e); // Not thrown by a byte array
+        }
+        cursorJson = bytes = buffer.toByteArray();
+      }
+      return bytes;
+    }
+
+    /** The page as JSON, written from each message's cached bytes. */
+    JsonBody json(String roomId, boolean includeCursor) {
+      StringBuilder sb = new StringBuilder(96);
+      sb.append("{\"room\":\"")
+          .append(SimpleChatServer.escapeJsonString(roomId))
+          .append('"');
+      if (includeCursor) {
+        sb.append(",\"cursor\":").append(cursor);
+        sb.append(",\"reset\":").append(reset);
+      }
+      sb.append(",\"hasMore\":").append(hasMore);
+      sb.append(",\"messages\":[");
+      byte[] head = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+      sb.setLength(0);
+      sb.append("],\"deleted\":[");
+      for (int i = 0; i < deletedIds.size(); i++) {
+        if (i > 0)
+          sb.append(',');
+        sb.append('"')
+            .append(SimpleChatServer.escapeJsonString(deletedIds.get(i)))
+            .append('"');
+      }
+      byte[] tail = sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+
+      long length = head.length + tail.length + Math.max(0, messages.size() - 1);
+      for (MessageObject msg : messages) {
+        length += msg.jsonBytes().length;
+      }
+      long total = length;
+      return new JsonBody() {
+        @Override
+        public long length() {
+          return total;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+          out.write(head);
+          for (int i = 0; i < messages.size(); i++) {
+            if (i > 0)
+              out.write(',');
+            out.write(messages.get(i).jsonBytes());
+          }
+          out.write(tail);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,969 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Several servers sharing chat state, enabled by {@code chat.cluster.nodes}
+ * (every node's cluster address, the same list on each) and
+ * {@code chat.cluster.self} (this node's entry in it).
+ *
+ * <p>Each room has one owner, picked by consistent hashing of its id onto a
+ * ring of {@value #POINTS_PER_NODE} points per node. Only the owner assigns
+ * the room's seqs, so posts, deletes and room creation for a room owned
+ * elsewhere are forwarded to the owner. Every node holds a replica of every
+ * room, kept current by the owners, and serves reads and push from it.
+ * Users and sessions are replicated from whichever node made them.
+ *
+ * <p>Each node dials every other over TCP. The two prove to each other that
+ * they hold {@code chat.cluster.secret} with an HMAC over fresh nonces, so
+ * the secret never crosses the wire, and the dialler then sends the changes
+ * it makes as journal records ({@link ChatJournal#encoder}): first its whole
+ * state, so a restarted peer catches up, then each change as it happens.
+ * Records queue per peer and a link thread writes whatever has queued as
+ * one frame, so a burst costs one write, and nothing waits for an ack.
+ * Forwarded writes are pipelined on the same link with request ids. A peer
+ * that falls {@code chat.cluster.maxBacklog} records behind is disconnected
+ * and resynced from scratch when it comes back.
+ *
+ * <p>The link is authenticated but not encrypted, so it belongs on a private
+ * network or inside a TLS tunnel: records carry password hashes and session
+ * tokens. The cluster port listens only on the host named in
+ * {@code chat.cluster.self}, and takes at most two connections per node.
+ *
+ * <p>There is no failover: while a room's owner is down, the room can be
+ * read but not written.
+ */
+final class Cluster implements ChatJournal.Events {
+  private static final Log LOG = Log.named("Cluster");
+  private static final int POINTS_PER_NODE = 128;
+  private static final long RETRY_MILLIS = 1000;
+  private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+  private static final int NONCE_BYTES = 32;
+  private static final int BUFFER_BYTES = 64 * 1024;
+  private static final int MAX_FRAME_BYTES = 64 << 20;
+  // Before the peer's proof is checked; a node name and a nonce fit easily
+  private static final int MAX_HANDSHAKE_FRAME_BYTES = 512;
+
+  // Frame kinds: [kind][int length][payload]. The handshake is HELLO from
+  // the dialler (its name and nonce), CHALLENGE back (a nonce and the
+  // acceptor's proof), then PROOF from the dialler.
+  private static final byte HELLO = 1;
+  private static final byte RECORDS = 2;
+  private static final byte REQUEST = 3;
+  private static final byte REPLY = 4;
+  private static final byte CHALLENGE = 5;
+  private static final byte PROOF = 6;
+
+  // Forwarded writes, and whether they worked
+  private static final byte APPEND = 1;
+  private static final byte DELETE = 2;
+  private static final byte CREATE_ROOM = 3;
+  private static final byte OK = 0;
+  private static final byte FAILED = 1;
+
+  /** Where one peer's replicated changes go; applied() follows each frame. */
+  interface Replica extends ChatJournal.Events {
+    void applied();
+  }
+
+  /** This node as the cluster sees it. */
+  interface Local {
+    /** Users, sessions and the rooms {@code cluster} says are ours. */
+    void writeState(ChatJournal.Events out, Cluster cluster);
+
+    /** A fresh target for one peer's changes. */
+    Replica replica();
+
+    /** Appends already moderated texts to a room owned here. */
+    List<MessageObject> append(String roomId, String sender,
+        List<String> texts);
+
+    /** The delete's seq, or -1 if there was no such message of sender's. */
+    long delete(String roomId, String messageId, String sender);
+
+    boolean createRoom(String roomId, String creator);
+
+    /** The local replica's last seq, or -1 if it has no such room. */
+    long lastSeq(String roomId);
+  }
+
+  final String self;
+  private final List<String> nodes;
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+  private final Map<String, Link> links = new LinkedHashMap<>();
+  private final Local local;
+  private final byte[] secret;
+  private final long timeoutMillis;
+  private final int maxBacklog;
+  private final Object appliedLock = new Object();
+  private final Semaphore inbound;
+  private final SecureRandom random = new SecureRandom();
+  private final AtomicLong requestIds = new AtomicLong();
+  private final LongAdder forwarded = new LongAdder();
+  private final LongAdder recordsApplied = new LongAdder();
+  private final Set<Socket> inboundSockets = ConcurrentHashMap.newKeySet();
+  private ServerSocket server;
+  private volatile boolean closed;
+
+  private Cluster(String self, List<String> nodes, Local local, String secret,
+      long timeoutMillis, int maxBacklog) {
+    if (!nodes.contains(self))
+      throw new IllegalArgumentException("chat.cluster.self '" + self
+          + "' is not one of chat.cluster.nodes " + nodes);
+    if (secret.isEmpty())
+      throw new IllegalArgumentException(
+          "chat.cluster.secret must be set to run as a cluster");
+    this.self = self;
+    this.nodes = nodes;
+    this.local = local;
+    this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    this.timeoutMillis = timeoutMillis;
+    this.maxBacklog = maxBacklog;
+    // Each peer's link, and a reconnect overlapping the one it replaces
+    this.inbound = new Semaphore(2 * nodes.size());
+    for (String node : nodes) {
+      for (int i = 0; i < POINTS_PER_NODE; i++) {
+        ring.put(hash(node + "#" + i), node);
+      }
+      if (!node.equals(self))
+        links.put(node, new Link(node));
+    }
+  }
+
+  /** The cluster from {@code chat.cluster.*}, or null when not clustered. */
+  static Cluster fromConfig(Local local) {
+    String nodes = ServerConfig.get("chat.cluster.nodes", null);
+    if (nodes == null)
+      return null;
+    List<String> list = new ArrayList<>();
+    for (String node : nodes.split(",")) {
+      if (!node.trim().isEmpty())
+        list.add(node.trim());
+    }
+    return new Cluster(ServerConfig.get("chat.cluster.self", ""), list, local,
+        ServerConfig.get("chat.cluster.secret", ""),
+        ServerConfig.getLong("chat.cluster.requestTimeoutMs", 5000),
+        ServerConfig.getInt("chat.cluster.maxBacklog", 100_000));
+  }
+
+  /** Listens for peers and starts dialling them. */
+  void start() throws IOException {
+    server = new ServerSocket();
+    server.setReuseAddress(true);
+    server.bind(new InetSocketAddress(host(self), port(self)));
+    Thread acceptor = new Thread(this::acceptLoop, "cluster-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    for (Link link : links.values()) {
+      link.start();
+    }
+    LOG.info("cluster.started", "self", self, "nodes", nodes.size());
+  }
+
+  /** Stops listening and drops every link; forwarded writes then fail. */
+  void close() {
+    closed = true;
+    if (server != null) {
+      try {
+        server.close();
+      } catch (IOException e) {
+        LOG.debug("cluster.closeFailed", "error", e.getMessage());
+      }
+    }
+    for (Socket socket : inboundSockets) {
+      closeQuietly(socket);
+    }
+    for (Link link : links.values()) {
+      link.close();
+    }
+  }
+
+  /** The node that orders writes to {@code roomId}. */
+  String ownerOf(String roomId) {
+    Map.Entry<Long, String> point = ring.ceilingEntry(hash(roomId));
+    return (point != null ? point : ring.firstEntry()).getValue();
+  }
+
+  boolean owns(String roomId) {
+    return ownerOf(roomId).equals(self);
+  }
+
+  /** Whether a write to {@code roomId} can go to its owner right now. */
+  boolean canWrite(String roomId) {
+    Link link = links.get(ownerOf(roomId));
+    return link == null || link.connected; // No link: the owner is us
+  }
+
+  int connectedPeers() {
+    int connected = 0;
+    for (Link link : links.values()) {
+      if (link.connected)
+        connected++;
+    }
+    return connected;
+  }
+
+  /** Changes queued for peers and not yet written. */
+  long backlog() {
+    long backlog = 0;
+    for (Link link : links.values()) {
+      backlog += link.queue.size();
+    }
+    return backlog;
+  }
+
+  long forwarded() {
+    return forwarded.sum();
+  }
+
+  long recordsApplied() {
+    return recordsApplied.sum();
+  }
+
+  // Outgoing changes: this node's own, queued for every connected peer
+
+  @Override
+  public void user(String username, String salt, String hashedPassword) {
+    broadcast(out -> out.user(username, salt, hashedPassword));
+  }
+
+  @Override
+  public void session(String token, String username, long createdAtMillis,
+      long lastSeenMillis) {
+    broadcast(out -> out.session(
+        token, username, createdAtMillis, lastSeenMillis));
+  }
+
+  @Override
+  public void sessionEnded(String token) {
+    broadcast(out -> out.sessionEnded(token));
+  }
+
+  @Override
+  public void room(String roomId, String creator, long createdAtMillis) {
+    broadcast(out -> out.room(roomId, creator, createdAtMillis));
+  }
+
+  @Override
+  public void message(String roomId, String id, long seq, String sender,
+      String text, long createdAtMillis) {
+    broadcast(out -> out.message(
+        roomId, id, seq, sender, text, createdAtMillis));
+  }
+
+  @Override
+  public void deleted(String roomId, String messageId, long seq) {
+    broadcast(out -> out.deleted(roomId, messageId, seq));
+  }
+
+  @Override
+  public void roomSeq(String roomId, long lastSeq) {
+    broadcast(out -> out.roomSeq(roomId, lastSeq));
+  }
+
+  private void broadcast(Consumer<ChatJournal.Events> change) {
+    for (Link link : links.values()) {
+      link.enqueue(l -> change.accept(l.records));
+    }
+  }
+
+  // Forwarded writes. Each returns once this node's replica shows the
+  // change, so the client can read its own write from here at once.
+
+  /** Appends to a room owned elsewhere; see {@link Local#append}. */
+  List<MessageObject> append(String roomId, String sender,
+      List<String> texts) throws IOException {
+    byte[] reply = forward(roomId, APPEND, out -> {
+      writeString(out, roomId);
+      writeString(out, sender);
+      out.writeInt(texts.size());
+      for (String text : texts) {
+        writeString(out, text);
+      }
+    });
+    List<MessageObject> appended = new ArrayList<>(texts.size());
+    ChatJournal.decodeAll(ByteBuffer.wrap(reply), new Records() {
+      @Override
+      public void message(String room, String id, long seq, String from,
+          String text, long createdAtMillis) {
+        appended.add(
+            new MessageObject(id, seq, from, text, room, createdAtMillis));
+      }
+    });
+    long last = appended.get(appended.size() - 1).seq;
+    awaitReplica(() -> local.lastSeq(roomId) >= last);
+    return appended;
+  }
+
+  /** Deletes in a room owned elsewhere; see {@link Local#delete}. */
+  boolean delete(String roomId, String messageId, String sender)
+      throws IOException {
+    byte[] reply = forward(roomId, DELETE, out -> {
+      writeString(out, roomId);
+      writeString(out, messageId);
+      writeString(out, sender);
+    });
+    long seq = ByteBuffer.wrap(reply).getLong();
+    if (seq < 0)
+      return false;
+    awaitReplica(() -> local.lastSeq(roomId) >= seq);
+    return true;
+  }
+
+  /** Creates a room owned elsewhere; false if it already existed. */
+  boolean createRoom(String roomId, String creator) throws IOException {
+    byte[] reply = forward(roomId, CREATE_ROOM, out -> {
+      writeString(out, roomId);
+      writeString(out, creator);
+    });
+    awaitReplica(() -> local.lastSeq(roomId) >= 0);
+    return reply[0] != 0;
+  }
+
+  private interface RequestBody {
+    void writeTo(DataOutputStream out) throws IOException;
+  }
+
+  private byte[] forward(String roomId, byte op, RequestBody body)
+      throws IOException {
+    String owner = ownerOf(roomId);
+    Link link = links.get(owner);
+    if (link == null || !link.connected)
+      throw new IOException("Owner " + owner + " of room " + roomId
+          + " is not connected");
+    long id = requestIds.incrementAndGet();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(id);
+    out.writeByte(op);
+    body.writeTo(out);
+    CompletableFuture<byte[]> reply = new CompletableFuture<>();
+    link.pending.put(id, reply);
+    byte[] payload = bytes.toByteArray();
+    link.enqueue(l -> l.frame(REQUEST, payload));
+    forwarded.increment();
+    try {
+      return reply.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for " + owner, e);
+    } catch (ExecutionException e) {
+      throw new IOException("Forward to " + owner + " failed: "
+          + e.getCause().getMessage(), e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException("No reply from " + owner + " in "
+          + timeoutMillis + " ms", e);
+    } finally {
+      link.pending.remove(id);
+    }
+  }
+
+  // The owner replicates to us on its own link, racing the reply on ours
+  private void awaitReplica(BooleanSupplier caughtUp) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+        timeoutMillis);
+    synchronized (appliedLock) {
+      while (!caughtUp.getAsBoolean()) {
+        long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (wait <= 0) {
+          LOG.warn("cluster.replica.lagging", "timeoutMs", timeoutMillis);
+          return;
+        }
+        try {
+          appliedLock.wait(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private void acceptLoop() {
+    while (!server.isClosed()) {
+      Socket socket;
+      try {
+        socket = server.accept();
+      } catch (IOException e) {
+        if (!server.isClosed())
+          LOG.warn("cluster.accept.failed", "error", e);
+        continue;
+      }
+      if (!inbound.tryAcquire()) {
+        LOG.warn("cluster.accept.refused", "address",
+            socket.getRemoteSocketAddress(), "reason", "too many connections");
+        closeQuietly(socket);
+        continue;
+      }
+      inboundSockets.add(socket);
+      if (closed) // close() may have missed it
+        closeQuietly(socket);
+      Thread reader = new Thread(() -> {
+        try {
+          serve(socket);
+        } finally {
+          inboundSockets.remove(socket);
+          inbound.release();
+        }
+      }, "cluster-in-" + socket.getRemoteSocketAddress());
+      reader.setDaemon(true);
+      reader.start();
+    }
+  }
+
+  // One peer's link, from the accepting side: its changes and requests in,
+  // our replies out
+  private void serve(Socket socket) {
+    String peer = String.valueOf(socket.getRemoteSocketAddress());
+    boolean accepted = false;
+    try (Socket s = socket) {
+      s.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(s.getInputStream(), BUFFER_BYTES));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(s.getOutputStream(), BUFFER_BYTES));
+      s.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+      DataInputStream hello = new DataInputStream(new ByteArrayInputStream(
+          readFrame(in, HELLO, MAX_HANDSHAKE_FRAME_BYTES)));
+      peer = readString(hello);
+      byte[] dialNonce = new byte[NONCE_BYTES];
+      hello.readFully(dialNonce);
+      byte[] acceptNonce = nonce();
+      ByteArrayOutputStream challenge = new ByteArrayOutputStream();
+      challenge.write(acceptNonce);
+      challenge.write(mac(CHALLENGE, peer, dialNonce, acceptNonce));
+      writeFrame(out, CHALLENGE, challenge.toByteArray());
+      out.flush();
+      byte[] proof = readFrame(in, PROOF, MAX_HANDSHAKE_FRAME_BYTES);
+      if (!MessageDigest.isEqual(
+              proof, mac(PROOF, peer, dialNonce, acceptNonce))) {
+        LOG.warn("cluster.peer.rejected", "peer", peer, "address",
+            s.getRemoteSocketAddress(), "reason", "wrong chat.cluster.secret");
+        return;
+      }
+      s.setSoTimeout(0);
+      accepted = true;
+      LOG.info("cluster.peer.accepted", "peer", peer);
+      Replica replica = local.replica();
+      while (true) {
+        byte kind = in.readByte();
+        byte[] payload = readPayload(in, MAX_FRAME_BYTES);
+        if (kind == RECORDS) {
+          Counting counted = new Counting(replica);
+          ChatJournal.decodeAll(ByteBuffer.wrap(payload), counted);
+          replica.applied();
+          recordsApplied.add(counted.records);
+          synchronized (appliedLock) {
+            appliedLock.notifyAll();
+          }
+        } else if (kind == REQUEST) {
+          byte[] reply = handle(payload);
+          out.writeByte(REPLY);
+          out.writeInt(reply.length);
+          out.write(reply);
+          out.flush();
+        } else {
+          throw new IOException("Unexpected frame kind " + kind);
+        }
+      }
+    } catch (EOFException e) {
+      // A dialler that found our proof wrong hangs up, and retries each
+      // second; it reports that itself
+      if (accepted) {
+        LOG.info("cluster.peer.closed", "peer", peer);
+      } else {
+        LOG.debug("cluster.peer.abandoned", "peer", peer);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("cluster.peer.failed", "peer", peer, "error", e);
+    }
+  }
+
+  // [long id][byte status][result], where a failure's result is its message
+  private byte[] handle(byte[] request) throws IOException {
+    DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(request));
+    long id = in.readLong();
+    byte op = in.readByte();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(id);
+    try {
+      byte[] result;
+      if (op == APPEND) {
+        String roomId = readString(in);
+        String sender = readString(in);
+        int count = in.readInt();
+        List<String> texts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          texts.add(readString(in));
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream(256);
+        ChatJournal.RecordWriter writer = ChatJournal.encoder(
+            Channels.newChannel(records), BUFFER_BYTES);
+        for (MessageObject m : local.append(roomId, sender, texts)) {
+          writer.message(m.room, m.getId(), m.seq, m.getSender(), m.text,
+              m.createdAtMillis);
+        }
+        writer.flush();
+        result = records.toByteArray();
+      } else if (op == DELETE) {
+        long seq = local.delete(readString(in), readString(in), readString(in));
+        result = ByteBuffer.allocate(8).putLong(seq).array();
+      } else if (op == CREATE_ROOM) {
+        boolean created = local.createRoom(readString(in), readString(in));
+        result = new byte[] {(byte) (created ? 1 : 0)};
+      } else {
+        throw new IOException("Unknown request " + op);
+      }
+      out.writeByte(OK);
+      out.write(result);
+    } catch (RuntimeException e) {
+      LOG.error("cluster.request.failed", "op", op, "error", e);
+      bytes.reset();
+      out.writeLong(id);
+      out.writeByte(FAILED);
+      writeString(out, String.valueOf(e));
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private byte[] readFrame(DataInputStream in, byte expected, int maxBytes)
+      throws IOException {
+    byte kind = in.readByte();
+    if (kind != expected)
+      throw new IOException("Expected frame " + expected + ", got " + kind);
+    return readPayload(in, maxBytes);
+  }
+
+  private static byte[] readPayload(DataInputStream in, int maxBytes)
+      throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > maxBytes)
+      throw new IOException("Bad frame length " + length);
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    return payload;
+  }
+
+  private static void writeFrame(DataOutputStream out, byte kind,
+      byte[] payload) throws IOException {
+    out.writeByte(kind);
+    out.writeInt(payload.length);
+    out.write(payload);
+  }
+
+  private byte[] nonce() {
+    byte[] nonce = new byte[NONCE_BYTES];
+    random.nextBytes(nonce);
+    return nonce;
+  }
+
+  // Proof of the secret for one handshake step; the step's frame kind keeps
+  // either side's proof from being replayed as the other's
+  private byte[] mac(byte step, String dialler, byte[] dialNonce,
+      byte[] acceptNonce) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+      mac.update(step);
+      mac.update(dialler.getBytes(StandardCharsets.UTF_8));
+      mac.update((byte) 0);
+      mac.update(dialNonce);
+      mac.update(acceptNonce);
+      return mac.doFinal();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HmacSHA256 is unavailable", e);
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+      // Closing anyway
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  // Strings are only read from a frame's payload, so what is left of it
+  // bounds their length
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > in.available())
+      throw new IOException("Bad string length " + length);
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static String host(String node) {
+    return node.substring(0, Math.max(0, node.lastIndexOf(':')));
+  }
+
+  private static int port(String node) {
+    int colon = node.lastIndexOf(':');
+    try {
+      return Integer.parseInt(node.substring(colon + 1));
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException(
+          "Cluster node '" + node + "' is not host:port", e);
+    }
+  }
+
+  // FNV-1a, then a 64-bit finalizer to spread similar ids around the ring
+  static long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h = (h ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+
+  /** Ignores every record, so a decoder can pick out the ones it wants. */
+  private static class Records implements ChatJournal.Events {
+    @Override
+    public void user(String username, String salt, String hashedPassword) {}
+
+    @Override
+    public void session(String token, String username, long createdAtMillis,
+        long lastSeenMillis) {}
+
+    @Override
+    public void sessionEnded(String token) {}
+
+    @Override
+    public void room(String roomId, String creator, long createdAtMillis) {}
+
+    @Override
+    public void message(String roomId, String id, long seq, String sender,
+        String text, long createdAtMillis) {}
+
+    @Override
+    public void deleted(String roomId, String messageId, long seq) {}
+
+    @Override
+    public void roomSeq(String roomId, long lastSeq) {}
+  }
+
+  /** Passes records through to a replica, counting them. */
+  private static final class Counting implements ChatJournal.Events {
+    private final ChatJournal.Events target;
+    long records;
+
+    Counting(ChatJournal.Events target) {
+      this.target = target;
+    }
+
+    @Override
+    public void user(String username, String salt, String hashedPassword) {
+      records++;
+      target.user(username, salt, hashedPassword);
+    }
+
+    @Override
+    public void session(String token, String username, long createdAtMillis,
+        long lastSeenMillis) {
+      records++;
+      target.session(token, username, createdAtMillis, lastSeenMillis);
+    }
+
+    @Override
+    public void sessionEnded(String token) {
+      records++;
+      target.sessionEnded(token);
+    }
+
+    @Override
+    public void room(String roomId, String creator, long createdAtMillis) {
+      records++;
+      target.room(roomId, creator, createdAtMillis);
+    }
+
+    @Override
+    public void message(String roomId, String id, long seq, String sender,
+        String text, long createdAtMillis) {
+      records++;
+      target.message(roomId, id, seq, sender, text, createdAtMillis);
+    }
+
+    @Override
+    public void deleted(String roomId, String messageId, long seq) {
+      records++;
+      target.deleted(roomId, messageId, seq);
+    }
+
+    @Override
+    public void roomSeq(String roomId, long lastSeq) {
+      records++;
+      target.roomSeq(roomId, lastSeq);
+    }
+  }
+
+  private interface Outgoing {
+    void writeTo(Link link) throws IOException;
+  }
+
+  /**
+   * Our side of the link to one peer: a thread that dials it, sends our
+   * state and then whatever queues, and a reader for its replies.
+   */
+  private final class Link {
+    final String peer;
+    final BlockingQueue<Outgoing> queue = new LinkedBlockingQueue<>();
+    final Map<Long, CompletableFuture<byte[]>> pending =
+        new ConcurrentHashMap<>();
+    volatile boolean connected;
+    // Writer thread only
+    ChatJournal.RecordWriter records;
+    private DataOutputStream out;
+    private volatile Socket socket;
+    private Thread writer;
+
+    Link(String peer) {
+      this.peer = peer;
+    }
+
+    void start() {
+      writer = new Thread(this::run, "cluster-link-" + peer);
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    // Closing the socket ends a blocked connect or read, and the interrupt
+    // a wait for changes or a retry
+    void close() {
+      if (writer != null)
+        writer.interrupt();
+      disconnect();
+    }
+
+    // Dropped while disconnected: the next connection starts with our state
+    void enqueue(Outgoing entry) {
+      if (!connected)
+        return;
+      if (queue.size() >= maxBacklog) {
+        LOG.warn("cluster.peer.behind", "peer", peer, "backlog", queue.size());
+        disconnect();
+        return;
+      }
+      queue.add(entry);
+    }
+
+    void frame(byte kind, byte[] payload) throws IOException {
+      records.flush();
+      writeFrame(out, kind, payload);
+    }
+
+    private void run() {
+      boolean warned = false;
+      while (!closed) {
+        try {
+          connect();
+          warned = false;
+          stream();
+        } catch (IOException | UncheckedIOException e) {
+          if (!warned && !closed) {
+            LOG.warn("cluster.link.down", "peer", peer, "error", e,
+                "retryMs", RETRY_MILLIS);
+            warned = true;
+          }
+        }
+        disconnect();
+        try {
+          Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    private void connect() throws IOException {
+      Socket s = new Socket();
+      socket = s;
+      if (closed) // Set before close() reads socket, so one of us sees it
+        throw new IOException("Cluster closed");
+      s.connect(new InetSocketAddress(host(peer), port(peer)),
+          CONNECT_TIMEOUT_MILLIS);
+      s.setTcpNoDelay(true);
+      s.setKeepAlive(true);
+      out = new DataOutputStream(
+          new BufferedOutputStream(s.getOutputStream(), BUFFER_BYTES));
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(s.getInputStream(), BUFFER_BYTES));
+      handshake(s, in);
+      // Each buffer the encoder passes on becomes one frame
+      records = ChatJournal.encoder(new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+          int length = src.remaining();
+          out.writeByte(RECORDS);
+          out.writeInt(length);
+          byte[] chunk = new byte[Math.min(length, BUFFER_BYTES)];
+          while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), chunk.length);
+            src.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+          }
+          return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+          return !s.isClosed();
+        }
+
+        @Override
+        public void close() {}
+      }, BUFFER_BYTES);
+
+      Thread reader = new Thread(() -> readReplies(s, in),
+          "cluster-replies-" + peer);
+      reader.setDaemon(true);
+      reader.start();
+      // Queue from here on, so nothing made during the state dump is lost;
+      // the peer skips what it gets twice
+      connected = true;
+      long started = System.nanoTime();
+      local.writeState(records, Cluster.this);
+      records.flush();
+      out.flush();
+      LOG.info("cluster.link.up", "peer", peer, "stateMs",
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    // Both sides show they hold the secret before any state is sent
+    private void handshake(Socket s, DataInputStream in) throws IOException {
+      byte[] dialNonce = nonce();
+      ByteArrayOutputStream hello = new ByteArrayOutputStream();
+      DataOutputStream helloOut = new DataOutputStream(hello);
+      writeString(helloOut, self);
+      helloOut.write(dialNonce);
+      writeFrame(out, HELLO, hello.toByteArray());
+      out.flush();
+      s.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+      byte[] challenge = readFrame(in, CHALLENGE, MAX_HANDSHAKE_FRAME_BYTES);
+      if (challenge.length <= NONCE_BYTES)
+        throw new IOException("Short challenge from " + peer);
+      byte[] acceptNonce = Arrays.copyOf(challenge, NONCE_BYTES);
+      byte[] proof =
+          Arrays.copyOfRange(challenge, NONCE_BYTES, challenge.length);
+      if (!MessageDigest.isEqual(
+              proof, mac(CHALLENGE, self, dialNonce, acceptNonce)))
+        throw new IOException(peer + " does not hold chat.cluster.secret");
+      writeFrame(out, PROOF, mac(PROOF, self, dialNonce, acceptNonce));
+      s.setSoTimeout(0);
+    }
+
+    private void stream() throws IOException, UncheckedIOException {
+      List<Outgoing> batch = new ArrayList<>();
+      while (true) {
+        Outgoing first;
+        try {
+          first = queue.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted", e);
+        }
+        batch.add(first);
+        queue.drainTo(batch, 8192);
+        for (Outgoing entry : batch) {
+          entry.writeTo(this);
+        }
+        batch.clear();
+        records.flush();
+        out.flush();
+      }
+    }
+
+    private void readReplies(Socket s, DataInputStream in) {
+      try {
+        while (true) {
+          byte[] payload = readFrame(in, REPLY, MAX_FRAME_BYTES);
+          ByteBuffer reply = ByteBuffer.wrap(payload);
+          long id = reply.getLong();
+          byte status = reply.get();
+          CompletableFuture<byte[]> waiting = pending.remove(id);
+          if (waiting == null)
+            continue; // Timed out already
+          byte[] result = Arrays.copyOfRange(
+              payload, reply.position(), payload.length);
+          if (status == OK) {
+            waiting.complete(result);
+          } else {
+            waiting.completeExceptionally(new IOException(readString(
+                new DataInputStream(new ByteArrayInputStream(result)))));
+          }
+        }
+      } catch (IOException e) {
+        // Wakes the writer, unless it has moved on to a newer connection
+        queue.add(link -> {
+          if (link.socket == s)
+            throw new EOFException("Peer closed the link");
+        });
+      }
+    }
+
+    private void disconnect() {
+      connected = false;
+      Socket s = socket;
+      if (s != null)
+        closeQuietly(s);
+      queue.clear();
+      IOException closed = new IOException("Link to " + peer + " closed");
+      for (CompletableFuture<byte[]> waiting : pending.values()) {
+        waiting.completeExceptionally(closed);
+      }
+      pending.clear();
+    }
+  }
+}
@@ -0,0 +1,195 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * gzip and deflate response encoding. Bodies under
+ * {@code chat.compression.minBytes} are not worth it and go out as they are.
+ *
+ * <p>A {@link Deflater} holds native memory that is only freed by
+ * {@code end()} or finalization, so rather than one per response they are
+ * borrowed from a small pool and reset after use. They run in raw mode and
+ * this class writes the gzip or zlib framing itself, so the same pooled
+ * instances serve both codings.
+ */
+final class Compression {
+  static final int MIN_BYTES =
+      ServerConfig.getInt("chat.compression.minBytes", 512);
+  private static final int LEVEL =
+      ServerConfig.getInt("chat.compression.level", 6);
+  private static final ArrayBlockingQueue<Deflater> POOL =
+      new ArrayBlockingQueue<>(
+          Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+  private static final byte[] GZIP_HEADER =
+      {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+  private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+
+  enum Coding {
+    GZIP("gzip", "-gz"),
+    DEFLATE("deflate", "-zz");
+
+    final String token;
+    final String etagSuffix; // Static assets use the same for gzip
+
+    Coding(String token, String etagSuffix) {
+      this.token = token;
+      this.etagSuffix = etagSuffix;
+    }
+  }
+
+  private Compression() {}
+
+  /** The coding to answer with given {@code Accept-Encoding}, gzip first. */
+  static Coding negotiate(String acceptEncoding) {
+    if (accepts(acceptEncoding, "gzip"))
+      return Coding.GZIP;
+    if (accepts(acceptEncoding, "deflate"))
+      return Coding.DEFLATE;
+    return null;
+  }
+
+  /** Whether {@code coding} is listed with a non-zero q value. */
+  static boolean accepts(String acceptEncoding, String coding) {
+    if (acceptEncoding == null)
+      return false;
+    for (String part : acceptEncoding.split(",")) {
+      String[] params = part.split(";");
+      if (!params[0].trim().equalsIgnoreCase(coding))
+        continue;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            return Double.parseDouble(param.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /** {@code data} encoded whole, for bodies that are cached. */
+  static byte[] compress(byte[] data, Coding coding) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 4);
+    try (OutputStream out = encode(buffer, coding)) {
+      out.write(data);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Not from a byte array
+    }
+    return buffer.toByteArray();
+  }
+
+  /**
+   * A stream that encodes into {@code out} as it is written, for bodies of
+   * any length; closing it writes the trailer and closes {@code out}.
+   */
+  static OutputStream encode(OutputStream out, Coding coding)
+      throws IOException {
+    return new Encoder(out, coding);
+  }
+
+  private static Deflater borrow() {
+    Deflater deflater = POOL.poll();
+    return deflater != null ? deflater : new Deflater(LEVEL, true);
+  }
+
+  private static void release(Deflater deflater) {
+    deflater.reset();
+    if (!POOL.offer(deflater))
+      deflater.end();
+  }
+
+  private static final class Encoder extends OutputStream {
+    private final OutputStream out;
+    private final Coding coding;
+    private final Checksum checksum;
+    private final byte[] buffer = new byte[8192];
+    private Deflater deflater;
+    private long inputBytes;
+
+    Encoder(OutputStream out, Coding coding) throws IOException {
+      this.out = out;
+      this.coding = coding;
+      if (coding == Coding.GZIP) {
+        checksum = new CRC32();
+        out.write(GZIP_HEADER);
+      } else {
+        checksum = new Adler32();
+        out.write(ZLIB_HEADER);
+      }
+      deflater = borrow();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (deflater == null)
+        throw new IOException("Stream closed");
+      checksum.update(b, off, len);
+      inputBytes += len;
+      deflater.setInput(b, off, len);
+      while (!deflater.needsInput()) {
+        drain();
+      }
+    }
+
+    // Like DeflaterOutputStream, a flush does not force out a partial block
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (deflater == null)
+        return;
+      try {
+        deflater.finish();
+        while (!deflater.finished()) {
+          drain();
+        }
+        writeTrailer();
+      } finally {
+        release(deflater);
+        deflater = null;
+        out.close();
+      }
+    }
+
+    private void drain() throws IOException {
+      int n = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+      if (n > 0)
+        out.write(buffer, 0, n);
+    }
+
+    private void writeTrailer() throws IOException {
+      long check = checksum.getValue();
+      if (coding == Coding.GZIP) {
+        // CRC-32 then input size mod 2^32, both little-endian
+        for (int shift = 0; shift < 32; shift += 8) {
+          buffer[shift / 8] = (byte) (check >>> shift);
+          buffer[4 + shift / 8] = (byte) (inputBytes >>> shift);
+        }
+        out.write(buffer, 0, 8);
+      } else {
+        // Adler-32, big-endian
+        for (int i = 0; i < 4; i++) {
+          buffer[i] = (byte) (check >>> (24 - 8 * i));
+        }
+        out.write(buffer, 0, 4);
+      }
+    }
+  }
+}
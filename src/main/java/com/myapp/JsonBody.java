@@ -0,0 +1,14 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A JSON response written straight to the exchange as a series of fragments,
+ * mostly the cached bytes of each message, instead of being joined into one
+ * String and copied again into a byte[].
+ */
+interface JsonBody {
+  /** Exact length in bytes, or -1 when unknown and the body goes chunked. */
+  long length();
+
+  void writeTo(OutputStream out) throws IOException;
+}
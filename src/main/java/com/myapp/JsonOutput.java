@@ -0,0 +1,165 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * JSON text built straight into UTF-8 bytes, for responses that are encoded
+ * once and written many times. Strings are escaped and encoded in the same
+ * pass over their chars, so there is no intermediate escaped String and no
+ * {@code getBytes} copy. Escaping follows RFC 8259: quote, backslash and
+ * every control character, the common ones by their short forms. A lone
+ * surrogate becomes {@code ?}, as {@link String#getBytes} would make it.
+ */
+final class JsonOutput {
+  // Per ASCII char: 0 if it stands for itself, 'u' for \\u00XX, else the
+  // letter that follows the backslash
+  private static final byte[] ESCAPES = new byte[128];
+  private static final byte[] HEX =
+      "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  static {
+    for (int c = 0; c < 0x20; c++) {
+      ESCAPES[c] = 'u';
+    }
+    ESCAPES['"'] = '"';
+    ESCAPES['\\'] = '\\';
+    ESCAPES['\b'] = 'b';
+    ESCAPES['\f'] = 'f';
+    ESCAPES['\n'] = 'n';
+    ESCAPES['\r'] = 'r';
+    ESCAPES['\t'] = 't';
+  }
+
+  private byte[] buf;
+  private int len;
+
+  JsonOutput(int capacity) {
+    buf = new byte[Math.max(16, capacity)];
+  }
+
+  /** Appends {@code ascii} as is; for JSON punctuation and field names. */
+  JsonOutput raw(String ascii) {
+    int n = ascii.length();
+    ensure(n);
+    for (int i = 0; i < n; i++) {
+      buf[len++] = (byte) ascii.charAt(i);
+    }
+    return this;
+  }
+
+  JsonOutput number(long value) {
+    return raw(Long.toString(value));
+  }
+
+  /** Appends {@code s} quoted and escaped, or {@code null}. */
+  JsonOutput string(String s) {
+    if (s == null)
+      return raw("null");
+    int n = s.length();
+    ensure(n + 2);
+    buf[len++] = '"';
+    int i = 0;
+    // Plain ASCII needs no escaping and one byte per char, so the bound
+    // above holds until the first char that is neither
+    for (; i < n; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80 || ESCAPES[c] != 0)
+        break;
+      buf[len++] = (byte) c;
+    }
+    for (; i < n; i++) {
+      char c = s.charAt(i);
+      ensure(7); // The longest form, \\u00XX, plus the closing quote
+      if (c < 0x80) {
+        byte escape = ESCAPES[c];
+        if (escape == 0) {
+          buf[len++] = (byte) c;
+        } else if (escape == 'u') {
+          buf[len++] = '\\';
+          buf[len++] = 'u';
+          buf[len++] = '0';
+          buf[len++] = '0';
+          buf[len++] = HEX[c >> 4];
+          buf[len++] = HEX[c & 0xf];
+        } else {
+          buf[len++] = '\\';
+          buf[len++] = escape;
+        }
+      } else if (c < 0x800) {
+        buf[len++] = (byte) (0xc0 | c >> 6);
+        buf[len++] = (byte) (0x80 | c & 0x3f);
+      } else if (!Character.isSurrogate(c)) {
+        buf[len++] = (byte) (0xe0 | c >> 12);
+        buf[len++] = (byte) (0x80 | c >> 6 & 0x3f);
+        buf[len++] = (byte) (0x80 | c & 0x3f);
+      } else if (Character.isHighSurrogate(c) && i + 1 < n
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        buf[len++] = (byte) (0xf0 | cp >> 18);
+        buf[len++] = (byte) (0x80 | cp >> 12 & 0x3f);
+        buf[len++] = (byte) (0x80 | cp >> 6 & 0x3f);
+        buf[len++] = (byte) (0x80 | cp & 0x3f);
+      } else {
+        buf[len++] = '?';
+      }
+    }
+    buf[len++] = '"';
+    return this;
+  }
+
+  int length() {
+    return len;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buf, len);
+  }
+
+  /**
+   * {@code s} escaped for use between quotes in JSON built as a String;
+   * {@code s} itself when nothing needs escaping, as is usual.
+   */
+  static String escape(String s) {
+    if (s == null)
+      return null;
+    int n = s.length();
+    int i = 0;
+    while (i < n && !needsEscape(s.charAt(i))) {
+      i++;
+    }
+    if (i == n)
+      return s;
+    // At most six chars per char, grown to that only if the first guess
+    // runs out
+    char[] out = new char[n + 16];
+    s.getChars(0, i, out, 0);
+    int len = i;
+    for (; i < n; i++) {
+      if (len + 6 > out.length)
+        out = Arrays.copyOf(out, Math.max(out.length * 2, len + 6 * (n - i)));
+      char c = s.charAt(i);
+      if (!needsEscape(c)) {
+        out[len++] = c;
+      } else if (ESCAPES[c] == 'u') {
+        out[len++] = '\\';
+        out[len++] = 'u';
+        out[len++] = '0';
+        out[len++] = '0';
+        out[len++] = (char) HEX[c >> 4];
+        out[len++] = (char) HEX[c & 0xf];
+      } else {
+        out[len++] = '\\';
+        out[len++] = (char) ESCAPES[c];
+      }
+    }
+    return new String(out, 0, len);
+  }
+
+  private static boolean needsEscape(char c) {
+    return c < 0x80 && ESCAPES[c] != 0;
+  }
+
+  private void ensure(int extra) {
+    if (len + extra > buf.length)
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+  }
+}
@@ -0,0 +1,305 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured logging: each line is a timestamp, level, logger, an event
+ * name and key=value pairs, e.g.
+ * {@code 2026-01-01T12:00:00.000Z INFO PostMessageHandler message.posted
+ * user=alice room=general}.
+ *
+ * <p>Callers never touch stdout. The fixed-arity methods return at once when
+ * the level is off, before any entry or array is built; otherwise they hand
+ * an entry to a lock-free ring buffer, and one daemon thread formats and
+ * writes it. Primitive values are still boxed by the caller before the level
+ * is checked, so calls on a per-request path that pass numbers are guarded
+ * with {@link #enabled} or {@link #sampled}. When the ring is full, entries are dropped and counted rather than
+ * making requests wait. The level comes from {@code chat.log.level}.
+ */
+final class Log {
+  enum Level { DEBUG, INFO, WARN, ERROR }
+
+  private static final Level THRESHOLD = Level.valueOf(
+      ServerConfig.get("chat.log.level", "INFO").toUpperCase(Locale.ROOT));
+  private static final Ring RING =
+      new Ring(ServerConfig.getInt("chat.log.bufferSize", 8192));
+
+  private final String name;
+
+  private Log(String name) {
+    this.name = name;
+  }
+
+  static Log named(String name) {
+    return new Log(name);
+  }
+
+  boolean enabled(Level level) {
+    return level.compareTo(THRESHOLD) >= 0;
+  }
+
+  /**
+   * True for about one call in {@code every} when {@code level} is on, for
+   * events too frequent to log in full. No shared state is written.
+   */
+  boolean sampled(Level level, int every) {
+    return enabled(level)
+        && (every <= 1 || ThreadLocalRandom.current().nextInt(every) == 0);
+  }
+
+  /** Entries lost to a full buffer since startup. */
+  static long dropped() {
+    return RING.dropped.sum();
+  }
+
+  void debug(String event) {
+    if (enabled(Level.DEBUG))
+      log(Level.DEBUG, event);
+  }
+
+  void debug(String event, String k1, Object v1) {
+    if (enabled(Level.DEBUG))
+      log(Level.DEBUG, event, k1, v1);
+  }
+
+  void debug(String event, String k1, Object v1, String k2, Object v2) {
+    if (enabled(Level.DEBUG))
+      log(Level.DEBUG, event, k1, v1, k2, v2);
+  }
+
+  void debug(String event, String k1, Object v1, String k2, Object v2,
+      String k3, Object v3) {
+    if (enabled(Level.DEBUG))
+      log(Level.DEBUG, event, k1, v1, k2, v2, k3, v3);
+  }
+
+  void debug(String event, String k1, Object v1, String k2, Object v2,
+      String k3, Object v3, String k4, Object v4) {
+    if (enabled(Level.DEBUG))
+      log(Level.DEBUG, event, k1, v1, k2, v2, k3, v3, k4, v4);
+  }
+
+  void info(String event) {
+    if (enabled(Level.INFO))
+      log(Level.INFO, event);
+  }
+
+  void info(String event, String k1, Object v1) {
+    if (enabled(Level.INFO))
+      log(Level.INFO, event, k1, v1);
+  }
+
+  void info(String event, String k1, Object v1, String k2, Object v2) {
+    if (enabled(Level.INFO))
+      log(Level.INFO, event, k1, v1, k2, v2);
+  }
+
+  void info(String event, String k1, Object v1, String k2, Object v2,
+      String k3, Object v3) {
+    if (enabled(Level.INFO))
+      log(Level.INFO, event, k1, v1, k2, v2, k3, v3);
+  }
+
+  void info(String event, String k1, Object v1, String k2, Object v2,
+      String k3, Object v3, String k4, Object v4) {
+    if (enabled(Level.INFO))
+      log(Level.INFO, event, k1, v1, k2, v2, k3, v3, k4, v4);
+  }
+
+  void warn(String event) {
+    if (enabled(Level.WARN))
+      log(Level.WARN, event);
+  }
+
+  void warn(String event, String k1, Object v1) {
+    if (enabled(Level.WARN))
+      log(Level.WARN, event, k1, v1);
+  }
+
+  void warn(String event, String k1, Object v1, String k2, Object v2) {
+    if (enabled(Level.WARN))
+      log(Level.WARN, event, k1, v1, k2, v2);
+  }
+
+  void warn(String event, String k1, Object v1, String k2, Object v2,
+      String k3, Object v3) {
+    if (enabled(Level.WARN))
+      log(Level.WARN, event, k1, v1, k2, v2, k3, v3);
+  }
+
+  void warn(String event, String k1, Object v1, String k2, Object v2,
+      String k3, Object v3, String k4, Object v4) {
+    if (enabled(Level.WARN))
+      log(Level.WARN, event, k1, v1, k2, v2, k3, v3, k4, v4);
+  }
+
+  void error(String event) {
+    log(Level.ERROR, event);
+  }
+
+  void error(String event, String k1, Object v1) {
+    log(Level.ERROR, event, k1, v1);
+  }
+
+  void error(String event, String k1, Object v1, String k2, Object v2) {
+    log(Level.ERROR, event, k1, v1, k2, v2);
+  }
+
+  void error(String event, String k1, Object v1, String k2, Object v2,
+      String k3, Object v3) {
+    log(Level.ERROR, event, k1, v1, k2, v2, k3, v3);
+  }
+
+  private void log(Level level, String event, Object... keyValues) {
+    RING.offer(new Entry(System.currentTimeMillis(), level, name, event,
+        keyValues));
+  }
+
+  private static final class Entry {
+    final long millis;
+    final Level level;
+    final String logger;
+    final String event;
+    final Object[] keyValues;
+
+    Entry(long millis, Level level, String logger, String event,
+        Object[] keyValues) {
+      this.millis = millis;
+      this.level = level;
+      this.logger = logger;
+      this.event = event;
+      this.keyValues = keyValues;
+    }
+
+    void format(StringBuilder sb) {
+      sb.append(Instant.ofEpochMilli(millis)).append(' ').append(level)
+          .append(' ').append(logger).append(' ').append(event);
+      for (int i = 0; i + 1 < keyValues.length; i += 2) {
+        sb.append(' ').append(keyValues[i]).append('=');
+        appendValue(sb, String.valueOf(keyValues[i + 1]));
+      }
+      sb.append('\n');
+    }
+
+    // Quoted only when needed, so each line still splits on spaces
+    private static void appendValue(StringBuilder sb, String value) {
+      boolean plain = !value.isEmpty();
+      for (int i = 0; i < value.length() && plain; i++) {
+        char c = value.charAt(i);
+        plain = c > ' ' && c != '"' && c != '=' && c != '\\';
+      }
+      if (plain) {
+        sb.append(value);
+        return;
+      }
+      sb.append('"');
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '"' || c == '\\') {
+          sb.append('\\').append(c);
+        } else if (c == '\n') {
+          sb.append("\\n");
+        } else if (c < ' ') {
+          sb.append(String.format("\\u%04x", (int) c));
+        } else {
+          sb.append(c);
+        }
+      }
+      sb.append('"');
+    }
+  }
+
+  /**
+   * Bounded multi-producer, single-consumer ring. Producers claim a sequence
+   * number with a CAS and then fill that slot; the writer takes slots strictly
+   * in order, waiting for a claimed slot to be filled, and parks when idle.
+   */
+  private static final class Ring {
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private volatile boolean sleeping;
+    final LongAdder dropped = new LongAdder();
+    private final OutputStream out = new BufferedOutputStream(
+        new FileOutputStream(FileDescriptor.out), 1 << 16);
+    private final OutputStream err = new BufferedOutputStream(
+        new FileOutputStream(FileDescriptor.err), 1 << 12);
+    private final StringBuilder line = new StringBuilder(256);
+    private final Thread writer;
+
+    Ring(int requestedCapacity) {
+      int capacity = Integer.highestOneBit(Math.max(64, requestedCapacity - 1)) << 1;
+      slots = new AtomicReferenceArray<>(capacity);
+      mask = capacity - 1;
+      writer = new Thread(this::drain, "log-writer");
+      writer.setDaemon(true);
+      writer.start();
+      Runtime.getRuntime().addShutdownHook(
+          new Thread(this::flushRemaining, "log-flush"));
+    }
+
+    void offer(Entry entry) {
+      long seq;
+      do {
+        seq = claimed.get();
+        if (seq - consumed >= slots.length()) {
+          dropped.increment();
+          return;
+        }
+      } while (!claimed.compareAndSet(seq, seq + 1));
+      slots.set((int) (seq & mask), entry);
+      if (sleeping)
+        LockSupport.unpark(writer);
+    }
+
+    private void drain() {
+      while (true) {
+        if (!writeAvailable()) {
+          sleeping = true;
+          if (slots.get((int) (consumed & mask)) == null)
+            LockSupport.parkNanos(100_000_000L);
+          sleeping = false;
+        }
+      }
+    }
+
+    /** Writes every filled slot in order; false if there was none. */
+    private synchronized boolean writeAvailable() {
+      boolean wrote = false;
+      try {
+        Entry entry;
+        while ((entry = slots.get((int) (consumed & mask))) != null) {
+          slots.set((int) (consumed & mask), null);
+          consumed = consumed + 1; // Only this thread advances it
+          line.setLength(0);
+          entry.format(line);
+          byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+          (entry.level.compareTo(Level.WARN) >= 0 ? err : out).write(bytes);
+          wrote = true;
+        }
+        if (wrote) {
+          out.flush();
+          err.flush();
+        }
+      } catch (IOException e) {
+        // Nowhere left to report it
+      }
+      return wrote;
+    }
+
+    private void flushRemaining() {
+      writeAvailable();
+    }
+  }
+}
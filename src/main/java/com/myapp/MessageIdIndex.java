@@ -0,0 +1,134 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Message ids to slots for one room, used to find a message to delete.
+ * Ids are random UUIDs, so they are kept as their two halves in an
+ * open-addressing table of parallel primitive arrays: about 20 bytes a
+ * bucket, against a boxed {@code HashMap} entry and key string for each
+ * message. Probing is linear and removal shifts later entries back, so the
+ * table never fills with markers. The odd id that is not a canonical UUID
+ * goes to a plain map instead. Not thread-safe; the room calls it under its
+ * write lock.
+ */
+final class MessageIdIndex {
+  private static final int FREE = -1;
+
+  private long[] keys = new long[2 * 16]; // High and low half per bucket
+  private int[] slots = free(16); // FREE where the bucket is empty
+  private int size;
+  private Map<String, Integer> oddIds; // Created on first use
+
+  /** The slot of the message with {@code id}, or -1 if there is none. */
+  int get(String id) {
+    if (!MessageObject.isCanonicalId(id)) {
+      Integer slot = oddIds == null ? null : oddIds.get(id);
+      return slot == null ? FREE : slot;
+    }
+    int bucket = find(MessageObject.parseHalf(id, true),
+        MessageObject.parseHalf(id, false));
+    return bucket < 0 ? FREE : slots[bucket];
+  }
+
+  void put(MessageObject message, int slot) {
+    if (message.oddId != null) {
+      if (oddIds == null)
+        oddIds = new HashMap<>();
+      oddIds.put(message.oddId, slot);
+      return;
+    }
+    if ((size + 1) * 4L > slots.length * 3L)
+      resize(slots.length * 2);
+    int mask = slots.length - 1;
+    int bucket = hash(message.idHigh, message.idLow) & mask;
+    while (slots[bucket] != FREE) {
+      if (matches(bucket, message.idHigh, message.idLow)) {
+        slots[bucket] = slot;
+        return;
+      }
+      bucket = (bucket + 1) & mask;
+    }
+    keys[2 * bucket] = message.idHigh;
+    keys[2 * bucket + 1] = message.idLow;
+    slots[bucket] = slot;
+    size++;
+  }
+
+  void remove(MessageObject message) {
+    if (message.oddId != null) {
+      if (oddIds != null)
+        oddIds.remove(message.oddId);
+      return;
+    }
+    int hole = find(message.idHigh, message.idLow);
+    if (hole < 0)
+      return;
+    // Pull back each following entry that may sit in the hole, so that no
+    // probe sequence is cut short by it
+    int mask = slots.length - 1;
+    for (int next = (hole + 1) & mask; slots[next] != FREE;
+        next = (next + 1) & mask) {
+      int home = hash(keys[2 * next], keys[2 * next + 1]) & mask;
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[2 * hole] = keys[2 * next];
+        keys[2 * hole + 1] = keys[2 * next + 1];
+        slots[hole] = slots[next];
+        hole = next;
+      }
+    }
+    slots[hole] = FREE;
+    size--;
+  }
+
+  int size() {
+    return size + (oddIds == null ? 0 : oddIds.size());
+  }
+
+  private int find(long high, long low) {
+    int mask = slots.length - 1;
+    for (int bucket = hash(high, low) & mask; slots[bucket] != FREE;
+        bucket = (bucket + 1) & mask) {
+      if (matches(bucket, high, low))
+        return bucket;
+    }
+    return -1;
+  }
+
+  private boolean matches(int bucket, long high, long low) {
+    return keys[2 * bucket] == high && keys[2 * bucket + 1] == low;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldSlots = slots;
+    keys = new long[2 * capacity];
+    slots = free(capacity);
+    int mask = capacity - 1;
+    for (int i = 0; i < oldSlots.length; i++) {
+      if (oldSlots[i] == FREE)
+        continue;
+      long high = oldKeys[2 * i];
+      long low = oldKeys[2 * i + 1];
+      int bucket = hash(high, low) & mask;
+      while (slots[bucket] != FREE) {
+        bucket = (bucket + 1) & mask;
+      }
+      keys[2 * bucket] = high;
+      keys[2 * bucket + 1] = low;
+      slots[bucket] = oldSlots[i];
+    }
+  }
+
+  // UUIDs are random apart from a few version bits, so a multiply spreads
+  // them well enough; the top bits are the best mixed
+  private static int hash(long high, long low) {
+    return (int) (((high ^ low) * 0x9e3779b97f4a7c15L) >>> 32);
+  }
+
+  private static int[] free(int capacity) {
+    int[] slots = new int[capacity];
+    Arrays.fill(slots, FREE);
+    return slots;
+  }
+}
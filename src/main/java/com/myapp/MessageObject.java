@@ -0,0 +1,177 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.UUID;
+
+/**
+ * One posted message, laid out to keep large rooms small: the id is held as
+ * the two halves of its UUID, the timestamp as epoch millis formatted only
+ * when serialized, and sender and room are interned so every message of a
+ * user or room shares one copy.
+ */
+class MessageObject {
+    final long idHigh; // The id's UUID, as two longs
+    final long idLow;
+    final String oddId; // An id that is not a canonical UUID, else null
+    long seq; // Position in the room's event sequence, used as the fetch cursor
+    String sender;
+    String text;
+    long createdAtMillis; // Rendered as the timestamp only in JSON
+    String room;
+    private volatile byte[] json; // UTF-8 toJSON(), encoded on first use
+
+    public MessageObject(long seq, String sender, String text, String room) {
+        this(UUID.randomUUID(), seq, sender, text, room, System.currentTimeMillis());
+    }
+
+    private MessageObject(UUID id, long seq, String sender, String text, String room, long createdAtMillis) {
+        this(id.getMostSignificantBits(), id.getLeastSignificantBits(), null, seq, sender, text, room, createdAtMillis);
+    }
+
+    // Rebuilds a message read back from the journal
+    MessageObject(String id, long seq, String sender, String text, String room, long createdAtMillis) {
+        this(parseHalf(id, true), parseHalf(id, false), isCanonicalId(id) ? null : id, seq, sender, text, room, createdAtMillis);
+    }
+
+    private MessageObject(long idHigh, long idLow, String oddId, long seq, String sender, String text, String room, long createdAtMillis) {
+        this.idHigh = idHigh;
+        this.idLow = idLow;
+        this.oddId = oddId;
+        this.seq = seq;
+        this.sender = sender.intern();
+        this.text = text;
+        this.room = room.intern();
+        this.createdAtMillis = createdAtMillis;
+    }
+
+    /**
+     * Whether {@code id} is a UUID as {@link UUID#toString} writes it, so
+     * that its halves turn back into exactly the same string.
+     */
+    static boolean isCanonicalId(String id) {
+        if (id == null || id.length() != 36)
+            return false;
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+            if (dash ? c != '-' : Character.digit(c, 16) < 0 || Character.isUpperCase(c))
+                return false;
+        }
+        return true;
+    }
+
+    /** The high or low half of a canonical id, or 0 for any other string. */
+    static long parseHalf(String id, boolean high) {
+        if (!isCanonicalId(id))
+            return 0;
+        long half = 0;
+        for (int i = high ? 0 : 19, end = high ? 18 : 36; i < end; i++) {
+            char c = id.charAt(i);
+            if (c != '-')
+                half = half << 4 | Character.digit(c, 16);
+        }
+        return half;
+    }
+
+    // Getter for ID (optional, but good practice if other parts need it)
+    public String getId() {
+        return oddId != null ? oddId : new UUID(idHigh, idLow).toString();
+    }
+
+    /**
+     * {@link DateTimeFormatter#ISO_INSTANT} of the creation time, which has
+     * millisecond precision so a restored message renders exactly as before.
+     * Done by hand, as each message is formatted once per encoding instead
+     * of once ever, outside years 0-9999 excepted.
+     */
+    String timestamp() {
+        long days = Math.floorDiv(createdAtMillis, 86_400_000L);
+        int millisOfDay = (int) Math.floorMod(createdAtMillis, 86_400_000L);
+        // Days since 0000-03-01 to a civil date, in 400-year eras
+        long z = days + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long dayOfEra = z - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153; // March is 0
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999)
+            return DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(createdAtMillis).atOffset(ZoneOffset.UTC));
+        int millis = millisOfDay % 1000;
+        int seconds = millisOfDay / 1000;
+        char[] out = new char[millis == 0 ? 20 : 24];
+        digits(out, 0, (int) year, 4);
+        out[4] = '-';
+        digits(out, 5, month, 2);
+        out[7] = '-';
+        digits(out, 8, day, 2);
+        out[10] = 'T';
+        digits(out, 11, seconds / 3600, 2);
+        out[13] = ':';
+        digits(out, 14, seconds / 60 % 60, 2);
+        out[16] = ':';
+        digits(out, 17, seconds % 60, 2);
+        if (millis != 0) { // As ISO_INSTANT, which leaves out a zero fraction
+            out[19] = '.';
+            digits(out, 20, millis, 3);
+        }
+        out[out.length - 1] = 'Z';
+        return new String(out);
+    }
+
+    private static void digits(char[] out, int at, int value, int width) {
+        for (int i = at + width - 1; i >= at; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    public String getSender() { // Good to have getters if needed elsewhere
+        return sender;
+    }
+
+    @Override
+    public String toString() { // For debugging on server
+        return "MessageObject{" +
+                "id='" + getId() + '\'' +
+                ", seq=" + seq +
+                ", sender='" + sender + '\'' +
+                ", text='" + text + '\'' +
+                ", timestamp='" + timestamp() + '\'' +
+                ", room='" + room + '\'' +
+                '}';
+    }
+
+    public String toJSON() {
+        return new String(jsonBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The message as UTF-8 JSON. Messages never change once posted, so it is
+     * encoded once and the same array is written to every response. Callers
+     * must not modify it.
+     */
+    byte[] jsonBytes() {
+        byte[] bytes = json;
+        if (bytes == null) {
+            // Racing threads encode identical bytes, so either copy can win
+            json = bytes = encodeJson();
+        }
+        return bytes;
+    }
+
+    private byte[] encodeJson() {
+        return new JsonOutput(112 + text.length())
+            .raw("{\"id\":").string(getId())
+            .raw(",\"seq\":").number(seq)
+            .raw(",\"sender\":").string(sender)
+            .raw(",\"text\":").string(text)
+            .raw(",\"timestamp\":").string(timestamp())
+            .raw(",\"room\":").string(room)
+            .raw("}")
+            .toByteArray();
+    }
+}
@@ -0,0 +1,336 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Request counters, latency histograms and gauges in the Prometheus text
+ * format. Recording is a handful of {@link LongAdder} increments, which
+ * stripe under contention, so there are no locks on the request path; the
+ * cost of adding things up is paid by whoever scrapes {@code /metrics}.
+ */
+final class Metrics {
+  // Bucket bounds exported to Prometheus, in microseconds
+  private static final long[] EXPORTED_BOUNDS_MICROS = {500, 1_000, 2_500,
+      5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000,
+      2_500_000, 5_000_000, 10_000_000};
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private final Map<String, HandlerStats> handlers = new ConcurrentHashMap<>();
+  private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+  // Exchanges inside a metrics filter, for answeredLater to find. Not an
+  // exchange attribute: before JDK 15 those were shared by the context.
+  private final Map<HttpExchange, Timing> inFlight = new ConcurrentHashMap<>();
+
+  /** Counts and times every exchange that passes, labelled {@code handler}. */
+  Filter filter(String handler) {
+    HandlerStats stats =
+        handlers.computeIfAbsent(handler, h -> new HandlerStats());
+    return new Filter() {
+      @Override
+      public void doFilter(HttpExchange exchange, Chain chain)
+          throws IOException {
+        Timing timing = new Timing(exchange, stats);
+        inFlight.put(exchange, timing);
+        try {
+          chain.doFilter(exchange);
+        } finally {
+          inFlight.remove(exchange);
+          if (!timing.deferred)
+            timing.run();
+        }
+      }
+
+      @Override
+      public String description() {
+        return "Records request counts and latency";
+      }
+    };
+  }
+
+  /**
+   * For a handler that answers {@code exchange} from another thread: the
+   * exchange is then recorded when the returned action runs, with the status
+   * it was answered with and the time taken up to then, instead of when the
+   * handler returns. Call it from the handler, and run the action once the
+   * response is sent. Outside a metrics filter the action does nothing.
+   */
+  Runnable answeredLater(HttpExchange exchange) {
+    Timing timing = inFlight.get(exchange);
+    if (timing == null)
+      return () -> {};
+    timing.deferred = true;
+    return timing;
+  }
+
+  /** A single value read at scrape time. */
+  void gauge(String name, String help, LongSupplier value) {
+    gauges.add(new Gauge(name, help, "gauge",
+        out -> out.sample(name, null, null, value.getAsLong())));
+  }
+
+  /** A monotonic total kept elsewhere and read at scrape time. */
+  void counter(String name, String help, LongSupplier value) {
+    gauges.add(new Gauge(name, help, "counter",
+        out -> out.sample(name, null, null, value.getAsLong())));
+  }
+
+  /** A gauge with one sample per label value, written by {@code samples}. */
+  void labelledGauge(String name, String help, Consumer<Samples> samples) {
+    gauges.add(new Gauge(name, help, "gauge", samples));
+  }
+
+  String render() {
+    StringBuilder sb = new StringBuilder(16 * 1024);
+    Samples out = new Samples(sb);
+    List<String> names = new ArrayList<>(handlers.keySet());
+    names.sort(null);
+
+    header(sb, "chat_http_requests_total", "Requests by handler and status.",
+        "counter");
+    for (String handler : names) {
+      AtomicReferenceArray<LongAdder> byStatus = handlers.get(handler).byStatus;
+      for (int status = 0; status < byStatus.length(); status++) {
+        LongAdder count = byStatus.get(status);
+        if (count != null) {
+          sb.append("chat_http_requests_total{handler=\"");
+          escapeLabel(sb, handler);
+          sb.append("\",status=\"").append(status == 0 ? -1 : status)
+              .append("\"} ").append(count.sum()).append('\n');
+        }
+      }
+    }
+
+    header(sb, "chat_http_request_duration_seconds",
+        "Time spent in the handler.", "histogram");
+    List<long[]> snapshots = new ArrayList<>(names.size());
+    for (String handler : names) {
+      Histogram histogram = handlers.get(handler).latency;
+      long[] counts = histogram.snapshot();
+      snapshots.add(counts);
+      long total = 0;
+      int bucket = 0;
+      for (long bound : EXPORTED_BOUNDS_MICROS) {
+        while (bucket < counts.length && Histogram.maxValue(bucket) <= bound) {
+          total += counts[bucket++];
+        }
+        bucketLine(sb, handler, seconds(bound), total);
+      }
+      while (bucket < counts.length) {
+        total += counts[bucket++];
+      }
+      bucketLine(sb, handler, "+Inf", total);
+      sb.append("chat_http_request_duration_seconds_sum{handler=\"");
+      escapeLabel(sb, handler);
+      sb.append("\"} ").append(seconds(histogram.sumMicros.sum())).append('\n');
+      sb.append("chat_http_request_duration_seconds_count{handler=\"");
+      escapeLabel(sb, handler);
+      sb.append("\"} ").append(total).append('\n');
+    }
+
+    // Read off the full-resolution buckets, so within about 12%
+    header(sb, "chat_http_request_duration_quantile_seconds",
+        "Latency quantiles from the histogram.", "gauge");
+    for (int i = 0; i < names.size(); i++) {
+      long[] counts = snapshots.get(i);
+      for (double q : QUANTILES) {
+        long micros = Histogram.quantile(counts, q);
+        if (micros < 0)
+          continue;
+        sb.append("chat_http_request_duration_quantile_seconds{handler=\"");
+        escapeLabel(sb, names.get(i));
+        sb.append("\",quantile=\"").append(q).append("\"} ")
+            .append(seconds(micros)).append('\n');
+      }
+    }
+
+    for (Gauge gauge : gauges) {
+      header(sb, gauge.name, gauge.help, gauge.type);
+      gauge.samples.accept(out);
+    }
+    return sb.toString();
+  }
+
+  private static void header(
+      StringBuilder sb, String name, String help, String type) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void bucketLine(
+      StringBuilder sb, String handler, String le, long count) {
+    sb.append("chat_http_request_duration_seconds_bucket{handler=\"");
+    escapeLabel(sb, handler);
+    sb.append("\",le=\"").append(le).append("\"} ").append(count).append('\n');
+  }
+
+  private static String seconds(long micros) {
+    return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+  }
+
+  private static void escapeLabel(StringBuilder sb, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        sb.append('\\').append(c);
+      } else if (c == '\n') {
+        sb.append("\\n");
+      } else {
+        sb.append(c);
+      }
+    }
+  }
+
+  /** Writes the sample lines of one metric family. */
+  static final class Samples {
+    private final StringBuilder sb;
+
+    private Samples(StringBuilder sb) {
+      this.sb = sb;
+    }
+
+    /** A null label writes an unlabelled sample. */
+    void sample(String name, String label, String labelValue, long value) {
+      sb.append(name);
+      if (label != null) {
+        sb.append('{').append(label).append("=\"");
+        escapeLabel(sb, labelValue);
+        sb.append("\"}");
+      }
+      sb.append(' ').append(value).append('\n');
+    }
+  }
+
+  private static final class Gauge {
+    final String name;
+    final String help;
+    final String type;
+    final Consumer<Samples> samples;
+
+    Gauge(String name, String help, String type, Consumer<Samples> samples) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+      this.samples = samples;
+    }
+  }
+
+  /** One exchange's start, recorded once when run. */
+  private static final class Timing implements Runnable {
+    private final HttpExchange exchange;
+    private final HandlerStats stats;
+    private final long started = System.nanoTime();
+    private final AtomicBoolean recorded = new AtomicBoolean();
+    volatile boolean deferred;
+
+    Timing(HttpExchange exchange, HandlerStats stats) {
+      this.exchange = exchange;
+      this.stats = stats;
+    }
+
+    @Override
+    public void run() {
+      if (recorded.compareAndSet(false, true))
+        stats.record(exchange.getResponseCode(),
+            (System.nanoTime() - started) / 1_000);
+    }
+  }
+
+  private static final class HandlerStats {
+    // Indexed by status code, slot 0 for "no response yet"; filled lazily
+    final AtomicReferenceArray<LongAdder> byStatus =
+        new AtomicReferenceArray<>(600);
+    final Histogram latency = new Histogram();
+
+    void record(int status, long micros) {
+      int slot = status > 0 && status < 600 ? status : 0;
+      LongAdder count = byStatus.get(slot);
+      if (count == null) {
+        byStatus.compareAndSet(slot, null, new LongAdder());
+        count = byStatus.get(slot);
+      }
+      count.increment();
+      latency.record(micros);
+    }
+  }
+
+  /**
+   * Log-linear buckets in the style of HdrHistogram: exact below 8us, then
+   * each power of two split into 8 sub-buckets, so any value is within 12.5%
+   * of its bucket's bounds. Covers up to about 35 minutes.
+   */
+  static final class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 31;
+
+    private final LongAdder[] buckets =
+        new LongAdder[(MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS];
+    final LongAdder sumMicros = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long micros) {
+      long value = Math.max(0, micros);
+      buckets[Math.min(index(value), buckets.length - 1)].increment();
+      sumMicros.add(value);
+    }
+
+    long[] snapshot() {
+      long[] counts = new long[buckets.length];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = buckets[i].sum();
+      }
+      return counts;
+    }
+
+    static int index(long value) {
+      if (value < SUB_BUCKETS)
+        return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Largest value that lands in {@code index}. */
+    static long maxValue(int index) {
+      if (index < SUB_BUCKETS)
+        return index;
+      int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+      int sub = index % SUB_BUCKETS;
+      return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /** Upper bound of the bucket holding quantile {@code q}, or -1 if empty. */
+    static long quantile(long[] counts, double q) {
+      long total = 0;
+      for (long count : counts) {
+        total += count;
+      }
+      if (total == 0)
+        return -1;
+      long rank = (long) Math.ceil(q * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank)
+          return maxValue(i);
+      }
+      return maxValue(counts.length - 1);
+    }
+  }
+}
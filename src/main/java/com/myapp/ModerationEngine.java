@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Case-insensitive forbidden-word matcher built as an Aho-Corasick automaton,
+ * so censoring a message is one pass over its characters no matter how many
+ * words are listed. The automaton is immutable; reloading builds a new one
+ * and swaps it in.
+ */
+class ModerationEngine {
+  private static final Log LOG = Log.named("ModerationEngine");
+  private final String replacement;
+  private final Path wordsFile;
+  private volatile Automaton automaton;
+  private volatile long wordsFileModified;
+  private final LongAdder hits = new LongAdder();
+
+  /**
+   * Uses the words in {@code wordsFile} when it is given, one per line with
+   * '#' comments, and {@code defaultWords} otherwise.
+   */
+  ModerationEngine(Collection<String> defaultWords, String replacement,
+      Path wordsFile) throws IOException {
+    this.replacement = replacement;
+    this.wordsFile = wordsFile;
+    if (wordsFile != null) {
+      reload();
+    } else {
+      this.automaton = new Automaton(defaultWords);
+    }
+  }
+
+  /** Texts found to contain a forbidden word since startup. */
+  long hits() {
+    return hits.sum();
+  }
+
+  /** Rebuilds the automaton from the word-list file. */
+  void reload() throws IOException {
+    long modified = Files.getLastModifiedTime(wordsFile).toMillis();
+    List<String> words = new ArrayList<>();
+    for (String line : Files.readAllLines(wordsFile, StandardCharsets.UTF_8)) {
+      String word = line.trim();
+      if (!word.isEmpty() && !word.startsWith("#"))
+        words.add(word);
+    }
+    automaton = new Automaton(words);
+    wordsFileModified = modified;
+    LOG.info("moderation.loaded", "words", words.size(), "file", wordsFile);
+  }
+
+  /** Reloads the word-list file whenever its modification time changes. */
+  void watch(long intervalMillis) {
+    if (wordsFile == null)
+      return;
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread t = new Thread(r, "moderation-reload");
+          t.setDaemon(true);
+          return t;
+        });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        if (Files.getLastModifiedTime(wordsFile).toMillis() != wordsFileModified)
+          reload();
+      } catch (IOException e) {
+        LOG.warn("moderation.reload.failed", "error", e.getMessage(),
+            "keeping", "previous word list");
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Replaces every forbidden word, overlapping hits merged, in one pass. */
+  String censor(String text) {
+    return censor(automaton, text);
+  }
+
+  /**
+   * {@link #censor} for each of {@code texts}, all against the same word list
+   * even if it is reloaded meanwhile.
+   */
+  List<String> censorAll(List<String> texts) {
+    Automaton a = automaton;
+    List<String> censored = new ArrayList<>(texts.size());
+    for (String text : texts) {
+      censored.add(censor(a, text));
+    }
+    return censored;
+  }
+
+  private String censor(Automaton a, String text) {
+    // Matched spans as a stack ordered by end; later spans may swallow earlier
+    int[] starts = null;
+    int[] ends = null;
+    int spans = 0;
+    int state = 0;
+    for (int i = 0; i < text.length(); i++) {
+      state = a.step(state, Character.toLowerCase(text.charAt(i)));
+      int length = a.matchLength[state];
+      if (length == 0)
+        continue;
+      int start = i - length + 1;
+      if (starts == null) {
+        starts = new int[8];
+        ends = new int[8];
+      }
+      while (spans > 0 && start <= ends[spans - 1]) {
+        start = Math.min(start, starts[--spans]);
+      }
+      if (spans == starts.length) {
+        starts = Arrays.copyOf(starts, spans * 2);
+        ends = Arrays.copyOf(ends, spans * 2);
+      }
+      starts[spans] = start;
+      ends[spans++] = i;
+    }
+    if (spans == 0)
+      return text;
+    hits.increment();
+    StringBuilder sb = new StringBuilder(text.length() + spans * 8);
+    int copied = 0;
+    for (int s = 0; s < spans; s++) {
+      sb.append(text, copied, starts[s]).append(replacement);
+      copied = ends[s] + 1;
+    }
+    return sb.append(text, copied, text.length()).toString();
+  }
+
+  boolean containsForbidden(String text) {
+    Automaton a = automaton;
+    int state = 0;
+    for (int i = 0; i < text.length(); i++) {
+      state = a.step(state, Character.toLowerCase(text.charAt(i)));
+      if (a.matchLength[state] > 0) {
+        hits.increment();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Trie over lower-cased words with failure links. Each state keeps its
+   * outgoing edges as a sorted char array so thousands of words stay compact,
+   * and the length of the longest word ending there, failure chain included.
+   */
+  private static final class Automaton {
+    final char[][] edgeChars;
+    final int[][] edgeTargets;
+    final int[] fail;
+    final int[] matchLength;
+
+    Automaton(Collection<String> words) {
+      List<char[]> chars = new ArrayList<>();
+      List<int[]> targets = new ArrayList<>();
+      List<Integer> lengths = new ArrayList<>();
+      chars.add(new char[0]);
+      targets.add(new int[0]);
+      lengths.add(0);
+      for (String word : words) {
+        String term = word.trim();
+        if (term.isEmpty())
+          continue;
+        int state = 0;
+        for (int i = 0; i < term.length(); i++) {
+          char c = Character.toLowerCase(term.charAt(i));
+          int next = find(chars.get(state), targets.get(state), c);
+          if (next < 0) {
+            next = chars.size();
+            chars.add(new char[0]);
+            targets.add(new int[0]);
+            lengths.add(0);
+            insertEdge(chars, targets, state, c, next);
+          }
+          state = next;
+        }
+        lengths.set(state, Math.max(lengths.get(state), term.length()));
+      }
+
+      int n = chars.size();
+      edgeChars = chars.toArray(new char[n][]);
+      edgeTargets = targets.toArray(new int[n][]);
+      fail = new int[n];
+      matchLength = new int[n];
+      for (int i = 0; i < n; i++) {
+        matchLength[i] = lengths.get(i);
+      }
+
+      // Breadth-first, so every failure target is finished before its users
+      int[] queue = new int[n];
+      int head = 0;
+      int tail = 0;
+      for (int child : edgeTargets[0]) {
+        queue[tail++] = child;
+      }
+      while (head < tail) {
+        int state = queue[head++];
+        for (int e = 0; e < edgeChars[state].length; e++) {
+          char c = edgeChars[state][e];
+          int child = edgeTargets[state][e];
+          fail[child] = step(fail[state], c);
+          matchLength[child] =
+              Math.max(matchLength[child], matchLength[fail[child]]);
+          queue[tail++] = child;
+        }
+      }
+    }
+
+    int step(int state, char c) {
+      while (true) {
+        int next = find(edgeChars[state], edgeTargets[state], c);
+        if (next >= 0)
+          return next;
+        if (state == 0)
+          return 0;
+        state = fail[state];
+      }
+    }
+
+    private static int find(char[] keys, int[] targets, char c) {
+      int i = Arrays.binarySearch(keys, c);
+      return i >= 0 ? targets[i] : -1;
+    }
+
+    private static void insertEdge(List<char[]> chars, List<int[]> targets,
+        int state, char c, int target) {
+      char[] keys = chars.get(state);
+      int[] values = targets.get(state);
+      int at = -Arrays.binarySearch(keys, c) - 1;
+      char[] newKeys = new char[keys.length + 1];
+      int[] newValues = new int[values.length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, at);
+      System.arraycopy(values, 0, newValues, 0, at);
+      newKeys[at] = c;
+      newValues[at] = target;
+      System.arraycopy(keys, at, newKeys, at + 1, keys.length - at);
+      System.arraycopy(values, at, newValues, at + 1, values.length - at);
+      chars.set(state, newKeys);
+      targets.set(state, newValues);
+    }
+  }
+}
@@ -0,0 +1,1476 @@
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HTTP/1.1 server on NIO selectors, behind the same {@link HttpServer} API
+ * as the JDK one so that handlers and filters run on it unchanged. Selected
+ * with {@code chat.transport=nio}.
+ *
+ * <p>One acceptor thread hands connections round-robin to
+ * {@code chat.nio.selectors} event loops, which only read, parse and write;
+ * handlers run on the executor, as with the JDK server. Reads and responses
+ * go through direct buffers of {@code chat.nio.bufferBytes} taken from a
+ * shared pool, and a connection holds a read buffer only while it has unparsed
+ * bytes, so idle keep-alive connections cost no buffer at all.
+ *
+ * <p>Connections are kept alive by default. Pipelined requests are read ahead
+ * but answered one at a time in order: the next is parsed out of the buffer
+ * once the previous exchange closes. Response buffers are queued per
+ * connection and written with one gathering write, from the handler thread
+ * when the socket takes it all, otherwise by the loop once it is writable; a
+ * handler that gets more than {@link #MAX_PENDING_BYTES} ahead of the client
+ * waits. Request bodies must have a {@code Content-Length} of at most
+ * {@code chat.nio.maxBodyBytes}, and request headers must fit in one buffer.
+ *
+ * <p>A request body is copied out of the read buffers into an array that
+ * grows as the bytes arrive, so a client that only announces a length holds
+ * nothing. Bodies being read or handled may hold at most
+ * {@code chat.nio.maxBufferedBodyBytes} between them, and at most
+ * {@code chat.nio.maxConnections} connections may be open; past either, the
+ * server answers 503 and closes.
+ */
+final class NioHttpServer extends HttpServer {
+  private static final Log LOG = Log.named("NioHttpServer");
+  private static final int BUFFER_BYTES =
+      ServerConfig.getInt("chat.nio.bufferBytes", 16 * 1024);
+  private static final int MAX_BODY_BYTES =
+      ServerConfig.getInt("chat.nio.maxBodyBytes", 1 << 20);
+  private static final long IDLE_TIMEOUT_MS =
+      ServerConfig.getLong("chat.nio.idleTimeoutMs", 60_000);
+  private static final int SELECTORS = ServerConfig.getInt(
+      "chat.nio.selectors", Runtime.getRuntime().availableProcessors());
+  private static final int POOLED_BUFFERS =
+      ServerConfig.getInt("chat.nio.pooledBuffers", 1024);
+  private static final long MAX_PENDING_BYTES = 1 << 20;
+  // Written bytes are batched up to this before a write is forced
+  private static final long WRITE_BATCH_BYTES = 64 * 1024;
+  private static final int CHUNK_HEAD = 8; // Six hex digits and CRLF
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] LAST_CHUNK =
+      "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] CONTINUE =
+      "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NO_BODY = new byte[0];
+  private static final byte[] HEX = "0123456789abcdef".getBytes(
+      StandardCharsets.US_ASCII);
+  private static final DateTimeFormatter HTTP_DATE =
+      DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+  private static volatile CachedDate date = new CachedDate(0, "");
+
+  private final BufferPool pool = new BufferPool(BUFFER_BYTES, POOLED_BUFFERS);
+  // Read per server rather than per class, so a test can lower them
+  private final long maxBufferedBodyBytes =
+      ServerConfig.getLong("chat.nio.maxBufferedBodyBytes", 64L << 20);
+  private final int maxConnections =
+      ServerConfig.getInt("chat.nio.maxConnections", 10_000);
+  // Longest path first, so the first prefix match is the JDK's choice
+  private final List<Context> contexts = new CopyOnWriteArrayList<>();
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicInteger activeExchanges = new AtomicInteger();
+  // Bytes of request body arrays, from the first byte to the exchange's end
+  private final AtomicLong bufferedBodyBytes = new AtomicLong();
+  private ServerSocketChannel acceptor;
+  private Thread acceptorThread;
+  private Loop[] loops;
+  private Executor executor;
+  private ExecutorService ownExecutor; // When none was set
+  private volatile boolean started;
+
+  private NioHttpServer() {}
+
+  /** Like {@link HttpServer#create(InetSocketAddress, int)}. */
+  static NioHttpServer open(InetSocketAddress address, int backlog)
+      throws IOException {
+    NioHttpServer server = new NioHttpServer();
+    if (address != null)
+      server.bind(address, backlog);
+    return server;
+  }
+
+  /** Open client connections. */
+  int connections() {
+    return connections.get();
+  }
+
+  /** Bytes held by request bodies being read or handled. */
+  long bufferedBodyBytes() {
+    return bufferedBodyBytes.get();
+  }
+
+  @Override
+  public void bind(InetSocketAddress address, int backlog) throws IOException {
+    if (acceptor != null)
+      throw new BindException("NioHttpServer already bound");
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    try {
+      channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      channel.bind(address, backlog);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    acceptor = channel;
+  }
+
+  @Override
+  public synchronized void start() {
+    if (acceptor == null || started)
+      throw new IllegalStateException("server not bound or already started");
+    if (executor == null) {
+      // The JDK runs these on its dispatcher; ours must not block a loop
+      ownExecutor = Executors.newSingleThreadExecutor(
+          r -> new Thread(r, "nio-handler"));
+      executor = ownExecutor;
+    }
+    loops = new Loop[Math.max(1, SELECTORS)];
+    for (int i = 0; i < loops.length; i++) {
+      try {
+        loops[i] = new Loop(Selector.open(), "nio-loop-" + (i + 1));
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot open selector", e);
+      }
+      loops[i].thread.start();
+    }
+    acceptorThread = new Thread(this::accept, "nio-acceptor");
+    acceptorThread.start();
+    started = true;
+    LOG.info("transport.started", "transport", "nio", "selectors",
+        loops.length, "bufferBytes", BUFFER_BYTES, "maxBodyBytes",
+        MAX_BODY_BYTES);
+  }
+
+  @Override
+  public synchronized void setExecutor(Executor executor) {
+    if (started)
+      throw new IllegalStateException("server already started");
+    this.executor = executor;
+  }
+
+  @Override
+  public Executor getExecutor() {
+    return ownExecutor != null ? null : executor;
+  }
+
+  @Override
+  public void stop(int delaySeconds) {
+    if (delaySeconds < 0)
+      throw new IllegalArgumentException("negative delay parameter");
+    try {
+      acceptor.close();
+    } catch (IOException e) {
+      LOG.debug("acceptor.closeFailed", "error", e.getMessage());
+    }
+    long deadline = System.currentTimeMillis() + delaySeconds * 1000L;
+    try {
+      while (activeExchanges.get() > 0
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20);
+      }
+      if (loops != null) {
+        for (Loop loop : loops) {
+          loop.running = false;
+          loop.selector.wakeup();
+        }
+        for (Loop loop : loops) {
+          loop.thread.join();
+        }
+      }
+      if (acceptorThread != null)
+        acceptorThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (ownExecutor != null)
+      ownExecutor.shutdownNow();
+  }
+
+  @Override
+  public HttpContext createContext(String path, HttpHandler handler) {
+    if (path == null || !path.startsWith("/"))
+      throw new IllegalArgumentException("Illegal value for path");
+    synchronized (contexts) {
+      for (Context context : contexts) {
+        if (context.path.equals(path))
+          throw new IllegalArgumentException("cannot add context to list");
+      }
+      Context context = new Context(path, handler);
+      int i = 0;
+      while (i < contexts.size() && contexts.get(i).path.length() >= path.length()) {
+        i++;
+      }
+      contexts.add(i, context);
+      return context;
+    }
+  }
+
+  @Override
+  public HttpContext createContext(String path) {
+    return createContext(path, null);
+  }
+
+  @Override
+  public void removeContext(String path) {
+    synchronized (contexts) {
+      if (!contexts.removeIf(context -> context.path.equals(path)))
+        throw new IllegalArgumentException("cannot remove element from list");
+    }
+  }
+
+  @Override
+  public void removeContext(HttpContext context) {
+    synchronized (contexts) {
+      if (!contexts.remove(context))
+        throw new IllegalArgumentException("cannot remove element from list");
+    }
+  }
+
+  @Override
+  public InetSocketAddress getAddress() {
+    try {
+      return (InetSocketAddress) acceptor.getLocalAddress();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private Context contextFor(String path) {
+    for (Context context : contexts) {
+      if (path.startsWith(context.path))
+        return context;
+    }
+    return null;
+  }
+
+  private void accept() {
+    int next = 0;
+    while (acceptor.isOpen()) {
+      SocketChannel channel;
+      try {
+        channel = acceptor.accept();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      } catch (ClosedChannelException e) {
+        return;
+      } catch (IOException e) {
+        // Usually out of file descriptors; back off instead of spinning
+        LOG.warn("accept.failed", "error", e.getMessage());
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        continue;
+      }
+      if (connections.get() >= maxConnections) {
+        refuse(channel);
+        continue;
+      }
+      Loop loop = loops[next];
+      next = (next + 1) % loops.length;
+      loop.execute(() -> loop.register(channel));
+    }
+  }
+
+  // A fresh socket's send buffer takes this whole, so it cannot block
+  private void refuse(SocketChannel channel) {
+    if (LOG.sampled(Log.Level.WARN, 100)) // A flood would flood the log
+      LOG.warn("connection.refused", "reason", "too many connections",
+          "limit", maxConnections);
+    try {
+      channel.write(ByteBuffer.wrap(failure(503, "Too many connections.")));
+    } catch (IOException ignored) {
+      // Closing anyway
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOG.debug("connection.closeFailed", "error", e.getMessage());
+    }
+  }
+
+  /** A complete response for a request this class refuses itself. */
+  private static byte[] failure(int status, String message) {
+    byte[] body = ("{\"success\":false,\"message\":\""
+        + SimpleChatServer.escapeJsonString(message) + "\"}")
+        .getBytes(StandardCharsets.UTF_8);
+    String head = "HTTP/1.1 " + status + " " + reason(status) + "\r\n"
+        + "Date: " + httpDate() + "\r\n"
+        + "Content-Type: application/json;charset=utf-8\r\n"
+        + "Content-Length: " + body.length + "\r\n"
+        + (status == 503 ? "Retry-After: 1\r\n" : "")
+        + "Connection: close\r\n\r\n";
+    byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+    byte[] response = Arrays.copyOf(headBytes, headBytes.length + body.length);
+    System.arraycopy(body, 0, response, headBytes.length, body.length);
+    return response;
+  }
+
+  /**
+   * Grows {@code request}'s body to take {@code needed} bytes, charging the
+   * growth to the server-wide budget; false, changing nothing, if over it.
+   */
+  private boolean growBody(Request request, int needed) {
+    if (needed <= request.body.length)
+      return true;
+    int length = (int) Math.min(request.contentLength, Math.max(needed,
+        Math.max(BUFFER_BYTES, request.body.length * 2L)));
+    int extra = length - request.body.length;
+    if (bufferedBodyBytes.addAndGet(extra) > maxBufferedBodyBytes) {
+      bufferedBodyBytes.addAndGet(-extra);
+      return false;
+    }
+    request.body = Arrays.copyOf(request.body, length);
+    request.charged += extra;
+    return true;
+  }
+
+  private void releaseBody(Request request) {
+    if (request != null && request.charged > 0) {
+      bufferedBodyBytes.addAndGet(-request.charged);
+      request.charged = 0;
+    }
+  }
+
+  private static String httpDate() {
+    long second = System.currentTimeMillis() / 1000;
+    CachedDate cached = date;
+    if (cached.second != second) {
+      cached = new CachedDate(second,
+          HTTP_DATE.format(Instant.ofEpochSecond(second)));
+      date = cached;
+    }
+    return cached.value;
+  }
+
+  private static String reason(int status) {
+    switch (status) {
+      case 100: return "Continue";
+      case 200: return "OK";
+      case 201: return "Created";
+      case 202: return "Accepted";
+      case 204: return "No Content";
+      case 206: return "Partial Content";
+      case 301: return "Moved Permanently";
+      case 302: return "Found";
+      case 303: return "See Other";
+      case 304: return "Not Modified";
+      case 307: return "Temporary Redirect";
+      case 400: return "Bad Request";
+      case 401: return "Unauthorized";
+      case 403: return "Forbidden";
+      case 404: return "Not Found";
+      case 405: return "Method Not Allowed";
+      case 409: return "Conflict";
+      case 411: return "Length Required";
+      case 413: return "Payload Too Large";
+      case 415: return "Unsupported Media Type";
+      case 429: return "Too Many Requests";
+      case 431: return "Request Header Fields Too Large";
+      case 500: return "Internal Server Error";
+      case 501: return "Not Implemented";
+      case 503: return "Service Unavailable";
+      case 505: return "HTTP Version Not Supported";
+      default: return "";
+    }
+  }
+
+  private static final class CachedDate {
+    final long second;
+    final String value;
+
+    CachedDate(long second, String value) {
+      this.second = second;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Direct buffers of one size, reused across connections. Buffers past the
+   * pool's capacity are left to the garbage collector, so one that is never
+   * released, say by an exchange on a dead connection, is not a leak.
+   */
+  static final class BufferPool {
+    private final int size;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    BufferPool(int size, int capacity) {
+      this.size = size;
+      this.free = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /** A cleared buffer, from the pool when one is free. */
+    ByteBuffer take() {
+      ByteBuffer buffer = free.poll();
+      if (buffer == null)
+        return ByteBuffer.allocateDirect(size);
+      buffer.clear();
+      return buffer;
+    }
+
+    /** Returns {@code buffer}; ones this pool did not hand out are dropped. */
+    void release(ByteBuffer buffer) {
+      if (buffer.isDirect() && buffer.capacity() == size)
+        free.offer(buffer);
+    }
+  }
+
+  /** One selector and the connections registered with it. */
+  private final class Loop implements Runnable {
+    final Selector selector;
+    final Thread thread;
+    final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    volatile boolean running = true;
+
+    Loop(Selector selector, String name) {
+      this.selector = selector;
+      this.thread = new Thread(this, name);
+    }
+
+    /** Runs {@code task} on this loop's thread. */
+    void execute(Runnable task) {
+      tasks.add(task);
+      if (Thread.currentThread() != thread)
+        selector.wakeup();
+    }
+
+    void register(SocketChannel channel) {
+      Connection connection = new Connection(channel, this);
+      try {
+        connection.key = channel.register(selector, SelectionKey.OP_READ,
+            connection);
+        connections.incrementAndGet();
+      } catch (IOException e) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+          // Nothing was registered
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      long nextSweep = System.currentTimeMillis() + 1_000;
+      while (running) {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+        try {
+          selector.select(1_000);
+        } catch (IOException e) {
+          LOG.error("selector.failed", "thread", thread.getName(), "error",
+              e.getMessage());
+          break;
+        }
+        for (SelectionKey key : selector.selectedKeys()) {
+          Connection connection = (Connection) key.attachment();
+          if (!key.isValid())
+            continue;
+          if (key.isWritable())
+            connection.onWritable();
+          if (key.isValid() && key.isReadable())
+            connection.onReadable();
+        }
+        selector.selectedKeys().clear();
+        long now = System.currentTimeMillis();
+        if (now >= nextSweep) {
+          sweep(now);
+          nextSweep = now + 1_000;
+        }
+      }
+      for (SelectionKey key : selector.keys()) {
+        ((Connection) key.attachment()).closeNow();
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        LOG.debug("selector.closeFailed", "error", e.getMessage());
+      }
+    }
+
+    // Connections waiting on a handler, like parked subscribers, stay open
+    private void sweep(long now) {
+      if (IDLE_TIMEOUT_MS <= 0)
+        return;
+      for (SelectionKey key : selector.keys()) {
+        Connection connection = (Connection) key.attachment();
+        if (!connection.busy && now - connection.lastActive > IDLE_TIMEOUT_MS)
+          connection.closeNow();
+      }
+    }
+  }
+
+  /**
+   * A client connection. Reading, parsing and {@code busy} belong to the
+   * loop thread; the write queue is shared with handler threads and guarded
+   * by {@code writeLock}.
+   */
+  private final class Connection {
+    final SocketChannel channel;
+    final Loop loop;
+    final InetSocketAddress remote;
+    final InetSocketAddress local;
+    SelectionKey key;
+
+    // Loop thread only
+    private ByteBuffer in; // Write mode; null when it would be empty
+    private int scanned; // Bytes of in already searched for the end of head
+    private Request request; // Parsed head still waiting for its body
+    boolean busy; // An exchange is in progress, or the connection is ending
+    private boolean inputClosed;
+    private boolean channelClosed;
+    long lastActive = System.currentTimeMillis();
+
+    private final Object writeLock = new Object();
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    private ByteBuffer[] gather = new ByteBuffer[16];
+    private long pendingBytes;
+    private boolean writeInterest; // The loop will finish the queue
+    private boolean closeWhenWritten;
+    private volatile boolean closed;
+
+    Connection(SocketChannel channel, Loop loop) {
+      this.channel = channel;
+      this.loop = loop;
+      this.remote = address(true);
+      this.local = address(false);
+    }
+
+    private InetSocketAddress address(boolean remote) {
+      try {
+        return (InetSocketAddress) (remote ? channel.getRemoteAddress()
+                                           : channel.getLocalAddress());
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    void onReadable() {
+      if (in == null)
+        in = pool.take();
+      if (!in.hasRemaining()) {
+        // Pipelined requests filled the buffer; wait for the current one
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        return;
+      }
+      int n;
+      try {
+        n = channel.read(in);
+      } catch (IOException e) {
+        closeNow();
+        return;
+      }
+      if (n < 0) {
+        // Half-close: still answer whatever was sent before it
+        inputClosed = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      } else {
+        lastActive = System.currentTimeMillis();
+      }
+      if (!busy) {
+        process();
+      } else if (in.position() == in.capacity()) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      }
+      releaseIfEmpty();
+    }
+
+    /** Parses and dispatches the next complete request, if there is one. */
+    private void process() {
+      while (!busy && !channelClosed) {
+        if (request == null) {
+          if (in == null || !skipEmptyLines())
+            break;
+          int end = headEnd();
+          if (end < 0) {
+            if (!in.hasRemaining())
+              fail(431, "Request headers too large.");
+            break;
+          }
+          byte[] head = new byte[end];
+          ByteBuffer view = in.duplicate();
+          view.flip();
+          view.get(head);
+          consume(end);
+          try {
+            request = Request.parse(head);
+          } catch (BadRequest e) {
+            fail(e.status, e.getMessage());
+            return;
+          }
+          if (request.contentLength > MAX_BODY_BYTES) {
+            fail(413, "Request body too large.");
+            return;
+          }
+          if (request.expectContinue && request.contentLength > 0
+              && in.position() < request.contentLength)
+            send(ByteBuffer.wrap(CONTINUE));
+        }
+        if (request.filled < request.contentLength) {
+          int n = in == null ? 0 : (int) Math.min(in.position(),
+              request.contentLength - request.filled);
+          if (n > 0) {
+            if (!growBody(request, request.filled + n)) {
+              if (LOG.sampled(Log.Level.WARN, 100))
+                LOG.warn("body.refused", "reason", "buffered body limit",
+                    "limit", maxBufferedBodyBytes);
+              fail(503, "Server is busy reading other requests.");
+              return;
+            }
+            ByteBuffer view = in.duplicate();
+            view.flip();
+            view.get(request.body, request.filled, n);
+            request.filled += n;
+            consume(n);
+          }
+          if (request.filled < request.contentLength)
+            break;
+        }
+        Request ready = request;
+        request = null;
+        dispatch(ready);
+      }
+      if (!busy && inputClosed) {
+        busy = true;
+        closeAfterWritten();
+      }
+    }
+
+    // Clients may send a CRLF after a request body; RFC 9112 says ignore it
+    private boolean skipEmptyLines() {
+      int skip = 0;
+      while (skip < in.position()) {
+        byte b = in.get(skip);
+        if (b != '\r' && b != '\n')
+          break;
+        skip++;
+      }
+      if (skip > 0)
+        consume(skip);
+      return in.position() > 0;
+    }
+
+    private int headEnd() {
+      int limit = in.position();
+      for (int i = Math.max(0, scanned - 3); i + 3 < limit; i++) {
+        if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r'
+            && in.get(i + 3) == '\n')
+          return i + 4;
+      }
+      scanned = limit;
+      return -1;
+    }
+
+    private void consume(int n) {
+      in.flip();
+      in.position(n);
+      in.compact();
+      scanned = 0;
+    }
+
+    private void releaseIfEmpty() {
+      if (in != null && in.position() == 0) {
+        pool.release(in);
+        in = null;
+      }
+    }
+
+    private void dispatch(Request request) {
+      busy = true;
+      URI uri;
+      try {
+        uri = new URI(request.target);
+      } catch (URISyntaxException e) {
+        releaseBody(request);
+        fail(400, "Bad request target.");
+        return;
+      }
+      Context context = contextFor(uri.getPath() == null ? "/" : uri.getPath());
+      if (context == null || context.handler == null) {
+        releaseBody(request);
+        fail(404, "No context found for request.");
+        return;
+      }
+      Exchange exchange = new Exchange(this, request, uri, context);
+      activeExchanges.incrementAndGet();
+      executor.execute(exchange::run);
+    }
+
+    /** Answers a request this class rejected itself, then closes. */
+    private void fail(int status, String message) {
+      busy = true;
+      releaseBody(request);
+      request = null;
+      if (key.isValid())
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      send(ByteBuffer.wrap(failure(status, message)));
+      closeAfterWritten();
+    }
+
+    // For the loop's own responses, which are never worth waiting on
+    private void send(ByteBuffer buffer) {
+      try {
+        enqueue(buffer, true);
+      } catch (IOException e) {
+        closeNow();
+      }
+    }
+
+    /** Runs on the loop once an exchange ends and the connection stays. */
+    private void resume() {
+      busy = false;
+      if (channelClosed)
+        return;
+      lastActive = System.currentTimeMillis();
+      if (!inputClosed)
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+      process();
+      releaseIfEmpty();
+    }
+
+    void exchangeDone(boolean keepAlive) {
+      activeExchanges.decrementAndGet();
+      if (keepAlive) {
+        loop.execute(this::resume);
+      } else {
+        closeAfterWritten();
+      }
+    }
+
+    /**
+     * Queues a flipped buffer for writing. With {@code now}, or when enough
+     * is queued, it is written straight away from the calling thread; what
+     * the socket does not take is left to the loop. A null buffer only
+     * pushes out what is queued.
+     */
+    void enqueue(ByteBuffer buffer, boolean now) throws IOException {
+      boolean wait;
+      synchronized (writeLock) {
+        if (closed) {
+          if (buffer != null)
+            pool.release(buffer);
+          throw new IOException("Connection closed");
+        }
+        if (buffer != null) {
+          out.add(buffer);
+          pendingBytes += buffer.remaining();
+        }
+        if (writeInterest || out.isEmpty()
+            || (!now && pendingBytes < WRITE_BATCH_BYTES))
+          return;
+        try {
+          writeQueued();
+        } catch (IOException e) {
+          abort();
+          throw e;
+        }
+        if (!out.isEmpty()) {
+          writeInterest = true;
+          loop.execute(this::watchWritable);
+        }
+        wait = pendingBytes > MAX_PENDING_BYTES
+            && Thread.currentThread() != loop.thread;
+      }
+      if (wait)
+        awaitDrain();
+    }
+
+    private void awaitDrain() throws IOException {
+      synchronized (writeLock) {
+        while (!closed && pendingBytes > MAX_PENDING_BYTES / 2) {
+          try {
+            writeLock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on client");
+          }
+        }
+        if (closed)
+          throw new IOException("Connection closed");
+      }
+    }
+
+    // Holding writeLock
+    private void writeQueued() throws IOException {
+      while (!out.isEmpty()) {
+        if (gather.length < Math.min(1024, out.size()))
+          gather = new ByteBuffer[Math.min(1024, out.size() * 2)];
+        int count = 0;
+        for (ByteBuffer buffer : out) {
+          if (count == gather.length)
+            break;
+          gather[count++] = buffer;
+        }
+        long written = channel.write(gather, 0, count);
+        pendingBytes -= written;
+        while (!out.isEmpty() && !out.peek().hasRemaining()) {
+          pool.release(out.poll());
+        }
+        Arrays.fill(gather, 0, count, null);
+        if (written == 0)
+          return;
+      }
+    }
+
+    /** Writes what is queued from the loop, unless something else does. */
+    void pushSoon() {
+      loop.execute(() -> {
+        if (!channelClosed)
+          send(null);
+      });
+    }
+
+    private void watchWritable() {
+      if (!channelClosed && key.isValid())
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    void onWritable() {
+      boolean close = false;
+      synchronized (writeLock) {
+        try {
+          writeQueued();
+        } catch (IOException e) {
+          close = true;
+        }
+        if (!close && out.isEmpty()) {
+          writeInterest = false;
+          key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+          close = closeWhenWritten;
+        }
+        if (pendingBytes <= MAX_PENDING_BYTES / 2)
+          writeLock.notifyAll();
+      }
+      if (close)
+        closeNow();
+    }
+
+    /** Closes once the queued response bytes have gone out. */
+    void closeAfterWritten() {
+      synchronized (writeLock) {
+        if (out.isEmpty()) {
+          loop.execute(this::closeNow);
+          return;
+        }
+        closeWhenWritten = true;
+        if (!writeInterest) {
+          writeInterest = true;
+          loop.execute(this::watchWritable);
+        }
+      }
+    }
+
+    /** Closes from any thread, dropping whatever is still queued. */
+    void abort() {
+      markClosed();
+      loop.execute(this::closeNow);
+    }
+
+    private void markClosed() {
+      synchronized (writeLock) {
+        if (closed)
+          return;
+        closed = true;
+        for (ByteBuffer buffer : out) {
+          pool.release(buffer);
+        }
+        out.clear();
+        pendingBytes = 0;
+        writeLock.notifyAll();
+      }
+    }
+
+    // Loop thread only
+    void closeNow() {
+      markClosed();
+      if (channelClosed)
+        return;
+      channelClosed = true;
+      busy = true;
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.debug("connection.closeFailed", "error", e.getMessage());
+      }
+      if (in != null) {
+        pool.release(in);
+        in = null;
+      }
+      releaseBody(request); // One still being read
+      request = null;
+      connections.decrementAndGet();
+    }
+  }
+
+  /** A parsed request line and headers, and the body as it arrives. */
+  private static final class Request {
+    String method;
+    String target;
+    String protocol;
+    final Headers headers = new Headers();
+    long contentLength;
+    boolean keepAlive;
+    boolean expectContinue;
+    byte[] body = NO_BODY; // Grown as the body arrives
+    int filled;
+    int charged; // Bytes of body counted in bufferedBodyBytes
+
+    static Request parse(byte[] head) throws BadRequest {
+      String[] lines =
+          new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+      String[] requestLine = lines[0].split(" ");
+      if (requestLine.length != 3 || requestLine[0].isEmpty()
+          || requestLine[1].isEmpty())
+        throw new BadRequest(400, "Bad request line.");
+      Request request = new Request();
+      request.method = requestLine[0];
+      request.target = requestLine[1];
+      request.protocol = requestLine[2];
+      if (!request.protocol.startsWith("HTTP/1."))
+        throw new BadRequest(505, "Only HTTP/1.x is supported.");
+      String contentLength = null;
+      for (int i = 1; i < lines.length; i++) {
+        String line = lines[i];
+        int colon = line.indexOf(':');
+        if (colon <= 0 || line.charAt(0) == ' ' || line.charAt(0) == '\t'
+            || line.charAt(colon - 1) == ' ')
+          throw new BadRequest(400, "Bad header line.");
+        String name = line.substring(0, colon);
+        String value = line.substring(colon + 1).trim();
+        request.headers.add(name, value);
+        if (name.equalsIgnoreCase("Content-Length")) {
+          if (contentLength != null && !contentLength.equals(value))
+            throw new BadRequest(400, "Conflicting Content-Length.");
+          contentLength = value;
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+          throw new BadRequest(411, "Send the body with a Content-Length.");
+        }
+      }
+      if (contentLength != null) {
+        try {
+          request.contentLength = Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+          throw new BadRequest(400, "Bad Content-Length.");
+        }
+        if (request.contentLength < 0)
+          throw new BadRequest(400, "Bad Content-Length.");
+      }
+      String connection = request.headers.getFirst("Connection");
+      boolean http10 = request.protocol.equals("HTTP/1.0");
+      request.keepAlive = http10
+          ? hasToken(connection, "keep-alive")
+          : !hasToken(connection, "close");
+      request.expectContinue =
+          hasToken(request.headers.getFirst("Expect"), "100-continue");
+      return request;
+    }
+
+    private static boolean hasToken(String header, String token) {
+      if (header == null)
+        return false;
+      for (String part : header.split(",")) {
+        if (part.trim().equalsIgnoreCase(token))
+          return true;
+      }
+      return false;
+    }
+  }
+
+  private static final class BadRequest extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    BadRequest(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  private final class Context extends HttpContext {
+    final String path;
+    volatile HttpHandler handler;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final List<Filter> filters = new CopyOnWriteArrayList<>();
+
+    Context(String path, HttpHandler handler) {
+      this.path = path;
+      this.handler = handler;
+    }
+
+    @Override
+    public HttpHandler getHandler() {
+      return handler;
+    }
+
+    @Override
+    public void setHandler(HttpHandler handler) {
+      if (handler == null)
+        throw new NullPointerException("Null handler parameter");
+      if (this.handler != null)
+        throw new IllegalArgumentException("handler already set");
+      this.handler = handler;
+    }
+
+    @Override
+    public String getPath() {
+      return path;
+    }
+
+    @Override
+    public HttpServer getServer() {
+      return NioHttpServer.this;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return attributes;
+    }
+
+    @Override
+    public List<Filter> getFilters() {
+      return filters;
+    }
+
+    @Override
+    public Authenticator setAuthenticator(Authenticator auth) {
+      throw new UnsupportedOperationException(
+          "NioHttpServer does not support authenticators");
+    }
+
+    @Override
+    public Authenticator getAuthenticator() {
+      return null;
+    }
+  }
+
+  /**
+   * One request and its response. The response head and body are written
+   * into pooled buffers, chunk framing included, so a small response goes
+   * out as a single buffer when the exchange closes.
+   */
+  private final class Exchange extends HttpExchange {
+    private final Connection connection;
+    private final Request request;
+    private final URI uri;
+    private final Context context;
+    private final Headers responseHeaders = new Headers();
+    private final AtomicBoolean done = new AtomicBoolean();
+    private Map<String, Object> attributes;
+    private InputStream requestBody;
+    private ResponseBody responseBody;
+    private OutputStream responseStream; // What getResponseBody hands out
+    private volatile int responseCode = -1;
+    private boolean keepAlive;
+
+    Exchange(Connection connection, Request request, URI uri, Context context) {
+      this.connection = connection;
+      this.request = request;
+      this.uri = uri;
+      this.context = context;
+      this.requestBody = new ByteArrayInputStream(request.body);
+      this.keepAlive = request.keepAlive;
+    }
+
+    void run() {
+      try {
+        new Filter.Chain(context.getFilters(), context.handler).doFilter(this);
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("handler.failed", "path", context.path, "error", e.toString());
+        if (responseCode < 0) {
+          finish(false);
+          connection.abort();
+        } else {
+          close();
+        }
+      }
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+      return request.headers;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+      return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+      return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+      return request.method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+      return context;
+    }
+
+    @Override
+    public void close() {
+      if (done.get())
+        return;
+      if (responseBody == null) {
+        // No response was started, which the JDK answers by hanging up
+        finish(false);
+        connection.abort();
+        return;
+      }
+      try {
+        responseBody.close();
+      } catch (IOException e) {
+        LOG.debug("exchange.closeFailed", "error", e.getMessage());
+      }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+      return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+      if (responseStream == null)
+        responseStream = new LazyBody();
+      return responseStream;
+    }
+
+    @Override
+    public void sendResponseHeaders(int status, long length)
+        throws IOException {
+      if (responseBody != null)
+        throw new IOException("headers already sent");
+      boolean noBody = "HEAD".equalsIgnoreCase(request.method)
+          || status == 304 || status == 204 || status < 200;
+      boolean http10 = request.protocol.equals("HTTP/1.0");
+      boolean unknownLength = !noBody && length == 0;
+      // HTTP/1.0 has no chunks, so such a body ends by closing instead
+      boolean chunked = unknownLength && !http10;
+      if (chunked) {
+        responseHeaders.set("Transfer-encoding", "chunked");
+      } else if (unknownLength) {
+        keepAlive = false;
+      } else if (!noBody) {
+        responseHeaders.set("Content-length",
+            Long.toString(Math.max(0, length)));
+      }
+      String connectionHeader = responseHeaders.getFirst("Connection");
+      if (connectionHeader != null
+          && connectionHeader.equalsIgnoreCase("close"))
+        keepAlive = false;
+      StringBuilder head = new StringBuilder(256);
+      head.append("HTTP/1.1 ").append(status).append(' ')
+          .append(reason(status)).append("\r\nDate: ").append(httpDate())
+          .append("\r\n");
+      for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+        for (String value : header.getValue()) {
+          head.append(header.getKey()).append(": ").append(value)
+              .append("\r\n");
+        }
+      }
+      if (connectionHeader == null) {
+        if (!keepAlive) {
+          head.append("Connection: close\r\n");
+        } else if (http10) {
+          head.append("Connection: keep-alive\r\n"); // Not 1.0's default
+        }
+      }
+      head.append("\r\n");
+      byte[] bytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+      responseCode = status;
+      responseBody = new ResponseBody(
+          noBody ? 0 : unknownLength ? Long.MAX_VALUE : Math.max(0, length),
+          chunked);
+      responseBody.writeHead(bytes);
+      if (unknownLength) {
+        // Streams need their head without waiting for the first chunk, but a
+        // handler that finishes first still gets one write for the lot
+        responseBody.submitHead();
+        connection.pushSoon();
+      }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+      return connection.remote;
+    }
+
+    @Override
+    public int getResponseCode() {
+      return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+      return connection.local;
+    }
+
+    @Override
+    public String getProtocol() {
+      return request.protocol;
+    }
+
+    @Override
+    public synchronized Object getAttribute(String name) {
+      return attributes == null ? null : attributes.get(name);
+    }
+
+    @Override
+    public synchronized void setAttribute(String name, Object value) {
+      if (attributes == null)
+        attributes = new HashMap<>();
+      attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream in, OutputStream out) {
+      if (in != null)
+        requestBody = in;
+      if (out != null)
+        responseStream = out;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+      return null;
+    }
+
+    private void finish(boolean keepAlive) {
+      if (done.compareAndSet(false, true)) {
+        releaseBody(request);
+        connection.exchangeDone(keepAlive);
+      }
+    }
+
+    /** The stream handed out before headers are sent, as the JDK allows. */
+    private final class LazyBody extends OutputStream {
+      @Override
+      public void write(int b) throws IOException {
+        body().write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        body().write(b, off, len);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        body().flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        Exchange.this.close();
+      }
+
+      private ResponseBody body() throws IOException {
+        if (responseBody == null)
+          throw new IOException("response headers not sent yet");
+        return responseBody;
+      }
+    }
+
+    /**
+     * Fills pooled buffers, framing chunks in place when chunked. A length of
+     * Long.MAX_VALUE is a body that ends when it is closed.
+     */
+    private final class ResponseBody extends OutputStream {
+      private final boolean chunked;
+      private final boolean unbounded;
+      private long remaining; // Bytes the declared length still allows
+      private ByteBuffer buffer;
+      private int chunkStart = -1; // Where the current chunk's size goes
+      private boolean closed;
+
+      ResponseBody(long length, boolean chunked) {
+        this.remaining = length;
+        this.chunked = chunked;
+        this.unbounded = length == Long.MAX_VALUE;
+      }
+
+      void writeHead(byte[] head) throws IOException {
+        if (head.length > BUFFER_BYTES / 2) {
+          connection.enqueue(ByteBuffer.wrap(head), false);
+        } else {
+          buffer = pool.take();
+          buffer.put(head);
+        }
+      }
+
+      synchronized void submitHead() throws IOException {
+        if (buffer != null)
+          submit(false);
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public synchronized void write(byte[] b, int off, int len)
+          throws IOException {
+        if (closed)
+          throw new IOException("stream is closed");
+        if (len > remaining)
+          throw new IOException("too many bytes to write to stream");
+        remaining -= len;
+        while (len > 0) {
+          if (buffer == null)
+            buffer = pool.take();
+          if (chunked && chunkStart < 0 && !startChunk())
+            continue;
+          int room = buffer.remaining() - (chunked ? CRLF.length : 0);
+          if (room <= 0) {
+            submit(false);
+            continue;
+          }
+          int n = Math.min(room, len);
+          buffer.put(b, off, n);
+          off += n;
+          len -= n;
+        }
+      }
+
+      @Override
+      public synchronized void flush() throws IOException {
+        if (closed)
+          throw new IOException("stream is closed");
+        if (buffer != null && hasContent()) {
+          submit(true);
+        } else {
+          connection.enqueue(null, true);
+        }
+      }
+
+      @Override
+      public synchronized void close() throws IOException {
+        if (closed)
+          return;
+        closed = true;
+        boolean complete = remaining == 0 || unbounded;
+        try {
+          if (!complete) {
+            if (buffer != null)
+              pool.release(buffer);
+            buffer = null;
+            connection.abort();
+            throw new IOException("insufficient bytes written to stream");
+          }
+          if (chunked) {
+            if (buffer == null)
+              buffer = pool.take();
+            sealChunk();
+            if (buffer.remaining() < LAST_CHUNK.length) {
+              submit(false);
+              buffer = pool.take();
+            }
+            buffer.put(LAST_CHUNK);
+          }
+          if (buffer != null) {
+            submit(true);
+          } else {
+            connection.enqueue(null, true);
+          }
+        } finally {
+          if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+          }
+          finish(complete && keepAlive);
+        }
+      }
+
+      private boolean hasContent() {
+        return buffer.position()
+            > (chunkStart < 0 ? 0 : chunkStart + CHUNK_HEAD);
+      }
+
+      // Reserves room for the size; false if the buffer had to go first
+      private boolean startChunk() throws IOException {
+        if (buffer.remaining() < CHUNK_HEAD + CRLF.length + 1) {
+          submit(false);
+          return false;
+        }
+        chunkStart = buffer.position();
+        buffer.position(chunkStart + CHUNK_HEAD);
+        return true;
+      }
+
+      private void sealChunk() {
+        if (chunkStart < 0)
+          return;
+        int size = buffer.position() - chunkStart - CHUNK_HEAD;
+        if (size == 0) {
+          buffer.position(chunkStart);
+        } else {
+          for (int i = 0; i < 6; i++) {
+            buffer.put(chunkStart + i, HEX[(size >>> (4 * (5 - i))) & 0xf]);
+          }
+          buffer.put(chunkStart + 6, CRLF[0]);
+          buffer.put(chunkStart + 7, CRLF[1]);
+          buffer.put(CRLF);
+        }
+        chunkStart = -1;
+      }
+
+      private void submit(boolean now) throws IOException {
+        if (chunked)
+          sealChunk();
+        ByteBuffer full = buffer;
+        buffer = null;
+        full.flip();
+        connection.enqueue(full, now);
+      }
+    }
+  }
+}
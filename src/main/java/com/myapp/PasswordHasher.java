@@ -0,0 +1,164 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * PBKDF2-HMAC-SHA256 password hashes, stored as
+ * {@code pbkdf2-sha256$<iterations>$<salt>$<hash>} so each one carries its own
+ * cost. Hashes from before that format, a single salted SHA-256 with the salt
+ * kept beside it, still verify and are reported by {@link #needsRehash}, as
+ * are hashes with fewer iterations than configured.
+ *
+ * <p>Hashing is deliberately slow, so it runs on its own small pool
+ * ({@code chat.auth.hashThreads}, queue {@code chat.auth.hashQueue}) rather
+ * than on request threads; when that is full, {@link #offer} refuses the job
+ * and the caller answers 503, leaving chat traffic untouched.
+ */
+final class PasswordHasher {
+  private static final String SCHEME = "pbkdf2-sha256";
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int SALT_BYTES = 16;
+  private static final int HASH_BITS = 256;
+  // Thread-safe, and seeding a new one per call is the expensive part
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final int iterations;
+  private final ThreadPoolExecutor pool;
+  private volatile String decoy; // Verified against for unknown users
+
+  private PasswordHasher(int iterations, int threads, int queue) {
+    this.iterations = iterations;
+    AtomicInteger counter = new AtomicInteger();
+    this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queue), r -> {
+          Thread t = new Thread(r, "password-hash-" + counter.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+  static PasswordHasher fromConfig() {
+    return new PasswordHasher(
+        ServerConfig.getInt("chat.auth.pbkdf2Iterations", 600_000),
+        ServerConfig.getInt("chat.auth.hashThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+        ServerConfig.getInt("chat.auth.hashQueue", 64));
+  }
+
+  /** Queues {@code job} on the hashing pool; false if the pool is full. */
+  boolean offer(Runnable job) {
+    try {
+      pool.execute(job);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  /** Jobs waiting for a hashing thread. */
+  int queueDepth() {
+    return pool.getQueue().size();
+  }
+
+  String describe() {
+    return SCHEME + " x" + iterations + ", " + pool.getMaximumPoolSize()
+        + " threads";
+  }
+
+  /** A new salted hash of {@code password} in the current format. */
+  String hash(String password) {
+    byte[] salt = new byte[SALT_BYTES];
+    RANDOM.nextBytes(salt);
+    Base64.Encoder base64 = Base64.getEncoder();
+    return SCHEME + "$" + iterations + "$" + base64.encodeToString(salt) + "$"
+        + base64.encodeToString(pbkdf2(password, salt, iterations));
+  }
+
+  /**
+   * Checks {@code password} against a stored hash; {@code legacySalt} is only
+   * read for the old format. Comparison takes the same time wherever the
+   * bytes first differ.
+   */
+  boolean verify(String password, String legacySalt, String stored) {
+    if (password == null || stored == null)
+      return false;
+    byte[] expected;
+    byte[] actual;
+    Base64.Decoder base64 = Base64.getDecoder();
+    try {
+      if (stored.startsWith(SCHEME + "$")) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4)
+          return false;
+        expected = base64.decode(parts[3]);
+        actual = pbkdf2(password, base64.decode(parts[2]),
+            Integer.parseInt(parts[1]));
+      } else {
+        if (legacySalt == null)
+          return false;
+        expected = base64.decode(stored);
+        actual = legacyHash(password, base64.decode(legacySalt));
+      }
+    } catch (IllegalArgumentException e) {
+      return false; // Not a hash this class wrote
+    }
+    return MessageDigest.isEqual(expected, actual);
+  }
+
+  /**
+   * Burns the same time as a real check, so a login for an unknown user
+   * cannot be told apart by how long it takes.
+   */
+  void verifyDecoy(String password) {
+    String d = decoy;
+    if (d == null)
+      decoy = d = hash("decoy");
+    verify(password, null, d);
+  }
+
+  /** True when {@code stored} is weaker than what {@link #hash} writes now. */
+  boolean needsRehash(String stored) {
+    if (stored == null || !stored.startsWith(SCHEME + "$"))
+      return true;
+    String[] parts = stored.split("\\$");
+    try {
+      return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+    } catch (NumberFormatException e) {
+      return true;
+    }
+  }
+
+  private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+    PBEKeySpec spec =
+        new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec)
+          .getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Password hashing error", e);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  // The original scheme: one round of SHA-256 over salt then password
+  private static byte[] legacyHash(String password, byte[] salt) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(salt);
+      return md.digest(password.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Password hashing error", e);
+    }
+  }
+}
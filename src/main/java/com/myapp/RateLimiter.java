@@ -0,0 +1,193 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Token buckets in front of the handlers, one per client for each class of
+ * endpoint: {@code auth} (register, login), {@code write} and {@code read},
+ * each refilled at {@code chat.ratelimit.<class>.perMinute} up to
+ * {@code chat.ratelimit.<class>.burst}. A client is its session user when
+ * the request carries a live token or subscribe ticket, else its address
+ * (the first {@code X-Forwarded-For} entry with
+ * {@code chat.ratelimit.trustForwardedFor}, which deployments behind a proxy
+ * such as Koyeb's must set, or every client shares the proxy's buckets). A request over the limit gets a 429 with
+ * {@code Retry-After} from the filter, before its handler parses anything.
+ *
+ * <p>A bucket is one {@link AtomicLong}: the time at which it will be full
+ * again, which is a token bucket kept as a single word. Taking a token is a
+ * compare-and-set, in a {@link ConcurrentHashMap} whose bins stripe the
+ * buckets so clients never share a lock. A bucket that has been full since
+ * the last sweep carries no state, so the sweeper drops it.
+ */
+final class RateLimiter {
+  private static final Log LOG = Log.named("RateLimiter");
+  private static final long SWEEP_MILLIS = 10_000;
+  private static final int LOG_SAMPLE_EVERY = 100;
+
+  final Limit auth;
+  final Limit write;
+  final Limit read;
+  private final boolean enabled;
+  private final boolean trustForwardedFor;
+  private final Function<HttpExchange, String> userOf;
+
+  private RateLimiter(boolean enabled, boolean trustForwardedFor,
+      Function<HttpExchange, String> userOf) {
+    this.enabled = enabled;
+    this.trustForwardedFor = trustForwardedFor;
+    this.userOf = userOf;
+    this.auth = Limit.fromConfig("auth", 30, 10);
+    this.write = Limit.fromConfig("write", 300, 30);
+    this.read = Limit.fromConfig("read", 1200, 60);
+  }
+
+  /** Limits from {@code chat.ratelimit.*}; {@code userOf} names a session. */
+  static RateLimiter fromConfig(Function<HttpExchange, String> userOf) {
+    return new RateLimiter(
+        ServerConfig.getBoolean("chat.ratelimit.enabled", true),
+        ServerConfig.getBoolean("chat.ratelimit.trustForwardedFor", false),
+        userOf);
+  }
+
+  /** Buckets held across all classes, for metrics. */
+  int buckets() {
+    return auth.buckets.size() + write.buckets.size() + read.buckets.size();
+  }
+
+  /** Requests turned away across all classes, for metrics. */
+  long rejected() {
+    return auth.rejected.sum() + write.rejected.sum() + read.rejected.sum();
+  }
+
+  /** Drops full buckets every few seconds. */
+  void startSweeper() {
+    if (!enabled)
+      return;
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread t = new Thread(r, "ratelimit-sweeper");
+          t.setDaemon(true);
+          return t;
+        });
+    scheduler.scheduleAtFixedRate(() -> {
+      long now = System.nanoTime();
+      auth.sweep(now);
+      write.sweep(now);
+      read.sweep(now);
+    }, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /** Answers 429 once the client has spent {@code limit}. */
+  Filter filter(Limit limit) {
+    return new Filter() {
+      @Override
+      public void doFilter(HttpExchange exchange, Chain chain)
+          throws IOException {
+        if (enabled && limit.enabled()) {
+          String client = client(exchange);
+          long waitNanos = limit.take(client, System.nanoTime());
+          if (waitNanos > 0) {
+            limit.rejected.increment();
+            if (LOG.sampled(Log.Level.WARN, LOG_SAMPLE_EVERY)) {
+              LOG.warn("request.throttled", "class", limit.name, "client",
+                  client, "path", exchange.getRequestURI().getPath());
+            }
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(
+                Math.max(1, TimeUnit.NANOSECONDS.toSeconds(
+                    waitNanos + TimeUnit.SECONDS.toNanos(1) - 1))));
+            SimpleChatServer.sendJsonResponse(exchange, 429,
+                "{\"success\":false,\"message\":\"Too many requests, please "
+                + "slow down.\"}");
+            return;
+          }
+        }
+        chain.doFilter(exchange);
+      }
+
+      @Override
+      public String description() {
+        return "Limits each client's " + limit.name + " requests";
+      }
+    };
+  }
+
+  // User and address keys are kept apart, as a username may look like one
+  private String client(HttpExchange exchange) {
+    String user = userOf.apply(exchange);
+    if (user != null)
+      return "user " + user;
+    if (trustForwardedFor) {
+      String forwarded =
+          exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+      if (forwarded != null && !forwarded.trim().isEmpty()) {
+        int comma = forwarded.indexOf(',');
+        return "addr "
+            + (comma < 0 ? forwarded : forwarded.substring(0, comma)).trim();
+      }
+    }
+    InetSocketAddress remote = exchange.getRemoteAddress();
+    return "addr " + (remote == null || remote.getAddress() == null
+        ? "unknown" : remote.getAddress().getHostAddress());
+  }
+
+  /** One class of endpoints: its rate, its burst and its clients' buckets. */
+  static final class Limit {
+    final String name;
+    private final long intervalNanos; // Refill time of one token
+    private final long burstNanos; // Refill time of a whole bucket
+    final ConcurrentHashMap<String, AtomicLong> buckets =
+        new ConcurrentHashMap<>();
+    final LongAdder rejected = new LongAdder();
+
+    private Limit(String name, long perMinute, long burst) {
+      this.name = name;
+      this.intervalNanos =
+          perMinute <= 0 ? 0 : TimeUnit.MINUTES.toNanos(1) / perMinute;
+      this.burstNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    static Limit fromConfig(String name, long perMinute, int burst) {
+      String prefix = "chat.ratelimit." + name;
+      return new Limit(name,
+          ServerConfig.getLong(prefix + ".perMinute", perMinute),
+          ServerConfig.getInt(prefix + ".burst", burst));
+    }
+
+    boolean enabled() {
+      return intervalNanos > 0;
+    }
+
+    /** Takes a token; returns 0, or how long until one is due. */
+    long take(String client, long now) {
+      AtomicLong bucket = buckets.get(client);
+      if (bucket == null) {
+        bucket =
+            buckets.putIfAbsent(client, new AtomicLong(now + intervalNanos));
+        if (bucket == null)
+          return 0;
+      }
+      while (true) {
+        long fullAt = bucket.get();
+        long next = Math.max(fullAt, now) + intervalNanos;
+        if (next - now > burstNanos)
+          return next - burstNanos - now;
+        if (bucket.compareAndSet(fullAt, next))
+          return 0;
+      }
+    }
+
+    // A racing take() on a dropped bucket is lost, handing that client one
+    // token back; not worth a lock on the request path
+    void sweep(long now) {
+      buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+  }
+}
@@ -0,0 +1,435 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * Request bodies to fields, for every handler that takes input. The body is
+ * read whole, up to {@code chat.request.maxBodyBytes}, and decoded from
+ * there in one pass:
+ * {@code application/x-www-form-urlencoded} (the default), or JSON when the
+ * request says {@code application/json}. Strings are cut straight from the
+ * bytes, so the only allocations are the field names and values.
+ *
+ * <p>A JSON body may be an object of fields, e.g.
+ * {@code {"room":"general","message":"hi"}}, or any nesting of objects and
+ * arrays; each member with a string, number or boolean value is a field, in
+ * document order, which is how {@code /postMessages} takes an array of
+ * {@code {"room":..,"message":..}} objects.
+ *
+ * <p>Bodies that fit are read into buffers borrowed from a small shared
+ * pool, since requests may each run on a fresh virtual thread and so cannot
+ * keep one per thread. A larger body with a Content-Length gets an array of
+ * just that size, and only a chunked one has to grow.
+ *
+ * <p>A body over the limit or that does not decode is answered by
+ * {@link #filter}, with 413 or 400, before the handler writes anything.
+ */
+final class RequestCodec {
+  static final int MAX_BODY_BYTES =
+      ServerConfig.getInt("chat.request.maxBodyBytes", 1 << 20);
+  private static final int POOLED_BUFFER_BYTES = 16 * 1024;
+  private static final int MAX_JSON_DEPTH = 32;
+  private static final ArrayBlockingQueue<byte[]> POOL =
+      new ArrayBlockingQueue<>(
+          Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+
+  private RequestCodec() {}
+
+  /** A body refused with {@code status}, answered by {@link #filter}. */
+  static final class BadRequest extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    BadRequest(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  /** Hands each field of the body to {@code field}, in body order. */
+  static void readFields(HttpExchange exchange,
+      BiConsumer<String, String> field) throws IOException {
+    String header = exchange.getRequestHeaders().getFirst("Content-Length");
+    long length = header == null ? -1 : parseLength(header);
+    if (length > MAX_BODY_BYTES)
+      throw tooLarge();
+    byte[] buf = borrow(length);
+    try {
+      int n = 0;
+      try (InputStream in = exchange.getRequestBody()) {
+        while (true) {
+          if (n == buf.length) {
+            // Full: grow only if there is more, as there is when chunked
+            int next = in.read();
+            if (next < 0)
+              break;
+            if (n >= MAX_BODY_BYTES)
+              throw tooLarge();
+            buf = Arrays.copyOf(buf,
+                (int) Math.min(n * 2L + 1, MAX_BODY_BYTES + 1L));
+            buf[n++] = (byte) next;
+          }
+          int read = in.read(buf, n, buf.length - n);
+          if (read < 0)
+            break;
+          n += read;
+        }
+      }
+      if (n > MAX_BODY_BYTES)
+        throw tooLarge();
+      String type = exchange.getRequestHeaders().getFirst("Content-Type");
+      try {
+        if (type != null && type.trim().regionMatches(
+                true, 0, "application/json", 0, 16)) {
+          parseJson(buf, 0, n, field);
+        } else {
+          parseForm(buf, 0, n, field);
+        }
+      } catch (IllegalArgumentException e) {
+        throw new BadRequest(400, e.getMessage());
+      }
+    } finally {
+      // Fields are copied out as Strings, so the buffer is free again
+      if (buf.length == POOLED_BUFFER_BYTES)
+        POOL.offer(buf);
+    }
+  }
+
+  // A pooled buffer when the body may fit one, else one of its exact size
+  private static byte[] borrow(long length) {
+    if (length > POOLED_BUFFER_BYTES)
+      return new byte[(int) length];
+    byte[] buf = POOL.poll();
+    if (buf != null)
+      return buf;
+    // A small body with a known length is not worth a pooled-size array
+    return length >= 0 && length < POOLED_BUFFER_BYTES / 4
+        ? new byte[(int) length]
+        : new byte[POOLED_BUFFER_BYTES];
+  }
+
+  /** Answers a {@link BadRequest} from the handler it wraps. */
+  static Filter filter() {
+    return new Filter() {
+      @Override
+      public void doFilter(HttpExchange exchange, Chain chain)
+          throws IOException {
+        try {
+          chain.doFilter(exchange);
+        } catch (BadRequest e) {
+          SimpleChatServer.sendJsonResponse(exchange, e.status,
+              "{\"success\":false,\"message\":\""
+              + JsonOutput.escape(e.getMessage()) + "\"}");
+        }
+      }
+
+      @Override
+      public String description() {
+        return "Answers request bodies that cannot be read";
+      }
+    };
+  }
+
+  /**
+   * Decodes urlencoded {@code key=value} pairs as {@link java.net.URLDecoder}
+   * would with UTF-8, and throws IllegalArgumentException where it would.
+   * A key without {@code =} has the value "".
+   */
+  static void parseForm(byte[] buf, int from, int to,
+      BiConsumer<String, String> field) {
+    byte[] scratch = null;
+    int start = from;
+    while (start < to) {
+      int end = start;
+      int equals = -1;
+      boolean encoded = false;
+      for (; end < to && buf[end] != '&'; end++) {
+        byte b = buf[end];
+        if (b == '=' && equals < 0) {
+          equals = end;
+        } else if (b == '%' || b == '+') {
+          encoded = true;
+        }
+      }
+      if (end > start) { // Empty pairs, as from "&&", are skipped
+        int keyEnd = equals < 0 ? end : equals;
+        if (encoded && scratch == null)
+          scratch = new byte[to - from];
+        String key = decode(buf, start, keyEnd, scratch);
+        String value = equals < 0 ? "" : decode(buf, equals + 1, end, scratch);
+        field.accept(key, value);
+      }
+      start = end + 1;
+    }
+  }
+
+  private static String decode(byte[] buf, int from, int to, byte[] scratch) {
+    int n = 0;
+    for (int i = from; i < to; i++) {
+      byte b = buf[i];
+      if (b == '%' || b == '+')
+        break;
+      n++;
+    }
+    if (n == to - from)
+      return new String(buf, from, n, StandardCharsets.UTF_8);
+    System.arraycopy(buf, from, scratch, 0, n);
+    for (int i = from + n; i < to; i++) {
+      byte b = buf[i];
+      if (b == '+') {
+        scratch[n++] = ' ';
+      } else if (b == '%') {
+        if (i + 2 >= to)
+          throw new IllegalArgumentException("Incomplete %-escape in form.");
+        int hi = Character.digit(buf[i + 1], 16);
+        int lo = Character.digit(buf[i + 2], 16);
+        if (hi < 0 || lo < 0)
+          throw new IllegalArgumentException("Bad %-escape in form.");
+        scratch[n++] = (byte) (hi << 4 | lo);
+        i += 2;
+      } else {
+        scratch[n++] = b;
+      }
+    }
+    return new String(scratch, 0, n, StandardCharsets.UTF_8);
+  }
+
+  /** Decodes JSON as the class describes; IllegalArgumentException if bad. */
+  static void parseJson(byte[] buf, int from, int to,
+      BiConsumer<String, String> field) {
+    JsonReader reader = new JsonReader(buf, from, to, field);
+    reader.value(null, 0);
+    if (reader.skipSpace() < to)
+      throw reader.error("Unexpected data after the JSON value");
+  }
+
+  private static long parseLength(String value) throws BadRequest {
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new BadRequest(400, "Bad Content-Length.");
+    }
+  }
+
+  private static BadRequest tooLarge() {
+    return new BadRequest(413,
+        "Request body is over " + MAX_BODY_BYTES + " bytes.");
+  }
+
+  /** Recursive descent over one JSON document, reporting scalar members. */
+  private static final class JsonReader {
+    private final byte[] buf;
+    private final int to;
+    private final BiConsumer<String, String> field;
+    private int pos;
+    private byte[] scratch; // For strings with escapes
+
+    JsonReader(byte[] buf, int from, int to,
+        BiConsumer<String, String> field) {
+      this.buf = buf;
+      this.pos = from;
+      this.to = to;
+      this.field = field;
+    }
+
+    // Reads one value; a scalar with a member name is reported as a field
+    void value(String name, int depth) {
+      if (depth > MAX_JSON_DEPTH)
+        throw error("JSON nested too deeply");
+      int c = skipSpace() < to ? buf[pos] : -1;
+      if (c == '{') {
+        pos++;
+        if (peek() == '}') {
+          pos++;
+          return;
+        }
+        do {
+          if (peek() != '"')
+            throw error("Expected a member name");
+          String member = string();
+          if (peek() != ':')
+            throw error("Expected ':'");
+          pos++;
+          value(member, depth + 1);
+        } while (next(',', '}'));
+      } else if (c == '[') {
+        pos++;
+        if (peek() == ']') {
+          pos++;
+          return;
+        }
+        do {
+          value(null, depth + 1);
+        } while (next(',', ']'));
+      } else if (c == '"') {
+        report(name, string());
+      } else if (c == '-' || c >= '0' && c <= '9') {
+        int start = pos;
+        while (pos < to && (buf[pos] >= '0' && buf[pos] <= '9'
+            || buf[pos] == '-' || buf[pos] == '+' || buf[pos] == '.'
+            || buf[pos] == 'e' || buf[pos] == 'E')) {
+          pos++;
+        }
+        report(name, new String(buf, start, pos - start,
+            StandardCharsets.US_ASCII));
+      } else if (literal("true")) {
+        report(name, "true");
+      } else if (literal("false")) {
+        report(name, "false");
+      } else if (!literal("null")) {
+        throw error("Expected a JSON value");
+      }
+    }
+
+    private void report(String name, String value) {
+      if (name != null)
+        field.accept(name, value);
+    }
+
+    // After an element: true at the separator, false at the closing char
+    private boolean next(char separator, char close) {
+      int c = peek();
+      pos++;
+      if (c == separator)
+        return true;
+      if (c == close)
+        return false;
+      throw error("Expected '" + separator + "' or '" + close + "'");
+    }
+
+    private String string() {
+      int start = ++pos; // Past the opening quote
+      while (pos < to && buf[pos] != '"' && buf[pos] != '\\') {
+        pos++;
+      }
+      if (pos < to && buf[pos] == '"')
+        return new String(buf, start, pos++ - start, StandardCharsets.UTF_8);
+      // Escapes: decode into scratch as UTF-8, then make one String
+      if (scratch == null)
+        scratch = new byte[to - start];
+      int n = pos - start;
+      System.arraycopy(buf, start, scratch, 0, n);
+      while (true) {
+        if (pos >= to)
+          throw error("Unterminated string");
+        byte b = buf[pos++];
+        if (b == '"')
+          return new String(scratch, 0, n, StandardCharsets.UTF_8);
+        if (b != '\\') {
+          scratch[n++] = b;
+          continue;
+        }
+        if (pos >= to)
+          throw error("Unterminated string");
+        byte e = buf[pos++];
+        switch (e) {
+          case '"': case '\\': case '/':
+            scratch[n++] = e;
+            break;
+          case 'b':
+            scratch[n++] = '\b';
+            break;
+          case 'f':
+            scratch[n++] = '\f';
+            break;
+          case 'n':
+            scratch[n++] = '\n';
+            break;
+          case 'r':
+            scratch[n++] = '\r';
+            break;
+          case 't':
+            scratch[n++] = '\t';
+            break;
+          case 'u':
+            n = codePoint(n);
+            break;
+          default:
+            throw error("Bad escape in string");
+        }
+      }
+    }
+
+    // Writes a \\u escape, joined with a following low surrogate, as UTF-8;
+    // never longer than the escape itself, so scratch cannot overflow
+    private int codePoint(int n) {
+      int cp = hex4();
+      if (Character.isHighSurrogate((char) cp) && pos + 6 <= to
+          && buf[pos] == '\\' && buf[pos + 1] == 'u') {
+        int save = pos;
+        pos += 2;
+        int low = hex4();
+        if (Character.isLowSurrogate((char) low)) {
+          cp = Character.toCodePoint((char) cp, (char) low);
+        } else {
+          pos = save;
+        }
+      }
+      if (Character.isSurrogate((char) cp) && cp < 0x10000)
+        cp = 0xfffd; // Lone surrogate
+      if (cp < 0x80) {
+        scratch[n++] = (byte) cp;
+      } else if (cp < 0x800) {
+        scratch[n++] = (byte) (0xc0 | cp >> 6);
+        scratch[n++] = (byte) (0x80 | cp & 0x3f);
+      } else if (cp < 0x10000) {
+        scratch[n++] = (byte) (0xe0 | cp >> 12);
+        scratch[n++] = (byte) (0x80 | cp >> 6 & 0x3f);
+        scratch[n++] = (byte) (0x80 | cp & 0x3f);
+      } else {
+        scratch[n++] = (byte) (0xf0 | cp >> 18);
+        scratch[n++] = (byte) (0x80 | cp >> 12 & 0x3f);
+        scratch[n++] = (byte) (0x80 | cp >> 6 & 0x3f);
+        scratch[n++] = (byte) (0x80 | cp & 0x3f);
+      }
+      return n;
+    }
+
+    private int hex4() {
+      if (pos + 4 > to)
+        throw error("Bad \\u escape");
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        int digit = Character.digit(buf[pos++], 16);
+        if (digit < 0)
+          throw error("Bad \\u escape");
+        value = value << 4 | digit;
+      }
+      return value;
+    }
+
+    private boolean literal(String word) {
+      int n = word.length();
+      if (pos + n > to)
+        return false;
+      for (int i = 0; i < n; i++) {
+        if (buf[pos + i] != word.charAt(i))
+          return false;
+      }
+      pos += n;
+      return true;
+    }
+
+    private int peek() {
+      return skipSpace() < to ? buf[pos] : -1;
+    }
+
+    int skipSpace() {
+      while (pos < to && (buf[pos] == ' ' || buf[pos] == '\n'
+          || buf[pos] == '\r' || buf[pos] == '\t')) {
+        pos++;
+      }
+      return pos;
+    }
+
+    IllegalArgumentException error(String problem) {
+      return new IllegalArgumentException(problem + " at byte " + pos + ".");
+    }
+  }
+}
@@ -0,0 +1,179 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor for HttpServer exchanges, chosen by {@code chat.executor}:
+ * <ul>
+ *   <li>{@code virtual} - a virtual thread per request (JDK 21+), capped at
+ *       {@code chat.executor.maxInFlight} concurrent requests;</li>
+ *   <li>{@code pool} - {@code chat.executor.threads} platform threads with a
+ *       queue of {@code chat.executor.queue} waiting requests;</li>
+ *   <li>{@code dispatcher} - the HttpServer's own single thread;</li>
+ *   <li>{@code auto} (default) - virtual when the JVM has it, else pool.</li>
+ * </ul>
+ * A request over the limit is not queued with the rest: it goes to one of
+ * two rejection threads flagged as rejected, and {@link OverloadFilter}
+ * answers it with a 503 at once. Not the dispatcher, because the exchange
+ * first reads the request, and a slow client would stall every connection.
+ * Only when the rejection threads are that far behind too does the caller
+ * answer.
+ */
+final class RequestExecutor implements Executor {
+  private static final Log LOG = Log.named("RequestExecutor");
+  private static final ThreadLocal<Boolean> REJECTED = new ThreadLocal<>();
+  private static final ThreadPoolExecutor REJECTOR = newRejector();
+
+  final String mode;
+  private final Executor delegate;
+  private final Semaphore permits; // Only for virtual threads
+  private final ThreadPoolExecutor pool; // Only for the platform pool
+
+  private RequestExecutor(String mode, Executor delegate, Semaphore permits,
+      ThreadPoolExecutor pool) {
+    this.mode = mode;
+    this.delegate = delegate;
+    this.permits = permits;
+    this.pool = pool;
+  }
+
+  /** Returns null for dispatcher mode, which HttpServer takes as its own. */
+  static RequestExecutor fromConfig() {
+    String mode = ServerConfig.get("chat.executor", "auto");
+    if ("dispatcher".equals(mode))
+      return null;
+    ExecutorService virtual = null;
+    if ("auto".equals(mode) || "virtual".equals(mode)) {
+      virtual = newVirtualThreadExecutor();
+      if (virtual == null && "virtual".equals(mode)) {
+        LOG.warn("executor.virtual.unavailable", "reason",
+            "virtual threads need JDK 21+", "fallback", "pool");
+      }
+    } else if (!"pool".equals(mode)) {
+      throw new IllegalArgumentException("Unknown chat.executor '" + mode
+          + "', expected auto, virtual, pool or dispatcher.");
+    }
+    if (virtual != null) {
+      int maxInFlight = ServerConfig.getInt("chat.executor.maxInFlight", 10_000);
+      return new RequestExecutor(
+          "virtual", virtual, new Semaphore(maxInFlight), null);
+    }
+    int threads = ServerConfig.getInt("chat.executor.threads",
+        Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    int queue = ServerConfig.getInt("chat.executor.queue", 1_000);
+    AtomicInteger counter = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<>(queue), r -> {
+          Thread t = new Thread(r, "http-worker-" + counter.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return new RequestExecutor("pool", pool, null, pool);
+  }
+
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    if (permits != null && !permits.tryAcquire()) {
+      runRejected(task);
+      return;
+    }
+    try {
+      if (permits == null) {
+        delegate.execute(task);
+      } else {
+        delegate.execute(() -> {
+          try {
+            task.run();
+          } finally {
+            permits.release();
+          }
+        });
+      }
+    } catch (RejectedExecutionException e) {
+      if (permits != null)
+        permits.release();
+      runRejected(task);
+    }
+  }
+
+  /** Requests waiting for a thread; always zero for virtual threads. */
+  int queueDepth() {
+    return pool == null ? 0 : pool.getQueue().size();
+  }
+
+  String describe() {
+    if (pool != null) {
+      return "pool of " + pool.getMaximumPoolSize() + " threads, queue "
+          + pool.getQueue().remainingCapacity();
+    }
+    return "virtual threads, max " + permits.availablePermits() + " in flight";
+  }
+
+  private static void runRejected(Runnable task) {
+    Runnable rejected = () -> {
+      REJECTED.set(Boolean.TRUE);
+      try {
+        task.run();
+      } finally {
+        REJECTED.remove();
+      }
+    };
+    try {
+      REJECTOR.execute(rejected);
+    } catch (RejectedExecutionException e) {
+      rejected.run();
+    }
+  }
+
+  private static ThreadPoolExecutor newRejector() {
+    AtomicInteger counter = new AtomicInteger();
+    ThreadPoolExecutor rejector = new ThreadPoolExecutor(2, 2, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<>(1_000), r -> {
+          Thread t = new Thread(r, "http-reject-" + counter.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    rejector.allowCoreThreadTimeOut(true);
+    return rejector;
+  }
+
+  /** Answers requests the executor had no room for with a fast 503. */
+  static class OverloadFilter extends Filter {
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain)
+        throws IOException {
+      if (REJECTED.get() != null) {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        SimpleChatServer.sendJsonResponse(exchange, 503,
+            "{\"success\":false,\"message\":\"Server busy, please retry.\"}");
+        return;
+      }
+      chain.doFilter(exchange);
+    }
+
+    @Override
+    public String description() {
+      return "Rejects requests the executor could not accept";
+    }
+  }
+}
@@ -0,0 +1,282 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * All chat rooms by id, plus the retention policy that keeps each room's
+ * history bounded. Eviction runs on its own thread so posting never pays for
+ * it. Once a change log is attached (the journal, the cluster or both), room
+ * creation and every post and delete are logged to it; restored rooms and
+ * messages are not, as they came from a log.
+ *
+ * <p>It is also the room directory behind {@code /getRooms}: ids are kept in
+ * order in a skip list as rooms are created, and a version is bumped on
+ * every change to the set, so the rendered listing is cached per version
+ * and can be revalidated by ETag.
+ */
+class RoomStore implements ChatRoom.ChangeListener {
+  private static final Log LOG = Log.named("RoomStore");
+  private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListMap<String, ChatRoom> sorted =
+      new ConcurrentSkipListMap<>();
+  private final AtomicLong version = new AtomicLong();
+  // Restarts count versions from 1 again, so tags also name the process
+  private final String epoch =
+      Long.toString(System.currentTimeMillis(), 36);
+  private volatile Listing listing;
+  private volatile Listing details;
+  private final int maxMessagesPerRoom;
+  private final long maxAgeMillis;
+  private volatile ChatJournal.Events journal;
+
+  /** Non-positive limits disable that kind of retention. */
+  RoomStore(int maxMessagesPerRoom, long maxAgeMillis) {
+    this.maxMessagesPerRoom = maxMessagesPerRoom;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  ChatRoom get(String roomId) {
+    return rooms.get(roomId);
+  }
+
+  ChatRoom getOrCreate(String roomId) {
+    return getOrCreate(roomId, null);
+  }
+
+  /** {@code creator} is recorded only if this call creates the room. */
+  ChatRoom getOrCreate(String roomId, String creator) {
+    ChatRoom room = rooms.get(roomId);
+    return room != null ? room : rooms.computeIfAbsent(roomId,
+        id -> newRoom(id, creator, System.currentTimeMillis(), true));
+  }
+
+  /** Creates the room and returns true, or false if it already existed. */
+  boolean create(String roomId, String creator) {
+    boolean[] created = new boolean[1];
+    rooms.computeIfAbsent(roomId, id -> {
+      created[0] = true;
+      return newRoom(id, creator, System.currentTimeMillis(), true);
+    });
+    return created[0];
+  }
+
+  /** Re-adds a logged room, unless a replayed message made it first. */
+  void restore(String roomId, String creator, long createdAtMillis) {
+    rooms.computeIfAbsent(
+        roomId, id -> newRoom(id, creator, createdAtMillis, false));
+  }
+
+  // Runs inside computeIfAbsent, so once per room
+  private ChatRoom newRoom(
+      String roomId, String creator, long createdAtMillis, boolean log) {
+    ChatJournal.Events j = journal;
+    if (j != null && log)
+      j.room(roomId, creator, createdAtMillis);
+    ChatRoom room = new ChatRoom(roomId, creator, createdAtMillis, this);
+    sorted.put(roomId, room);
+    version.incrementAndGet();
+    return room;
+  }
+
+  /** Starts logging changes; call after replay so it is not logged twice. */
+  void setJournal(ChatJournal.Events journal) {
+    this.journal = journal;
+  }
+
+  @Override
+  public void appended(MessageObject message) {
+    ChatJournal.Events j = journal;
+    if (j != null) {
+      j.message(message.room, message.getId(), message.seq,
+          message.getSender(), message.text, message.createdAtMillis);
+    }
+  }
+
+  @Override
+  public void deleted(String roomId, String messageId, long seq) {
+    ChatJournal.Events j = journal;
+    if (j != null)
+      j.deleted(roomId, messageId, seq);
+  }
+
+  void writeState(ChatJournal.Events out) {
+    for (ChatRoom room : rooms.values()) {
+      room.writeState(out);
+    }
+  }
+
+  /** Each room {@code owned} with its recent deletes, for a cluster peer. */
+  void writeChanges(ChatJournal.Events out, Predicate<String> owned) {
+    for (ChatRoom room : rooms.values()) {
+      if (owned.test(room.id))
+        room.writeChanges(out);
+    }
+  }
+
+  int size() {
+    return rooms.size();
+  }
+
+  /** Live view of every room, for metrics. */
+  Iterable<ChatRoom> all() {
+    return rooms.values();
+  }
+
+  boolean contains(String roomId) {
+    return rooms.containsKey(roomId);
+  }
+
+  /**
+   * Room ids in order as a JSON array. Built at most once per version of the
+   * room set; the ETag changes exactly when the array does.
+   */
+  Listing listing() {
+    long v = version.get();
+    Listing cached = listing;
+    if (cached != null && cached.version == v)
+      return cached;
+    StringBuilder sb = new StringBuilder(16 + sorted.size() * 16).append('[');
+    for (String id : sorted.keySet()) {
+      if (sb.length() > 1)
+        sb.append(',');
+      sb.append('"').append(SimpleChatServer.escapeJsonString(id)).append('"');
+    }
+    // Built from a set at least as new as v, so tagging it v is safe
+    Listing built = new Listing(v, "\"rooms-" + epoch + "-" + v + "\"",
+        sb.append(']').toString().getBytes(StandardCharsets.UTF_8));
+    listing = built;
+    return built;
+  }
+
+  /**
+   * Every room with its creator, size and activity, as
+   * {@code {"version":n,"rooms":[...]}}. These numbers move with each post,
+   * so rather than a version the cache is keyed by a fingerprint of what is
+   * shown, which takes one pass over the rooms and no allocation.
+   */
+  Listing details(ToIntFunction<String> watching) {
+    long v = version.get();
+    long fingerprint = v;
+    for (ChatRoom room : sorted.values()) {
+      fingerprint = mix(fingerprint, room.lastSeq());
+      fingerprint = mix(fingerprint, room.size());
+      fingerprint = mix(fingerprint, watching.applyAsInt(room.id));
+    }
+    Listing cached = details;
+    if (cached != null && cached.version == fingerprint)
+      return cached;
+    StringBuilder sb = new StringBuilder(64 + sorted.size() * 160);
+    sb.append("{\"version\":").append(v).append(",\"rooms\":[");
+    boolean first = true;
+    for (ChatRoom room : sorted.values()) {
+      if (!first)
+        sb.append(',');
+      first = false;
+      sb.append("{\"id\":\"").append(SimpleChatServer.escapeJsonString(room.id))
+          .append("\",\"creator\":");
+      if (room.creator == null) {
+        sb.append("null");
+      } else {
+        sb.append('"').append(SimpleChatServer.escapeJsonString(room.creator))
+            .append('"');
+      }
+      sb.append(",\"createdAt\":");
+      appendInstant(sb, room.createdAtMillis);
+      sb.append(",\"messages\":").append(room.size())
+          .append(",\"lastSeq\":").append(room.lastSeq())
+          .append(",\"lastActivity\":");
+      appendInstant(sb, room.lastActivityMillis());
+      sb.append(",\"watching\":").append(watching.applyAsInt(room.id))
+          .append('}');
+    }
+    Listing built = new Listing(fingerprint,
+        "\"rooms-" + epoch + "-d" + Long.toHexString(fingerprint) + "\"",
+        sb.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+    details = built;
+    return built;
+  }
+
+  private static long mix(long hash, long value) {
+    return (hash ^ value) * 0x9E3779B97F4A7C15L + 0x632BE59BD9B4E019L;
+  }
+
+  private static void appendInstant(StringBuilder sb, long millis) {
+    if (millis <= 0) {
+      sb.append("null");
+    } else {
+      sb.append('"').append(Instant.ofEpochMilli(millis)).append('"');
+    }
+  }
+
+  int evictExpired() {
+    long cutoff =
+        maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : 0;
+    int evicted = 0;
+    for (ChatRoom room : rooms.values()) {
+      evicted += room.evict(maxMessagesPerRoom, cutoff);
+    }
+    return evicted;
+  }
+
+  void startEviction(long intervalMillis) {
+    if (maxMessagesPerRoom <= 0 && maxAgeMillis <= 0)
+      return;
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread t = new Thread(r, "room-retention");
+          t.setDaemon(true);
+          return t;
+        });
+    scheduler.scheduleWithFixedDelay(() -> {
+      int evicted = evictExpired();
+      if (evicted > 0) {
+        LOG.info("retention.evicted", "messages", evicted);
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * A rendered directory response and the ETag that identifies it. Encoded
+   * copies are made on first request and kept with it.
+   */
+  static final class Listing {
+    final long version;
+    final String etag;
+    final byte[] json;
+    private final AtomicReferenceArray<byte[]> encoded =
+        new AtomicReferenceArray<>(Compression.Coding.values().length);
+
+    Listing(long version, String etag, byte[] json) {
+      this.version = version;
+      this.etag = etag;
+      this.json = json;
+    }
+
+    /** The body in {@code coding}, or as is for null. */
+    byte[] body(Compression.Coding coding) {
+      if (coding == null)
+        return json;
+      byte[] bytes = encoded.get(coding.ordinal());
+      if (bytes == null) {
+        bytes = Compression.compress(json, coding);
+        encoded.set(coding.ordinal(), bytes);
+      }
+      return bytes;
+    }
+
+    /** Each encoding is its own representation with its own strong tag. */
+    String etag(Compression.Coding coding) {
+      return coding == null ? etag
+          : etag.substring(0, etag.length() - 1) + coding.etagSuffix + "\"";
+    }
+  }
+}
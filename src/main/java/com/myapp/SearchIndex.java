@@ -0,0 +1,331 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Inverted index over one room's messages, from lower-cased words to the
+ * slots of the messages that contain them. {@link ChatRoom} keeps it in step
+ * under its write lock as messages are appended, deleted and evicted.
+ *
+ * <p>Each word's postings are slots in ascending order: full blocks of
+ * {@value #BLOCK_SIZE} are stored as the first slot plus varint-encoded gaps,
+ * usually a byte or two each, and the newest slots sit in a small plain
+ * {@code int[]} until they fill a block. Like the room's views, a word's
+ * {@link Postings} is immutable once published, so searches never lock;
+ * appends fill arrays past what older readers can see, and deletes copy the
+ * one block they change.
+ *
+ * <p>A search walks the rarest word's postings from the newest slot down and
+ * leapfrogs the others to the same slot, so results come out newest first
+ * and a page stops as soon as it is full. Slots handed to the caller are
+ * candidates only: the room checks each against its current view.
+ */
+final class SearchIndex {
+  static final int BLOCK_SIZE = 128;
+  private static final int MAX_TERM_LENGTH = 64;
+  private static final Postings EMPTY =
+      new Postings(new Block[0], 0, new int[0], 0, 0);
+
+  private final Map<String, Postings> postings = new ConcurrentHashMap<>();
+
+  /** Distinct words, for metrics. */
+  int terms() {
+    return postings.size();
+  }
+
+  /** Indexes {@code text} at {@code slot}; slots must only grow. */
+  void add(int slot, String text) {
+    for (String term : tokenize(text)) {
+      Postings p = postings.get(term);
+      postings.put(term, (p == null ? EMPTY : p).append(slot));
+    }
+  }
+
+  /** Takes {@code slot} out of every word of {@code text}. */
+  void remove(int slot, String text) {
+    for (String term : tokenize(text)) {
+      Postings p = postings.get(term);
+      if (p == null)
+        continue;
+      Postings rest = p.remove(slot);
+      if (rest.isEmpty()) {
+        postings.remove(term);
+      } else if (rest != p) {
+        postings.put(term, rest);
+      }
+    }
+  }
+
+  /**
+   * Forgets whole blocks below {@code slot} after retention. Odd stragglers
+   * stay until their block goes; searches skip them anyway.
+   */
+  void dropBefore(int slot) {
+    for (String term : postings.keySet()) {
+      postings.computeIfPresent(term, (t, p) -> {
+        Postings rest = p.dropBefore(slot);
+        return rest.isEmpty() ? null : rest;
+      });
+    }
+  }
+
+  /**
+   * Offers {@code visitor} the slots below {@code before} holding every word
+   * of {@code terms}, newest first, until it returns false.
+   */
+  void search(List<String> terms, int before, IntPredicate visitor) {
+    if (terms.isEmpty() || before <= 0)
+      return;
+    Cursor[] cursors = new Cursor[terms.size()];
+    for (int i = 0; i < cursors.length; i++) {
+      Postings p = postings.get(terms.get(i));
+      if (p == null)
+        return;
+      cursors[i] = new Cursor(p);
+    }
+    // Rarest first, so it drives and the others only answer floor()
+    Arrays.sort(cursors, (a, b) -> Integer.compare(a.size, b.size));
+    int target = before - 1;
+    while (target >= 0) {
+      int candidate = cursors[0].floor(target);
+      if (candidate < 0)
+        return;
+      int agreed = candidate;
+      for (int i = 1; i < cursors.length && agreed == candidate; i++) {
+        agreed = cursors[i].floor(candidate);
+      }
+      if (agreed < 0)
+        return;
+      if (agreed == candidate) {
+        if (!visitor.test(candidate))
+          return;
+        target = candidate - 1;
+      } else {
+        target = agreed;
+      }
+    }
+  }
+
+  /**
+   * Distinct words of {@code text}: runs of letters and digits, lower-cased,
+   * and cut to {@value #MAX_TERM_LENGTH} characters.
+   */
+  static List<String> tokenize(String text) {
+    List<String> terms = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean word = i < text.length()
+          && Character.isLetterOrDigit(text.charAt(i));
+      if (word && start < 0) {
+        start = i;
+      } else if (!word && start >= 0) {
+        String term = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH))
+            .toLowerCase(Locale.ROOT);
+        if (!terms.contains(term))
+          terms.add(term);
+        start = -1;
+      }
+    }
+    return terms;
+  }
+
+  /** Block of slots: the first, then the gaps to each next one as varints. */
+  private static final class Block {
+    final int first;
+    final int last;
+    final int count;
+    final byte[] gaps;
+
+    private Block(int first, int last, int count, byte[] gaps) {
+      this.first = first;
+      this.last = last;
+      this.count = count;
+      this.gaps = gaps;
+    }
+
+    static Block encode(int[] slots, int count) {
+      byte[] buffer = new byte[(count - 1) * 5];
+      int length = 0;
+      for (int i = 1; i < count; i++) {
+        int gap = slots[i] - slots[i - 1];
+        while ((gap & ~0x7f) != 0) {
+          buffer[length++] = (byte) ((gap & 0x7f) | 0x80);
+          gap >>>= 7;
+        }
+        buffer[length++] = (byte) gap;
+      }
+      return new Block(slots[0], slots[count - 1], count,
+          Arrays.copyOf(buffer, length));
+    }
+
+    /** Writes the slots into {@code out} and returns how many. */
+    int decode(int[] out) {
+      int slot = first;
+      out[0] = slot;
+      int pos = 0;
+      for (int i = 1; i < count; i++) {
+        int gap = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = gaps[pos++];
+          gap |= (b & 0x7f) << shift;
+          shift += 7;
+        } while (b < 0);
+        slot += gap;
+        out[i] = slot;
+      }
+      return count;
+    }
+  }
+
+  /**
+   * One word's postings as of one change. Arrays are shared with the next
+   * version, which may write past this one's counts but never below them.
+   */
+  private static final class Postings {
+    final Block[] blocks;
+    final int blockCount;
+    final int[] tail; // Newest slots, not yet a full block
+    final int tailSize;
+    final int size;
+
+    Postings(Block[] blocks, int blockCount, int[] tail, int tailSize,
+        int size) {
+      this.blocks = blocks;
+      this.blockCount = blockCount;
+      this.tail = tail;
+      this.tailSize = tailSize;
+      this.size = size;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    Postings append(int slot) {
+      if (tailSize < BLOCK_SIZE) {
+        int[] t = tail;
+        if (tailSize == t.length)
+          t = Arrays.copyOf(t, Math.max(4, Math.min(BLOCK_SIZE, t.length * 2)));
+        t[tailSize] = slot;
+        return new Postings(blocks, blockCount, t, tailSize + 1, size + 1);
+      }
+      Block[] b = blocks;
+      if (blockCount == b.length)
+        b = Arrays.copyOf(b, Math.max(4, b.length * 2));
+      b[blockCount] = Block.encode(tail, tailSize);
+      int[] t = new int[4];
+      t[0] = slot;
+      return new Postings(b, blockCount + 1, t, 1, size + 1);
+    }
+
+    Postings remove(int slot) {
+      if (tailSize > 0 && slot >= tail[0]) {
+        int at = Arrays.binarySearch(tail, 0, tailSize, slot);
+        if (at < 0)
+          return this;
+        int[] t = new int[tail.length];
+        System.arraycopy(tail, 0, t, 0, at);
+        System.arraycopy(tail, at + 1, t, at, tailSize - at - 1);
+        return new Postings(blocks, blockCount, t, tailSize - 1, size - 1);
+      }
+      int index = blockFor(slot);
+      if (index < 0)
+        return this;
+      int[] slots = new int[BLOCK_SIZE];
+      int count = blocks[index].decode(slots);
+      int at = Arrays.binarySearch(slots, 0, count, slot);
+      if (at < 0)
+        return this;
+      System.arraycopy(slots, at + 1, slots, at, count - at - 1);
+      Block[] b;
+      int n = blockCount;
+      if (count == 1) {
+        b = new Block[blocks.length];
+        System.arraycopy(blocks, 0, b, 0, index);
+        System.arraycopy(blocks, index + 1, b, index, n - index - 1);
+        n--;
+      } else {
+        b = blocks.clone();
+        b[index] = Block.encode(slots, count - 1);
+      }
+      return new Postings(b, n, tail, tailSize, size - 1);
+    }
+
+    Postings dropBefore(int slot) {
+      int drop = 0;
+      while (drop < blockCount && blocks[drop].last < slot) {
+        drop++;
+      }
+      boolean tailGone = tailSize > 0 && blockCount == drop
+          && tail[tailSize - 1] < slot;
+      if (drop == 0 && !tailGone)
+        return this;
+      int dropped = tailGone ? tailSize : 0;
+      for (int i = 0; i < drop; i++) {
+        dropped += blocks[i].count;
+      }
+      Block[] b = Arrays.copyOfRange(blocks, drop, blocks.length);
+      return tailGone
+          ? new Postings(b, blockCount - drop, new int[0], 0, size - dropped)
+          : new Postings(b, blockCount - drop, tail, tailSize, size - dropped);
+    }
+
+    /** The last block whose first slot is at most {@code slot}, or -1. */
+    int blockFor(int slot) {
+      int lo = 0;
+      int hi = blockCount - 1;
+      int found = -1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (blocks[mid].first <= slot) {
+          found = mid;
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return found;
+    }
+  }
+
+  /** Answers floor queries on one version of a word's postings. */
+  private static final class Cursor {
+    final Postings postings;
+    final int size;
+    private final int[] decoded = new int[BLOCK_SIZE];
+    private int decodedBlock = -1;
+    private int decodedCount;
+
+    Cursor(Postings postings) {
+      this.postings = postings;
+      this.size = postings.size;
+    }
+
+    /** The largest slot at most {@code target}, or -1 if there is none. */
+    int floor(int target) {
+      Postings p = postings;
+      if (p.tailSize > 0 && p.tail[0] <= target)
+        return p.tail[floorIndex(p.tail, p.tailSize, target)];
+      int index = p.blockFor(target);
+      if (index < 0)
+        return -1;
+      if (index != decodedBlock) {
+        decodedCount = p.blocks[index].decode(decoded);
+        decodedBlock = index;
+      }
+      return decoded[floorIndex(decoded, decodedCount, target)];
+    }
+
+    // Index of the largest value at most target; values[0] <= target
+    private static int floorIndex(int[] values, int count, int target) {
+      int at = Arrays.binarySearch(values, 0, count, target);
+      return at >= 0 ? at : -at - 2;
+    }
+  }
+}
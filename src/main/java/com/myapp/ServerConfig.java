@@ -0,0 +1,64 @@
+/**
+ * Server settings. A key such as {@code chat.push.maxSubscribersPerRoom} is
+ * read from the system property of that name first, then from the
+ * environment variable {@code CHAT_PUSH_MAX_SUBSCRIBERS_PER_ROOM}, then falls
+ * back to the given default.
+ */
+final class ServerConfig {
+  private ServerConfig() {}
+
+  static String get(String key, String defaultValue) {
+    String value = System.getProperty(key);
+    if (value == null) {
+      value = System.getenv(envName(key));
+    }
+    return value == null || value.trim().isEmpty() ? defaultValue
+                                                   : value.trim();
+  }
+
+  static int getInt(String key, int defaultValue) {
+    String value = get(key, null);
+    return value == null ? defaultValue : parse(key, value).intValue();
+  }
+
+  static long getLong(String key, long defaultValue) {
+    String value = get(key, null);
+    return value == null ? defaultValue : parse(key, value);
+  }
+
+  static boolean getBoolean(String key, boolean defaultValue) {
+    String value = get(key, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+
+  /** Hosting platforms hand out the listen port as plain {@code PORT}. */
+  static int port() {
+    String platformPort = System.getenv("PORT");
+    return getInt("chat.port",
+        platformPort == null ? 8000 : parse("PORT", platformPort).intValue());
+  }
+
+  static String envName(String key) {
+    StringBuilder sb = new StringBuilder(key.length() + 8);
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c == '.' || c == '-') {
+        sb.append('_');
+      } else if (Character.isUpperCase(c)) {
+        sb.append('_').append(c);
+      } else {
+        sb.append(Character.toUpperCase(c));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static Long parse(String key, String value) {
+    try {
+      return Long.valueOf(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          "Setting " + key + " must be a number, got '" + value + "'", e);
+    }
+  }
+}
@@ -0,0 +1,297 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login sessions by bearer token. A session ends on logout, after
+ * {@code idleMillis} without use, {@code maxAgeMillis} after login, or when
+ * its user opens more than {@code maxPerUser} and it is the oldest. Checking a
+ * token is a single map lookup; expired sessions met there are dropped on the
+ * spot and the rest are found by a coarse timer wheel.
+ *
+ * <p>A session can also hand out single-use tickets that expire after
+ * {@value #TICKET_MILLIS} ms, for clients such as EventSource that can only
+ * authenticate through the URL, where a token would end up in access and
+ * proxy logs. Tickets live only on the node that issued them.
+ */
+class SessionStore {
+  private static final Log LOG = Log.named("SessionStore");
+  private static final long TICK_MILLIS = 1000;
+  private static final int WHEEL_SLOTS = 512;
+  static final long TICKET_MILLIS = 30_000;
+  private static final int MAX_TICKETS = 10_000;
+
+  private final ConcurrentHashMap<String, Session> byToken =
+      new ConcurrentHashMap<>();
+  // Oldest first; each deque is only touched inside the map's compute
+  private final ConcurrentHashMap<String, ArrayDeque<Session>> byUser =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Ticket> tickets =
+      new ConcurrentHashMap<>();
+  private final List<Set<Session>> wheel = new ArrayList<>(WHEEL_SLOTS);
+  private final long idleMillis;
+  private final long maxAgeMillis;
+  private final int maxPerUser;
+  private volatile ChatJournal.Events journal;
+  private long sweptTick; // Sweeper thread only
+
+  /** Non-positive limits turn that kind of expiry or the cap off. */
+  SessionStore(long idleMillis, long maxAgeMillis, int maxPerUser) {
+    this.idleMillis = idleMillis;
+    this.maxAgeMillis = maxAgeMillis;
+    this.maxPerUser = maxPerUser;
+    for (int i = 0; i < WHEEL_SLOTS; i++) {
+      wheel.add(ConcurrentHashMap.newKeySet());
+    }
+    this.sweptTick = System.currentTimeMillis() / TICK_MILLIS;
+  }
+
+  /** Starts a session and returns its token. */
+  String create(String username) {
+    long now = System.currentTimeMillis();
+    Session session =
+        new Session(UUID.randomUUID().toString(), username, now, now);
+    ChatJournal.Events j = journal;
+    if (j != null)
+      j.session(session.token, username, now, now);
+    add(session);
+    return session.token;
+  }
+
+  /** Re-adds a logged session unless it has expired since or is here. */
+  void restore(String token, String username, long createdAtMillis,
+      long lastSeenMillis) {
+    if (byToken.containsKey(token))
+      return;
+    Session session =
+        new Session(token, username, createdAtMillis, lastSeenMillis);
+    if (deadline(session) > System.currentTimeMillis())
+      add(session);
+  }
+
+  /**
+   * The user behind {@code token}, or null if there is no such live session.
+   * Use is recorded at most once a tick, so hot tokens do not keep writing
+   * the same field from every thread.
+   */
+  String validate(String token) {
+    if (token == null)
+      return null;
+    Session session = byToken.get(token);
+    if (session == null)
+      return null;
+    long now = System.currentTimeMillis();
+    if (now >= deadline(session)) {
+      end(session, false);
+      return null;
+    }
+    if (now - session.lastSeen >= TICK_MILLIS)
+      session.lastSeen = now;
+    return session.username;
+  }
+
+  /**
+   * A new ticket standing for the session behind {@code token}, or null if
+   * that session is not live or too many tickets are outstanding.
+   */
+  String issueTicket(String token) {
+    if (validate(token) == null)
+      return null;
+    long now = System.currentTimeMillis();
+    if (tickets.size() >= MAX_TICKETS) {
+      dropExpiredTickets(now);
+      if (tickets.size() >= MAX_TICKETS)
+        return null;
+    }
+    String ticket = UUID.randomUUID().toString();
+    tickets.put(ticket, new Ticket(token, now + TICKET_MILLIS));
+    return ticket;
+  }
+
+  /**
+   * The user behind {@code ticket}, which is used up by the call; null if it
+   * is unknown, used, expired, or its session has ended since.
+   */
+  String redeemTicket(String ticket) {
+    Ticket t = ticket == null ? null : tickets.remove(ticket);
+    if (t == null || System.currentTimeMillis() >= t.expiresAt)
+      return null;
+    return validate(t.sessionToken);
+  }
+
+  /**
+   * The user behind {@code ticket} without using it up, for rate limiting
+   * the request that redeems it; null where {@link #redeemTicket} would be.
+   */
+  String ticketUser(String ticket) {
+    Ticket t = ticket == null ? null : tickets.get(ticket);
+    if (t == null || System.currentTimeMillis() >= t.expiresAt)
+      return null;
+    return validate(t.sessionToken);
+  }
+
+  /** Ends the session; false if it was not live. */
+  boolean remove(String token) {
+    Session session = token == null ? null : byToken.get(token);
+    return session != null && end(session, true);
+  }
+
+  int size() {
+    return byToken.size();
+  }
+
+  /** Starts logging changes; call after replay so it is not logged twice. */
+  void setJournal(ChatJournal.Events journal) {
+    this.journal = journal;
+  }
+
+  void writeState(ChatJournal.Events out) {
+    for (Session session : byToken.values()) {
+      out.session(session.token, session.username, session.createdAt,
+          session.lastSeen);
+    }
+  }
+
+  void startSweeper() {
+    if (idleMillis <= 0 && maxAgeMillis <= 0)
+      return;
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread t = new Thread(r, "session-sweeper");
+          t.setDaemon(true);
+          return t;
+        });
+    scheduler.scheduleAtFixedRate(
+        this::sweep, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void add(Session session) {
+    byToken.put(session.token, session);
+    List<Session> overCap = new ArrayList<>(1);
+    byUser.compute(session.username, (user, sessions) -> {
+      if (sessions == null)
+        sessions = new ArrayDeque<>();
+      sessions.addLast(session);
+      while (maxPerUser > 0 && sessions.size() > maxPerUser) {
+        overCap.add(sessions.pollFirst());
+      }
+      return sessions;
+    });
+    schedule(session);
+    for (Session oldest : overCap) {
+      end(oldest, true);
+    }
+  }
+
+  /**
+   * Expiry is not logged: a replayed session is checked against its logged
+   * times, which are never later than the real ones, so it is dropped anyway.
+   * That also keeps one cluster node's idea of idle from ending a session
+   * another node is still serving.
+   */
+  private boolean end(Session session, boolean log) {
+    if (!byToken.remove(session.token, session))
+      return false;
+    byUser.computeIfPresent(session.username, (user, sessions) -> {
+      sessions.remove(session);
+      return sessions.isEmpty() ? null : sessions;
+    });
+    wheel.get(session.slot).remove(session);
+    ChatJournal.Events j = journal;
+    if (j != null && log)
+      j.sessionEnded(session.token);
+    return true;
+  }
+
+  private long deadline(Session session) {
+    long deadline = Long.MAX_VALUE;
+    if (idleMillis > 0)
+      deadline = session.lastSeen + idleMillis;
+    if (maxAgeMillis > 0)
+      deadline = Math.min(deadline, session.createdAt + maxAgeMillis);
+    return deadline;
+  }
+
+  // Deadlines past one turn of the wheel are revisited each time round
+  private void schedule(Session session) {
+    long deadline = deadline(session);
+    if (deadline == Long.MAX_VALUE)
+      return;
+    int slot = slotAfter(deadline);
+    session.slot = slot;
+    wheel.get(slot).add(session);
+  }
+
+  // The first tick that starts at or after the deadline
+  private static int slotAfter(long deadline) {
+    return (int) ((deadline / TICK_MILLIS + 1) % WHEEL_SLOTS);
+  }
+
+  private void sweep() {
+    long now = System.currentTimeMillis();
+    long nowTick = now / TICK_MILLIS;
+    // Catches up on ticks missed to pauses, but never more than one turn
+    long from = Math.max(sweptTick + 1, nowTick - WHEEL_SLOTS + 1);
+    int ended = 0;
+    for (long tick = from; tick <= nowTick; tick++) {
+      Set<Session> bucket = wheel.get((int) (tick % WHEEL_SLOTS));
+      for (Session session : bucket) {
+        if (byToken.get(session.token) != session) {
+          bucket.remove(session); // Ended while being rescheduled
+        } else if (now >= deadline(session)) {
+          if (end(session, false))
+            ended++;
+          bucket.remove(session);
+        } else {
+          // Used since it was scheduled; move it to its new deadline
+          int slot = slotAfter(deadline(session));
+          if (wheel.get(slot) != bucket) {
+            bucket.remove(session);
+            session.slot = slot;
+            wheel.get(slot).add(session);
+          }
+        }
+      }
+    }
+    sweptTick = nowTick;
+    dropExpiredTickets(now);
+    if (ended > 0) {
+      LOG.info("sessions.expired", "count", ended);
+    }
+  }
+
+  private void dropExpiredTickets(long now) {
+    tickets.values().removeIf(t -> now >= t.expiresAt);
+  }
+
+  private static final class Ticket {
+    final String sessionToken;
+    final long expiresAt;
+
+    Ticket(String sessionToken, long expiresAt) {
+      this.sessionToken = sessionToken;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static final class Session {
+    final String token;
+    final String username;
+    final long createdAt;
+    volatile long lastSeen;
+    volatile int slot;
+
+    Session(String token, String username, long createdAt, long lastSeen) {
+      this.token = token;
+      this.username = username;
+      this.createdAt = createdAt;
+      this.lastSeen = lastSeen;
+    }
+  }
+}
@@ -1,142 +1,419 @@
 import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.time.Instant;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 public class SimpleChatServer {
+  private static final Log LOG = Log.named("SimpleChatServer");
   private static final Map<String, UserObject> users =
       new ConcurrentHashMap<>();
-  private static final Map<String, String> activeSessions =
-      new ConcurrentHashMap<>();
-  private static final Map<String, List<MessageObject>> roomMessages =
-      new ConcurrentHashMap<>();
-
-  static {
-    roomMessages.computeIfAbsent(
-        "general", k -> Collections.synchronizedList(new ArrayList<>()));
-  }
+  private static final SessionStore sessions = new SessionStore(
+      TimeUnit.MINUTES.toMillis(
+          ServerConfig.getLong("chat.session.idleMinutes", 24 * 60)),
+      TimeUnit.DAYS.toMillis(ServerConfig.getLong("chat.session.maxAgeDays", 30)),
+      ServerConfig.getInt("chat.session.maxPerUser", 10));
+  private static final RoomStore rooms = new RoomStore(
+      ServerConfig.getInt("chat.retention.maxMessages", 10_000),
+      TimeUnit.HOURS.toMillis(
+          ServerConfig.getLong("chat.retention.maxAgeHours", 0)));
 
   private static final List<String> FORBIDDEN_WORDS =
       Arrays.asList("darn", "heck", "badword", "crap", "poop", "stupid", "job", "employment", "job application");
   private static final String MODERATION_REPLACEMENT = "[censored]";
+  private static final ModerationEngine moderation = createModerationEngine();
+  private static final PasswordHasher hasher = PasswordHasher.fromConfig();
+  private static final int DEFAULT_PAGE_SIZE = 50;
+  private static final int MAX_PAGE_SIZE = 500;
+  private static final int RESPONSE_BUFFER_BYTES = 16 * 1024;
+  private static final int MAX_BATCH_MESSAGES =
+      ServerConfig.getInt("chat.batch.maxMessages", 500);
+  // Fetches are the most frequent request, so only a sample is logged
+  private static final int LOG_SAMPLE_EVERY =
+      ServerConfig.getInt("chat.log.sampleEvery", 100);
+  private static final long STATIC_MAX_AGE_SECONDS =
+      ServerConfig.getLong("chat.static.maxAgeSeconds", 300);
+  private static StaticAssetCache staticAssets;
+  private static final Metrics metrics = new Metrics();
+  private static final long LONG_POLL_TIMEOUT_MS =
+      ServerConfig.getLong("chat.push.longPollTimeoutMs", 25_000);
+  private static final long SSE_HEARTBEAT_MS =
+      ServerConfig.getLong("chat.push.heartbeatMs", 15_000);
+  private static final int MAX_SUBSCRIBERS_PER_ROOM =
+      ServerConfig.getInt("chat.push.maxSubscribersPerRoom", 500);
+
+  private static final SubscriptionHub subscriptions = new SubscriptionHub();
+  private static final RateLimiter rateLimiter =
+      RateLimiter.fromConfig(SimpleChatServer::rateLimitedUser);
+  private static ChatJournal journal; // Null unless chat.data.dir is set
+  private static Cluster cluster; // Null unless chat.cluster.nodes is set
+  // Where local changes are logged: the journal, the cluster, both or null
+  private static ChatJournal.Events changes;
 
   public static void main(String[] args) throws IOException {
-    int port = 8000;
-    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-
-    server.createContext("/", new StaticFileHandler());
-    server.createContext("/register", new RegisterHandler());
-    server.createContext("/login", new LoginHandler());
-    server.createContext("/postMessage", new PostMessageHandler());
-    server.createContext("/getMessages", new GetMessagesHandler());
-    server.createContext("/createRoom", new CreateRoomHandler());
-    server.createContext("/getRooms", new GetRoomsHandler());
-    server.createContext("/deleteMessage", new DeleteMessageHandler());
-
-    server.setExecutor(null);
+    String dataDir = ServerConfig.get("chat.data.dir", null);
+    if (dataDir != null) {
+      journal = ChatJournal.open(Paths.get(dataDir),
+          ServerConfig.getLong("chat.journal.segmentBytes", 64L << 20),
+          ServerConfig.getLong("chat.journal.fsyncIntervalMs", 20),
+          new StateReplayer(), SimpleChatServer::writeState);
+      journal.startSnapshots(TimeUnit.MINUTES.toMillis(
+          ServerConfig.getLong("chat.journal.snapshotIntervalMinutes", 10)));
+      Runtime.getRuntime().addShutdownHook(
+          new Thread(journal::close, "journal-shutdown"));
+    }
+    cluster = Cluster.fromConfig(LOCAL);
+    changes = ChatJournal.tee(
+        journal == null ? null : journal.events(), cluster);
+    rooms.setJournal(changes);
+    sessions.setJournal(changes);
+    if (cluster != null) {
+      cluster.start();
+      registerClusterGauges();
+    }
+    // After replay, so a journaled general keeps its creation time
+    rooms.getOrCreate("general");
+
+    staticAssets = StaticAssetCache.open(ServerConfig.get("chat.static.dir", null));
+    if (ServerConfig.getBoolean("chat.static.watch", false)) {
+      staticAssets.watch();
+    }
+
+    int port = ServerConfig.port();
+    int backlog = ServerConfig.getInt("chat.backlog", 0);
+    HttpServer server = createServer(new InetSocketAddress(port), backlog);
+
+    register(server, "/", new StaticFileHandler(), null);
+    register(server, "/register", new RegisterHandler(), rateLimiter.auth);
+    register(server, "/login", new LoginHandler(), rateLimiter.auth);
+    register(server, "/logout", new LogoutHandler(), rateLimiter.write);
+    register(server, "/postMessage", new PostMessageHandler(),
+        rateLimiter.write);
+    register(server, "/postMessages", new PostMessagesHandler(),
+        rateLimiter.write);
+    register(server, "/getMessages", new GetMessagesHandler(),
+        rateLimiter.read);
+    register(server, "/search", new SearchHandler(), rateLimiter.read);
+    register(server, "/subscribe", new SubscribeHandler(), rateLimiter.read);
+    register(server, "/subscribeTicket", new SubscribeTicketHandler(),
+        rateLimiter.read);
+    register(server, "/createRoom", new CreateRoomHandler(), rateLimiter.write);
+    register(server, "/getRooms", new GetRoomsHandler(), rateLimiter.read);
+    register(server, "/deleteMessage", new DeleteMessageHandler(),
+        rateLimiter.write);
+    register(server, "/metrics", new MetricsHandler(), null);
+
+    RequestExecutor executor = RequestExecutor.fromConfig();
+    registerGauges(executor);
+    if (server instanceof NioHttpServer) {
+      metrics.gauge("chat_nio_connections",
+          "Open client connections on the NIO transport.",
+          ((NioHttpServer) server)::connections);
+      metrics.gauge("chat_nio_buffered_body_bytes",
+          "Request body bytes held by the NIO transport.",
+          ((NioHttpServer) server)::bufferedBodyBytes);
+    }
+    server.setExecutor(executor);
     server.start();
+    sessions.startSweeper();
+    rateLimiter.startSweeper();
+    rooms.startEviction(TimeUnit.SECONDS.toMillis(10));
+    moderation.watch(TimeUnit.SECONDS.toMillis(30));
+
+    LOG.info("server.started", "port", port, "executor",
+        executor == null ? "single dispatcher thread" : executor.describe(),
+        "passwords", hasher.describe(), "url", "http://localhost:" + port);
+  }
+
+  /** The JDK server, or with {@code chat.transport=nio} our own. */
+  private static HttpServer createServer(InetSocketAddress address,
+      int backlog) throws IOException {
+    String transport = ServerConfig.get("chat.transport", "jdk");
+    if ("nio".equals(transport))
+      return NioHttpServer.open(address, backlog);
+    if (!"jdk".equals(transport)) {
+      throw new IllegalArgumentException("Unknown chat.transport '"
+          + transport + "', expected jdk or nio.");
+    }
+    return HttpServer.create(address, backlog);
+  }
 
-    System.out.println(
-        "Secure Chat Server with Dynamic Rooms started on port " + port + ".");
-    System.out.println("Open http://localhost:" + port + " in your browser.");
+  private static void registerGauges(RequestExecutor executor) {
+    metrics.gauge("chat_rooms", "Rooms.", rooms::size);
+    metrics.labelledGauge("chat_room_messages", "Messages kept per room.",
+        out -> {
+          for (ChatRoom room : rooms.all()) {
+            out.sample("chat_room_messages", "room", room.id, room.size());
+          }
+        });
+    metrics.labelledGauge("chat_search_terms",
+        "Distinct words in each room's search index.", out -> {
+          for (ChatRoom room : rooms.all()) {
+            out.sample("chat_search_terms", "room", room.id, room.searchTerms());
+          }
+        });
+    metrics.gauge("chat_sessions", "Live login sessions.", sessions::size);
+    metrics.gauge("chat_ratelimit_buckets",
+        "Clients with a partly spent rate limit.", rateLimiter::buckets);
+    metrics.counter("chat_ratelimit_rejected_total",
+        "Requests answered 429 for exceeding a rate limit.",
+        rateLimiter::rejected);
+    metrics.gauge("chat_subscribers", "Parked /subscribe requests.",
+        subscriptions::size);
+    metrics.gauge("chat_executor_queue_depth",
+        "Requests waiting for a worker thread.",
+        () -> executor == null ? 0 : executor.queueDepth());
+    metrics.gauge("chat_auth_hash_queue_depth",
+        "Logins and registrations waiting for a hashing thread.",
+        hasher::queueDepth);
+    metrics.counter("chat_moderation_hits_total",
+        "Messages and room names with a forbidden word.", moderation::hits);
+    metrics.counter("chat_log_dropped_total",
+        "Log entries dropped because the buffer was full.", Log::dropped);
+  }
+
+  /** Serves {@code path}, within {@code limit} per client unless null. */
+  private static void register(HttpServer server, String path,
+      HttpHandler handler, RateLimiter.Limit limit) {
+    HttpContext context = server.createContext(path, handler);
+    context.getFilters().add(metrics.filter(path));
+    context.getFilters().add(new RequestExecutor.OverloadFilter());
+    if (limit != null)
+      context.getFilters().add(rateLimiter.filter(limit));
+    context.getFilters().add(RequestCodec.filter());
   }
 
   private static class UserObject {
     String username;
-    String hashedPassword;
-    String salt;
+    String hashedPassword; // See PasswordHasher for the format
+    String salt; // Only used by hashes from before PasswordHasher, else ""
 
-    public UserObject(String username, String password) {
+    UserObject(String username, String salt, String hashedPassword) {
       this.username = username;
-      this.salt = generateSalt();
-      this.hashedPassword = hashPassword(password, this.salt);
+      this.salt = salt;
+      this.hashedPassword = hashedPassword;
     }
 
+    // Slow by design; call on the hashing pool
     public boolean verifyPassword(String passwordAttempt) {
-      if (passwordAttempt == null || this.hashedPassword == null) {
-        return false;
+      return hasher.verify(passwordAttempt, salt, hashedPassword);
+    }
+  }
+
+  /**
+   * Rebuilds users, sessions and rooms from journal records at startup, and
+   * as {@link ReplicaApplier} from a cluster peer's records.
+   */
+  private static class StateReplayer implements ChatJournal.Events {
+    private long messages;
+
+    @Override
+    public void user(String username, String salt, String hashedPassword) {
+      users.put(username.toLowerCase(),
+          new UserObject(username, salt, hashedPassword));
+    }
+
+    @Override
+    public void session(String token, String username, long createdAtMillis,
+        long lastSeenMillis) {
+      sessions.restore(token, username, createdAtMillis, lastSeenMillis);
+    }
+
+    @Override
+    public void sessionEnded(String token) {
+      sessions.remove(token);
+    }
+
+    @Override
+    public void room(String roomId, String creator, long createdAtMillis) {
+      rooms.restore(roomId, creator, createdAtMillis);
+    }
+
+    @Override
+    public void message(String roomId, String id, long seq, String sender,
+        String text, long createdAtMillis) {
+      room(roomId).restore(
+          new MessageObject(id, seq, sender, text, roomId, createdAtMillis));
+      if (++messages % 100_000 == 0) {
+        rooms.evictExpired(); // Keep replay within the retention bounds
+      }
+    }
+
+    @Override
+    public void deleted(String roomId, String messageId, long seq) {
+      room(roomId).restoreDelete(messageId, seq);
+    }
+
+    @Override
+    public void roomSeq(String roomId, long lastSeq) {
+      room(roomId).restoreSeq(lastSeq);
+    }
+
+    // Restored rather than created, so making it is not logged again
+    ChatRoom room(String roomId) {
+      ChatRoom room = rooms.get(roomId);
+      if (room == null) {
+        rooms.restore(roomId, null, System.currentTimeMillis());
+        room = rooms.get(roomId);
       }
-      return this.hashedPassword.equals(
-          hashPassword(passwordAttempt, this.salt));
+      return room;
     }
   }
 
-  private static class MessageObject {
-    String id; // <<< NEW: Unique ID for the message
-    String sender;
-    String text;
-    String timestamp;
-    String room;
+  /**
+   * Applies one cluster peer's changes, then wakes the subscribers of the
+   * rooms they touched, once per batch.
+   */
+  private static final class ReplicaApplier extends StateReplayer
+      implements Cluster.Replica {
+    private final Set<ChatRoom> touched = new HashSet<>();
 
-    public MessageObject(String sender, String text, String room) {
-        this.id = UUID.randomUUID().toString(); // Assign a unique ID on creation
-        this.sender = sender;
-        this.text = text;
-        this.room = room;
-        this.timestamp = Instant.now().atOffset(ZoneOffset.UTC).format(DateTimeFormatter.ISO_INSTANT);
+    @Override
+    ChatRoom room(String roomId) {
+      ChatRoom room = super.room(roomId);
+      touched.add(room);
+      return room;
     }
 
-    // Getter for ID (optional, but good practice if other parts need it)
-    public String getId() {
-        return id;
+    @Override
+    public void applied() {
+      for (ChatRoom room : touched) {
+        subscriptions.publish(room);
+      }
+      touched.clear();
+    }
+  }
+
+  /** This node's side of the cluster protocol. */
+  private static final class ClusterLocal implements Cluster.Local {
+    @Override
+    public void writeState(ChatJournal.Events out, Cluster cluster) {
+      for (UserObject user : users.values()) {
+        out.user(user.username, user.salt, user.hashedPassword);
+      }
+      sessions.writeState(out);
+      rooms.writeChanges(out, cluster::owns);
+    }
+
+    @Override
+    public Cluster.Replica replica() {
+      return new ReplicaApplier();
+    }
+
+    @Override
+    public List<MessageObject> append(String roomId, String sender,
+        List<String> texts) {
+      ChatRoom room = rooms.getOrCreate(roomId, sender);
+      List<MessageObject> appended = room.appendAll(sender, texts);
+      subscriptions.publish(room);
+      return appended;
     }
 
-    public String getSender() { // Good to have getters if needed elsewhere
-        return sender;
+    @Override
+    public long delete(String roomId, String messageId, String sender) {
+      ChatRoom room = rooms.get(roomId);
+      if (room == null || !room.delete(messageId, sender))
+        return -1;
+      subscriptions.publish(room);
+      // At least the delete's seq, which is all the caller waits for
+      return room.lastSeq();
     }
 
     @Override
-    public String toString() { // For debugging on server
-        return "MessageObject{" +
-                "id='" + id + '\'' +
-                ", sender='" + sender + '\'' +
-                ", text='" + text + '\'' +
-                ", timestamp='" + timestamp + '\'' +
-                ", room='" + room + '\'' +
-                '}';
+    public boolean createRoom(String roomId, String creator) {
+      return rooms.create(roomId, creator);
     }
 
-    public String toJSON() {
-        // Include the ID in the JSON sent to the client
-        return String.format("{\"id\":\"%s\",\"sender\":\"%s\",\"text\":\"%s\",\"timestamp\":\"%s\",\"room\":\"%s\"}",
-                escapeJsonString(id), // Add ID here
-                escapeJsonString(sender),
-                escapeJsonString(text),
-                escapeJsonString(timestamp),
-                escapeJsonString(room)
-        );
+    @Override
+    public long lastSeq(String roomId) {
+      ChatRoom room = rooms.get(roomId);
+      return room == null ? -1 : room.lastSeq();
     }
   }
 
+  private static final ClusterLocal LOCAL = new ClusterLocal();
+
+  // Writes go to the room's owner: here, or over the cluster
+
+  private static List<MessageObject> append(String roomId, String sender,
+      List<String> texts) throws IOException {
+    if (cluster != null && !cluster.owns(roomId))
+      return cluster.append(roomId, sender, texts);
+    return LOCAL.append(roomId, sender, texts);
+  }
+
+  private static boolean delete(String roomId, String messageId, String sender)
+      throws IOException {
+    if (cluster != null && !cluster.owns(roomId))
+      return cluster.delete(roomId, messageId, sender);
+    return LOCAL.delete(roomId, messageId, sender) >= 0;
+  }
+
+  private static boolean createRoom(String roomId, String creator)
+      throws IOException {
+    if (cluster != null && !cluster.owns(roomId))
+      return cluster.createRoom(roomId, creator);
+    return LOCAL.createRoom(roomId, creator);
+  }
+
+  private static void sendOwnerUnreachable(HttpExchange exchange,
+      String roomId, IOException e) throws IOException {
+    LOG.warn("cluster.forward.failed", "room", roomId, "owner",
+        cluster.ownerOf(roomId), "error", e.getMessage());
+    exchange.getResponseHeaders().set("Retry-After", "1");
+    sendJsonResponse(exchange, 503,
+        "{\"success\":false,\"message\":\"Room owner unreachable, please "
+        + "try again.\"}");
+  }
+
+  private static void registerClusterGauges() {
+    metrics.gauge("chat_cluster_peers_connected",
+        "Cluster peers this node is replicating to.", cluster::connectedPeers);
+    metrics.gauge("chat_cluster_backlog",
+        "Changes queued for cluster peers and not yet sent.", cluster::backlog);
+    metrics.counter("chat_cluster_forwarded_total",
+        "Writes forwarded to the owner of their room.", cluster::forwarded);
+    metrics.counter("chat_cluster_records_applied_total",
+        "Records applied from cluster peers.", cluster::recordsApplied);
+  }
+
+  private static void writeState(ChatJournal.Events out) {
+    for (UserObject user : users.values()) {
+      out.user(user.username, user.salt, user.hashedPassword);
+    }
+    sessions.writeState(out);
+    rooms.writeState(out);
+  }
+
   static class DeleteMessageHandler implements HttpHandler {
+    private static final Log LOG = Log.named("DeleteMessageHandler");
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         String authenticatedUser = getAuthenticatedUsername(exchange);
@@ -168,71 +445,106 @@ public class SimpleChatServer {
             return;
         }
 
-        System.out.println("DeleteMessageHandler: User '" + authenticatedUser + "' attempting to delete message '" + messageId + "' in room '" + roomId + "'");
 
-        List<MessageObject> messagesInRoom = roomMessages.get(roomId);
-
-        if (messagesInRoom == null) {
+        if (!rooms.contains(roomId)) {
             sendJsonResponse(exchange, 404, "{\"success\":false,\"message\":\"Room not found.\"}");
             return;
         }
 
-        boolean removed = false;
-        synchronized (messagesInRoom) { // Ensure thread-safe removal
-            // Find the message and verify ownership before removing
-            // Using removeIf is a concise way to do this
-            removed = messagesInRoom.removeIf(msg -> 
-                msg.getId().equals(messageId) && msg.getSender().equals(authenticatedUser)
-            );
+        // Verifies ownership and records a tombstone for incremental fetches
+        boolean removed;
+        try {
+            removed = delete(roomId, messageId, authenticatedUser);
+        } catch (IOException e) {
+            sendOwnerUnreachable(exchange, roomId, e);
+            return;
         }
 
         if (removed) {
-            System.out.println("DeleteMessageHandler: Message '" + messageId + "' deleted successfully by '" + authenticatedUser + "'.");
+            LOG.info("message.deleted", "user", authenticatedUser, "room", roomId, "id", messageId);
             sendJsonResponse(exchange, 200, "{\"success\":true,\"message\":\"Message deleted.\"}");
         } else {
-            System.out.println("DeleteMessageHandler: Message '" + messageId + "' not found, or user '" + authenticatedUser + "' not authorized to delete.");
+            LOG.info("message.delete.refused", "user", authenticatedUser, "room", roomId, "id", messageId);
             // Send 404 if not found, or 403 Forbidden if found but not authorized (though our check combines these)
             sendJsonResponse(exchange, 404, "{\"success\":false,\"message\":\"Message not found or you are not authorized to delete it.\"}");
         }
     }
   }
   
+  /**
+   * Serves the web client from {@link StaticAssetCache}: the best encoding
+   * the client accepts, a strong ETag per encoding, and 304 when the client
+   * already holds it. HTML is revalidated on every load so a deploy shows up
+   * at once; everything else may be reused for a while.
+   */
   static class StaticFileHandler implements HttpHandler {
+    private static final Log LOG = Log.named("StaticFileHandler");
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
+      String method = exchange.getRequestMethod();
+      boolean head = "HEAD".equalsIgnoreCase(method);
+      if (!head && !"GET".equalsIgnoreCase(method)) {
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        sendTextResponse(exchange, 405, "405 (Method Not Allowed)");
+        return;
+      }
       String requestedPath = exchange.getRequestURI().getPath();
-      String filePathString;
-      if (requestedPath.equals("/") || requestedPath.isEmpty()) {
-        filePathString = "src/main/resources/static/index.html";
-      } else {
-        if (requestedPath.contains("..")) {
-          sendTextResponse(exchange, 400, "400 (Bad Request) Invalid path.");
-          return;
-        }
-        filePathString = "src/main/resources/static"
-            + (requestedPath.startsWith("/") ? requestedPath
-                                             : "/" + requestedPath);
-      }
-      Path filePath = Paths.get(filePathString);
-      if (Files.exists(filePath) && !Files.isDirectory(filePath)) {
-        String contentType = "text/plain";
-        if (filePathString.endsWith(".html"))
-          contentType = "text/html";
-        else if (filePathString.endsWith(".css"))
-          contentType = "text/css";
-        else if (filePathString.endsWith(".js"))
-          contentType = "application/javascript";
-        sendResponse(exchange, 200, contentType, Files.readAllBytes(filePath));
-      } else {
-        System.err.println(
-            "StaticFileHandler: File not found: " + filePath.toAbsolutePath());
+      StaticAssetCache.Asset asset = staticAssets.get(requestedPath);
+      if (asset == null) {
+        LOG.debug("static.notFound", "path", requestedPath);
         sendTextResponse(exchange, 404,
-            "404 (Not Found)\nFile not found: " + filePathString);
+            "404 (Not Found)\nFile not found: " + requestedPath);
+        return;
+      }
+
+      String acceptEncoding =
+          exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      byte[] body = asset.identity;
+      String etag = asset.etag;
+      String encoding = null;
+      if (asset.brotli != null && Compression.accepts(acceptEncoding, "br")) {
+        body = asset.brotli;
+        etag = asset.brotliEtag;
+        encoding = "br";
+      } else if (asset.gzip != null
+          && Compression.accepts(acceptEncoding, "gzip")) {
+        body = asset.gzip;
+        etag = asset.gzipEtag;
+        encoding = "gzip";
+      }
+
+      Headers headers = exchange.getResponseHeaders();
+      headers.set("ETag", etag);
+      headers.set("Cache-Control", asset.isHtml()
+              ? "no-cache"
+              : "public, max-age=" + STATIC_MAX_AGE_SECONDS);
+      if (asset.gzip != null || asset.brotli != null)
+        headers.set("Vary", "Accept-Encoding");
+      if (etagMatches(
+              exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+      headers.set("Content-Type", asset.contentType);
+      if (encoding != null)
+        headers.set("Content-Encoding", encoding);
+      if (head) {
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+        return;
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
       }
     }
   }
 
   static class RegisterHandler implements HttpHandler {
+    private static final Log LOG = Log.named("RegisterHandler");
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
       if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
@@ -277,21 +589,32 @@ public class SimpleChatServer {
             "{\"success\":false,\"message\":\"Username already exists.\"}");
         return;
       }
-      UserObject newUser = new UserObject(username, password);
-      users.put(username.toLowerCase(), newUser);
-      String sessionToken = UUID.randomUUID().toString();
-      activeSessions.put(sessionToken, newUser.username);
-      System.out.println("RegisterHandler: User '" + newUser.username
-          + "' registered and logged in.");
-      sendJsonResponse(exchange, 201,
-          String.format(
-              "{\"success\":true,\"message\":\"Registration successful! "
-              + "Logging you in...\",\"username\":\"%s\",\"token\":\"%s\"}",
-              escapeJsonString(newUser.username), sessionToken));
+      String name = username;
+      hashThenRespond(exchange, LOG, () -> {
+        UserObject newUser = new UserObject(name, "", hasher.hash(password));
+        // Checked again, as the same name may have been hashing alongside
+        if (users.putIfAbsent(name.toLowerCase(), newUser) != null) {
+          sendJsonResponse(exchange, 409,
+              "{\"success\":false,\"message\":\"Username already exists.\"}");
+          return;
+        }
+        if (changes != null) {
+          changes.user(newUser.username, newUser.salt, newUser.hashedPassword);
+        }
+        String sessionToken = sessions.create(newUser.username);
+        LOG.info("user.registered", "user", newUser.username);
+        sendJsonResponse(exchange, 201,
+            String.format(
+                "{\"success\":true,\"message\":\"Registration successful! "
+                + "Logging you in...\",\"username\":\"%s\",\"token\":\"%s\"}",
+                escapeJsonString(newUser.username), sessionToken));
+      });
     }
   }
 
   static class LoginHandler implements HttpHandler {
+    private static final Log LOG = Log.named("LoginHandler");
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
       if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
@@ -310,38 +633,130 @@ public class SimpleChatServer {
             + "required.\"}");
         return;
       }
-      UserObject user = users.get(username.trim().toLowerCase());
-      if (user == null || !user.verifyPassword(password)) {
-        sendJsonResponse(exchange, 401,
-            "{\"success\":false,\"message\":\"Invalid username or "
-            + "password.\"}");
-        return;
+      String key = username.trim().toLowerCase();
+      hashThenRespond(exchange, LOG, () -> {
+        UserObject user = users.get(key);
+        if (user == null) {
+          hasher.verifyDecoy(password);
+        }
+        if (user == null || !user.verifyPassword(password)) {
+          sendJsonResponse(exchange, 401,
+              "{\"success\":false,\"message\":\"Invalid username or "
+              + "password.\"}");
+          return;
+        }
+        if (hasher.needsRehash(user.hashedPassword)) {
+          upgradeHash(user, password);
+        }
+        String sessionToken = sessions.create(user.username);
+        LOG.info("user.login", "user", user.username);
+        sendJsonResponse(exchange, 200,
+            String.format("{\"success\":true,\"message\":\"Login "
+                          + "successful!\",\"username\":\"%s\",\"token\":\"%s\"}",
+                escapeJsonString(user.username), sessionToken));
+      });
+    }
+
+    // The password is only known here, so this is the one chance to rehash
+    private static void upgradeHash(UserObject user, String password) {
+      UserObject upgraded =
+          new UserObject(user.username, "", hasher.hash(password));
+      if (!users.replace(user.username.toLowerCase(), user, upgraded))
+        return; // Changed meanwhile; the next login will try again
+      if (changes != null) {
+        changes.user(upgraded.username, upgraded.salt, upgraded.hashedPassword);
+      }
+      LOG.info("user.hash.upgraded", "user", user.username);
+    }
+  }
+
+  /** Work that answers an exchange itself. */
+  private interface ExchangeTask {
+    void run() throws IOException;
+  }
+
+  /**
+   * Runs {@code task}, which hashes a password and then answers
+   * {@code exchange}, on the hashing pool so the request thread is free at
+   * once. When that pool is full the request gets a 503 instead. Metrics
+   * record the exchange once it is answered, either way.
+   */
+  private static void hashThenRespond(HttpExchange exchange, Log log,
+      ExchangeTask task) throws IOException {
+    Runnable answered = metrics.answeredLater(exchange);
+    boolean queued = hasher.offer(() -> {
+      try {
+        task.run();
+      } catch (IOException | RuntimeException e) {
+        log.warn("auth.failed", "error", e);
+        exchange.close();
+      } finally {
+        answered.run();
+      }
+    });
+    if (!queued) {
+      try {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendJsonResponse(exchange, 503,
+            "{\"success\":false,\"message\":\"Too many logins right now, "
+            + "please retry.\"}");
+      } finally {
+        answered.run();
       }
-      String sessionToken = UUID.randomUUID().toString();
-      activeSessions.put(sessionToken, user.username);
-      System.out.println(
-          "LoginHandler: User '" + user.username + "' logged in.");
-      sendJsonResponse(exchange, 200,
-          String.format("{\"success\":true,\"message\":\"Login "
-                        + "successful!\",\"username\":\"%s\",\"token\":\"%s\"}",
-              escapeJsonString(user.username), sessionToken));
     }
   }
 
   private static String getAuthenticatedUsername(HttpExchange exchange) {
-    Headers headers = exchange.getRequestHeaders();
-    List<String> authHeaders = headers.get("Authorization");
-    if (authHeaders == null || authHeaders.isEmpty())
-      return null;
-    String authHeader = authHeaders.get(0);
-    if (authHeader != null && authHeader.startsWith("Bearer ")) {
-      String token = authHeader.substring("Bearer ".length());
-      return activeSessions.get(token);
+    return sessions.validate(bearerToken(exchange));
+  }
+
+  // The rate limiter's client: the session user, also for SSE subscribers,
+  // who name their session with a ticket in the URL instead of a header
+  private static String rateLimitedUser(HttpExchange exchange) {
+    String user = getAuthenticatedUsername(exchange);
+    String query = exchange.getRequestURI().getRawQuery();
+    if (user != null || query == null || !query.contains("ticket="))
+      return user;
+    try {
+      return sessions.ticketUser(parseUrlEncoded(query).get("ticket"));
+    } catch (IOException | IllegalArgumentException e) {
+      return null; // The handler answers the bad query
     }
+  }
+
+  private static String bearerToken(HttpExchange exchange) {
+    String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
+    if (authHeader != null && authHeader.startsWith("Bearer "))
+      return authHeader.substring("Bearer ".length());
     return null;
   }
 
+  static class LogoutHandler implements HttpHandler {
+    private static final Log LOG = Log.named("LogoutHandler");
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJsonResponse(exchange, 405,
+            "{\"success\":false,\"message\":\"Method Not Allowed. Please use "
+            + "POST.\"}");
+        return;
+      }
+      String username = getAuthenticatedUsername(exchange);
+      if (username == null || !sessions.remove(bearerToken(exchange))) {
+        sendJsonResponse(exchange, 401,
+            "{\"success\":false,\"message\":\"Not logged in.\"}");
+        return;
+      }
+      LOG.info("user.logout", "user", username);
+      sendJsonResponse(
+          exchange, 200, "{\"success\":true,\"message\":\"Logged out.\"}");
+    }
+  }
+
   static class PostMessageHandler implements HttpHandler {
+    private static final Log LOG = Log.named("PostMessageHandler");
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
       String authenticatedUser = getAuthenticatedUsername(exchange);
@@ -366,29 +781,170 @@ public class SimpleChatServer {
             "{\"success\":false,\"message\":\"Message or room ID missing.\"}");
         return;
       }
-      System.out.println("PostMessageHandler: AuthUser='" + authenticatedUser
-          + "', Room='" + roomId + "', Msg='" + messageText + "'");
       String originalMessageText = messageText;
       String moderatedMessageText = moderateMessage(originalMessageText);
       boolean wasCensored = !originalMessageText.equals(moderatedMessageText);
-      if (wasCensored) {
-        System.out.println("PostMessageHandler: Message from '"
-            + authenticatedUser + "' (original: '" + originalMessageText
-            + "') censored to: '" + moderatedMessageText + "'");
-      }
-      MessageObject newMessage =
-          new MessageObject(authenticatedUser, moderatedMessageText, roomId);
-      List<MessageObject> messagesInRoom = roomMessages.computeIfAbsent(
-          roomId, k -> Collections.synchronizedList(new ArrayList<>()));
-      messagesInRoom.add(newMessage);
-      System.out.println("PostMessageHandler: Message added to room " + roomId);
+      MessageObject newMessage;
+      try {
+        newMessage = append(roomId, authenticatedUser,
+            Collections.singletonList(moderatedMessageText)).get(0);
+      } catch (IOException e) {
+        sendOwnerUnreachable(exchange, roomId, e);
+        return;
+      }
+      if (LOG.enabled(Log.Level.INFO)) { // Spares boxing the seq when off
+        LOG.info("message.posted", "user", authenticatedUser, "room", roomId,
+            "seq", newMessage.seq, "censored", wasCensored);
+      }
       sendJsonResponse(exchange, 200,
           "{\"success\":true,\"message\":\"Message posted\""
+              + ",\"id\":\"" + escapeJsonString(newMessage.getId()) + "\""
+              + ",\"seq\":" + newMessage.seq
               + (wasCensored ? ",\"censored\":true" : "") + "}");
     }
   }
 
+  /**
+   * Posts many messages in one request, for bots and bridges. The form is a
+   * sequence of {@code room} and {@code message} fields; each message goes to
+   * the room named last before it, e.g.
+   * {@code room=general&message=a&message=b&room=ops&message=c}. Each room's
+   * messages are appended under one lock and its subscribers woken once. The
+   * reply lists id, seq and censor flag per message, in request order.
+   */
+  static class PostMessagesHandler implements HttpHandler {
+    private static final Log LOG = Log.named("PostMessagesHandler");
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String authenticatedUser = getAuthenticatedUsername(exchange);
+      if (authenticatedUser == null) {
+        sendJsonResponse(exchange, 401,
+            "{\"success\":false,\"message\":\"Unauthorized. Please login "
+            + "again.\"}");
+        return;
+      }
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJsonResponse(exchange, 405,
+            "{\"success\":false,\"message\":\"Method Not Allowed. Please use "
+            + "POST.\"}");
+        return;
+      }
+      List<String> roomIds = new ArrayList<>();
+      List<String> texts = new ArrayList<>();
+      String[] currentRoom = {null};
+      String[] problem = {null};
+      parseFormData(exchange, (key, value) -> {
+        if (problem[0] != null)
+          return;
+        if ("room".equals(key)) {
+          currentRoom[0] = value.trim().isEmpty() ? null : value;
+        } else if ("message".equals(key)) {
+          if (currentRoom[0] == null) {
+            problem[0] = "Message " + texts.size() + " has no room before it.";
+          } else if (value.trim().isEmpty()) {
+            problem[0] = "Message " + texts.size() + " is empty.";
+          } else if (texts.size() == MAX_BATCH_MESSAGES) {
+            problem[0] = "At most " + MAX_BATCH_MESSAGES
+                + " messages per batch.";
+          } else {
+            roomIds.add(currentRoom[0]);
+            texts.add(value);
+          }
+        }
+      });
+      if (problem[0] == null && texts.isEmpty())
+        problem[0] = "No messages to post.";
+      if (problem[0] != null) {
+        sendJsonResponse(exchange, 400, "{\"success\":false,\"message\":\""
+            + escapeJsonString(problem[0]) + "\"}");
+        return;
+      }
+
+      List<String> moderated = moderation.censorAll(texts);
+      Map<String, List<Integer>> indexesByRoom = new LinkedHashMap<>();
+      for (int i = 0; i < roomIds.size(); i++) {
+        indexesByRoom.computeIfAbsent(roomIds.get(i), r -> new ArrayList<>())
+            .add(i);
+      }
+      // Every owner must be reachable before anything is posted, so that a
+      // 503 always means the whole batch can be retried
+      if (cluster != null) {
+        for (String roomId : indexesByRoom.keySet()) {
+          if (!cluster.canWrite(roomId)) {
+            sendOwnerUnreachable(exchange, roomId,
+                new IOException("Owner not connected"));
+            return;
+          }
+        }
+      }
+      MessageObject[] posted = new MessageObject[texts.size()];
+      int failed = 0;
+      for (Map.Entry<String, List<Integer>> entry : indexesByRoom.entrySet()) {
+        List<Integer> indexes = entry.getValue();
+        List<String> batch = new ArrayList<>(indexes.size());
+        for (int i : indexes) {
+          batch.add(moderated.get(i));
+        }
+        List<MessageObject> appended;
+        try {
+          appended = append(entry.getKey(), authenticatedUser, batch);
+        } catch (IOException e) {
+          // Lost mid-batch: the results mark this room's messages instead
+          LOG.warn("cluster.forward.failed", "room", entry.getKey(), "owner",
+              cluster.ownerOf(entry.getKey()), "error", e.getMessage());
+          failed += indexes.size();
+          continue;
+        }
+        for (int i = 0; i < indexes.size(); i++) {
+          posted[indexes.get(i)] = appended.get(i);
+        }
+      }
+      if (failed == posted.length) {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendJsonResponse(exchange, 503,
+            "{\"success\":false,\"message\":\"Room owner unreachable, "
+            + "please try again.\"}");
+        return;
+      }
+
+      int censored = 0;
+      StringBuilder sb = new StringBuilder(64 + posted.length * 96);
+      sb.append(failed == 0
+          ? "{\"success\":true,\"message\":\"Messages posted\""
+          : "{\"success\":false,\"message\":\"Some messages were not "
+              + "posted; retry only those marked posted:false.\"");
+      sb.append(",\"results\":[");
+      for (int i = 0; i < posted.length; i++) {
+        if (i > 0)
+          sb.append(',');
+        sb.append("{\"room\":\"").append(escapeJsonString(roomIds.get(i)));
+        if (posted[i] == null) {
+          sb.append("\",\"posted\":false}");
+          continue;
+        }
+        boolean wasCensored = !texts.get(i).equals(moderated.get(i));
+        if (wasCensored)
+          censored++;
+        sb.append("\",\"id\":\"").append(escapeJsonString(posted[i].getId()))
+            .append("\",\"seq\":").append(posted[i].seq);
+        if (wasCensored)
+          sb.append(",\"censored\":true");
+        sb.append('}');
+      }
+      sb.append("]}");
+      if (LOG.enabled(Log.Level.INFO)) {
+        LOG.info("messages.posted", "user", authenticatedUser, "count",
+            posted.length - failed, "rooms", indexesByRoom.size(), "censored",
+            censored);
+      }
+      sendJsonResponse(exchange, 200, sb.toString());
+    }
+  }
+
   static class GetMessagesHandler implements HttpHandler {
+    private static final Log LOG = Log.named("GetMessagesHandler");
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
       String authenticatedUser = getAuthenticatedUsername(exchange);
@@ -404,33 +960,442 @@ public class SimpleChatServer {
             + "GET.\"}");
         return;
       }
-      String query = exchange.getRequestURI().getQuery();
-      String roomId = "general";
-      if (query != null && query.startsWith("room=")) {
-        try {
-          roomId = URLDecoder.decode(query.substring("room=".length()),
-              StandardCharsets.UTF_8.name());
-        } catch (Exception e) {
-          System.err.println(
-              "GetMessagesHandler: Malformed room query: " + query);
+      Map<String, String> params;
+      try {
+        params = parseQuery(exchange);
+      } catch (IllegalArgumentException e) {
+        // Not the query itself, which may hold a ticket or a search
+        LOG.warn("query.malformed", "path", exchange.getRequestURI().getPath(),
+            "error", e.getMessage());
+        params = Collections.emptyMap();
+      }
+      String roomId = params.getOrDefault("room", "general");
+      long since;
+      long before;
+      int limit;
+      try {
+        since = parseLongParam(params.get("since"), -1);
+        before = parseLongParam(params.get("before"), -1);
+        limit = (int) Math.min(MAX_PAGE_SIZE,
+            parseLongParam(params.get("limit"), DEFAULT_PAGE_SIZE));
+      } catch (NumberFormatException e) {
+        sendJsonResponse(exchange, 400,
+            "{\"success\":false,\"message\":\"since, before and limit must "
+            + "be numbers.\"}");
+        return;
+      }
+      if (limit <= 0 || (since >= 0 && before >= 0)) {
+        sendJsonResponse(exchange, 400,
+            "{\"success\":false,\"message\":\"Use a positive limit and at "
+            + "most one of since/before.\"}");
+        return;
+      }
+      if (LOG.sampled(Log.Level.INFO, LOG_SAMPLE_EVERY)) {
+        LOG.info("messages.fetched", "user", authenticatedUser, "room", roomId,
+            "since", since, "before", before);
+      }
+      ChatRoom room = rooms.get(roomId);
+      if (room == null) {
+        room = new ChatRoom(roomId);
+      }
+      JsonBody body;
+      if (since >= 0) {
+        body = room.since(since, limit).json(roomId, true);
+      } else if (before >= 0) {
+        body = room.before(before, limit).json(roomId, false);
+      } else if (params.containsKey("limit")) {
+        body = room.latest(limit).json(roomId, true);
+      } else {
+        // Legacy full-history array for clients that predate cursors
+        body = room.snapshotJson();
+      }
+      sendJsonResponse(exchange, 200, body);
+    }
+  }
+
+  /**
+   * GET /search?room=&q=&before=&limit= - messages holding every word of q,
+   * newest first. The reply's cursor is the before for the next page.
+   */
+  static class SearchHandler implements HttpHandler {
+    private static final Log LOG = Log.named("SearchHandler");
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String authenticatedUser = getAuthenticatedUsername(exchange);
+      if (authenticatedUser == null) {
+        sendJsonResponse(exchange, 401,
+            "{\"success\":false,\"message\":\"Unauthorized. Please login "
+            + "again.\"}");
+        return;
+      }
+      if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJsonResponse(exchange, 405,
+            "{\"success\":false,\"message\":\"Method Not Allowed. Please use "
+            + "GET.\"}");
+        return;
+      }
+      Map<String, String> params;
+      try {
+        params = parseQuery(exchange);
+      } catch (IllegalArgumentException e) {
+        params = Collections.emptyMap();
+      }
+      String roomId = params.getOrDefault("room", "general");
+      String query = params.getOrDefault("q", "");
+      long before;
+      int limit;
+      try {
+        before = parseLongParam(params.get("before"), -1);
+        limit = (int) Math.min(MAX_PAGE_SIZE,
+            parseLongParam(params.get("limit"), DEFAULT_PAGE_SIZE));
+      } catch (NumberFormatException e) {
+        sendJsonResponse(exchange, 400,
+            "{\"success\":false,\"message\":\"before and limit must be "
+            + "numbers.\"}");
+        return;
+      }
+      if (limit <= 0 || SearchIndex.tokenize(query).isEmpty()) {
+        sendJsonResponse(exchange, 400,
+            "{\"success\":false,\"message\":\"Use a positive limit and a "
+            + "q with at least one word.\"}");
+        return;
+      }
+      // The query itself stays out of the log, as message text does
+      if (LOG.sampled(Log.Level.INFO, LOG_SAMPLE_EVERY)) {
+        LOG.info("messages.searched", "user", authenticatedUser, "room", roomId,
+            "before", before);
+      }
+      ChatRoom room = rooms.get(roomId);
+      if (room == null) {
+        room = new ChatRoom(roomId);
+      }
+      sendJsonResponse(exchange, 200,
+          room.search(query, before, limit).json(roomId, true));
+    }
+  }
+
+  /**
+   * Push delivery for /subscribe. Requests are parked here instead of in a
+   * handler thread: the handler registers a subscriber and returns, and a
+   * later post or delete completes the exchange from the dispatch pool.
+   */
+  static class SubscriptionHub {
+    private final Map<String, Set<Subscriber>> byRoom =
+        new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+    private final ExecutorService dispatcher =
+        Executors.newFixedThreadPool(2, daemonThreads("push-dispatch"));
+    private final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(daemonThreads("push-timer"));
+
+    SubscriptionHub() {
+      timer.scheduleWithFixedDelay(
+          this::sweep, 1000, 1000, TimeUnit.MILLISECONDS);
+    }
+
+    /** Reserves a slot in the room, or returns false if the room is full. */
+    boolean tryReserve(String roomId) {
+      AtomicInteger count =
+          counts.computeIfAbsent(roomId, k -> new AtomicInteger());
+      if (count.incrementAndGet() > MAX_SUBSCRIBERS_PER_ROOM) {
+        count.decrementAndGet();
+        return false;
+      }
+      return true;
+    }
+
+    void register(Subscriber subscriber) {
+      byRoom.computeIfAbsent(subscriber.room.id,
+                k -> ConcurrentHashMap.newKeySet())
+          .add(subscriber);
+    }
+
+    /** Subscribers parked in one room. */
+    int watching(String roomId) {
+      AtomicInteger count = counts.get(roomId);
+      return count == null ? 0 : count.get();
+    }
+
+    int size() {
+      int total = 0;
+      for (AtomicInteger count : counts.values()) {
+        total += count.get();
+      }
+      return total;
+    }
+
+    private void unregister(Subscriber subscriber) {
+      Set<Subscriber> set = byRoom.get(subscriber.room.id);
+      if (set != null && set.remove(subscriber)) {
+        counts.get(subscriber.room.id).decrementAndGet();
+      }
+    }
+
+    /** Fans the latest room changes out to every waiter, off the caller. */
+    void publish(ChatRoom room) {
+      Set<Subscriber> set = byRoom.get(room.id);
+      if (set == null || set.isEmpty())
+        return;
+      dispatcher.execute(() -> {
+        // Waiters usually share a cursor, so each page is rendered once
+        Map<Long, ChatRoom.Page> pages = new HashMap<>();
+        for (Subscriber subscriber : set) {
+          ChatRoom.Page page = pages.computeIfAbsent(
+              subscriber.cursor, c -> room.since(c, MAX_PAGE_SIZE));
+          if (page.hasChanges() && !subscriber.deliver(page)) {
+            unregister(subscriber);
+          }
+        }
+      });
+    }
+
+    /** Registers first and then re-checks, so no publish can slip between. */
+    void park(Subscriber subscriber) {
+      register(subscriber);
+      ChatRoom.Page page = subscriber.room.since(subscriber.cursor, MAX_PAGE_SIZE);
+      if (page.hasChanges() && !subscriber.deliver(page)) {
+        unregister(subscriber);
+      }
+    }
+
+    private void sweep() {
+      long now = System.currentTimeMillis();
+      for (Set<Subscriber> set : byRoom.values()) {
+        for (Subscriber subscriber : set) {
+          if (!subscriber.tick(now)) {
+            unregister(subscriber);
+          }
+        }
+      }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+      return r -> {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      };
+    }
+  }
+
+  abstract static class Subscriber {
+    final HttpExchange exchange;
+    final ChatRoom room;
+    volatile long cursor;
+
+    Subscriber(HttpExchange exchange, ChatRoom room, long cursor) {
+      this.exchange = exchange;
+      this.room = room;
+      this.cursor = cursor;
+    }
+
+    /** Sends the page; returns false once the subscriber is finished. */
+    abstract boolean deliver(ChatRoom.Page page);
+
+    /** Timer hook for timeouts and heartbeats; false once finished. */
+    abstract boolean tick(long now);
+  }
+
+  /** One parked request, answered by the first change or by the timeout. */
+  static class LongPollSubscriber extends Subscriber {
+    private static final Log LOG = Log.named("LongPollSubscriber");
+    private final long deadline;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final Runnable answered; // Metrics count the poll once answered
+
+    LongPollSubscriber(HttpExchange exchange, ChatRoom room, long cursor) {
+      super(exchange, room, cursor);
+      this.deadline = System.currentTimeMillis() + LONG_POLL_TIMEOUT_MS;
+      this.answered = metrics.answeredLater(exchange);
+    }
+
+    @Override
+    boolean deliver(ChatRoom.Page page) {
+      complete(page);
+      return false;
+    }
+
+    @Override
+    boolean tick(long now) {
+      if (now < deadline)
+        return true;
+      complete(room.since(cursor, MAX_PAGE_SIZE));
+      return false;
+    }
+
+    private void complete(ChatRoom.Page page) {
+      if (!done.compareAndSet(false, true))
+        return;
+      try {
+        sendResponse(exchange, 200, "application/json", page.cursorJson(room.id));
+      } catch (IOException e) {
+        LOG.debug("longPoll.clientGone", "room", room.id, "error",
+            e.getMessage());
+      } finally {
+        answered.run();
+      }
+    }
+  }
+
+  /** A text/event-stream connection that receives every change in order. */
+  static class SseSubscriber extends Subscriber {
+    private static final byte[] EVENT_END =
+        "\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEARTBEAT =
+        ": heartbeat\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private long lastWrite;
+
+    SseSubscriber(HttpExchange exchange, ChatRoom room, long cursor) {
+      super(exchange, room, cursor);
+      this.out = exchange.getResponseBody();
+      this.lastWrite = System.currentTimeMillis();
+    }
+
+    @Override
+    synchronized boolean deliver(ChatRoom.Page page) {
+      if (page.cursor <= cursor && !page.reset)
+        return true; // Already sent by a concurrent dispatch
+      byte[] header = ("id: " + page.cursor + "\nevent: messages\ndata: ")
+                          .getBytes(StandardCharsets.UTF_8);
+      if (!write(header, page.cursorJson(room.id), EVENT_END))
+        return false;
+      cursor = page.cursor;
+      return true;
+    }
+
+    @Override
+    synchronized boolean tick(long now) {
+      if (now - lastWrite < SSE_HEARTBEAT_MS)
+        return true;
+      return write(HEARTBEAT);
+    }
+
+    private boolean write(byte[]... fragments) {
+      try {
+        for (byte[] fragment : fragments) {
+          out.write(fragment);
         }
+        out.flush();
+        lastWrite = System.currentTimeMillis();
+        return true;
+      } catch (IOException e) {
+        exchange.close();
+        return false;
+      }
+    }
+  }
+
+  /** A single-use ticket for {@code /subscribe?ticket=}, for EventSource. */
+  static class SubscribeTicketHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJsonResponse(exchange, 405,
+            "{\"success\":false,\"message\":\"Method Not Allowed. Please use "
+            + "POST.\"}");
+        return;
+      }
+      if (getAuthenticatedUsername(exchange) == null) {
+        sendJsonResponse(exchange, 401,
+            "{\"success\":false,\"message\":\"Unauthorized. Please login "
+            + "again.\"}");
+        return;
+      }
+      String ticket = sessions.issueTicket(bearerToken(exchange));
+      if (ticket == null) {
+        exchange.getResponseHeaders().set("Retry-After", "5");
+        sendJsonResponse(exchange, 503,
+            "{\"success\":false,\"message\":\"Too many tickets "
+            + "outstanding, please retry.\"}");
+        return;
+      }
+      sendJsonResponse(exchange, 200, "{\"success\":true,\"ticket\":\""
+          + ticket + "\",\"expiresInMs\":" + SessionStore.TICKET_MILLIS + "}");
+    }
+  }
+
+  static class SubscribeHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+        sendJsonResponse(exchange, 405,
+            "{\"success\":false,\"message\":\"Method Not Allowed. Please use "
+            + "GET.\"}");
+        return;
+      }
+      Map<String, String> params;
+      try {
+        params = parseQuery(exchange);
+      } catch (IllegalArgumentException e) {
+        params = Collections.emptyMap();
+      }
+      // EventSource cannot set headers, so SSE clients pass a ticket from
+      // /subscribeTicket; the session token itself never goes in the URL
+      String authenticatedUser = getAuthenticatedUsername(exchange);
+      if (authenticatedUser == null && params.containsKey("ticket")) {
+        authenticatedUser = sessions.redeemTicket(params.get("ticket"));
+      }
+      if (authenticatedUser == null) {
+        sendJsonResponse(exchange, 401,
+            "{\"success\":false,\"message\":\"Unauthorized. Please login "
+            + "again.\"}");
+        return;
+      }
+      String accept = exchange.getRequestHeaders().getFirst("Accept");
+      boolean sse = "sse".equals(params.get("transport"))
+          || (accept != null && accept.contains("text/event-stream"));
+      String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+      long cursor;
+      try {
+        cursor = parseLongParam(
+            lastEventId != null ? lastEventId : params.get("since"), -1);
+      } catch (NumberFormatException e) {
+        sendJsonResponse(exchange, 400,
+            "{\"success\":false,\"message\":\"since must be a number.\"}");
+        return;
+      }
+      if (cursor < 0 && !sse) {
+        sendJsonResponse(exchange, 400,
+            "{\"success\":false,\"message\":\"since is required for "
+            + "long-polling.\"}");
+        return;
+      }
+      String roomId = params.getOrDefault("room", "general");
+      ChatRoom room = rooms.get(roomId);
+      if (room == null) {
+        sendJsonResponse(exchange, 404,
+            "{\"success\":false,\"message\":\"Room not found.\"}");
+        return;
       }
-      System.out.println("GetMessagesHandler: AuthUser='" + authenticatedUser
-          + "' requested messages for room: " + roomId);
-      List<MessageObject> messagesInRoom =
-          roomMessages.getOrDefault(roomId, Collections.emptyList());
-      List<MessageObject> messagesCopy;
-      synchronized (messagesInRoom) {
-        messagesCopy = new ArrayList<>(messagesInRoom);
+      if (!subscriptions.tryReserve(roomId)) {
+        exchange.getResponseHeaders().set("Retry-After", "5");
+        sendJsonResponse(exchange, 503,
+            "{\"success\":false,\"message\":\"Too many subscribers in this "
+            + "room.\"}");
+        return;
+      }
+      if (sse) {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        SseSubscriber subscriber = new SseSubscriber(exchange, room, cursor);
+        if (cursor < 0) {
+          // Fresh streams start with the newest page, like /getMessages
+          subscriber.deliver(room.latest(DEFAULT_PAGE_SIZE));
+        }
+        subscriptions.park(subscriber);
+      } else {
+        subscriptions.park(new LongPollSubscriber(exchange, room, cursor));
       }
-      String jsonResponse = messagesCopy.stream()
-                                .map(MessageObject::toJSON)
-                                .collect(Collectors.joining(",", "[", "]"));
-      sendJsonResponse(exchange, 200, jsonResponse);
     }
   }
 
   static class CreateRoomHandler implements HttpHandler {
+    private static final Log LOG = Log.named("CreateRoomHandler");
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
       String authenticatedUser = getAuthenticatedUsername(exchange);
@@ -461,22 +1426,26 @@ public class SimpleChatServer {
             + "(letters, numbers, hyphens).\"}");
         return;
       }
-      if (FORBIDDEN_WORDS.contains(roomId)) {
+      if (moderation.containsForbidden(roomId)) {
         sendJsonResponse(exchange, 400,
             "{\"success\":false,\"message\":\"Room name contains forbidden "
             + "words.\"}");
         return;
       }
-      if (roomMessages.containsKey(roomId)) {
+      boolean created;
+      try {
+        created = createRoom(roomId, authenticatedUser);
+      } catch (IOException e) {
+        sendOwnerUnreachable(exchange, roomId, e);
+        return;
+      }
+      if (!created) {
         sendJsonResponse(exchange, 409,
             "{\"success\":false,\"message\":\"Room '" + escapeJsonString(roomId)
                 + "' already exists.\"}");
         return;
       }
-      roomMessages.computeIfAbsent(
-          roomId, k -> Collections.synchronizedList(new ArrayList<>()));
-      System.out.println("CreateRoomHandler: User '" + authenticatedUser
-          + "' created room: " + roomId);
+      LOG.info("room.created", "user", authenticatedUser, "room", roomId);
       sendJsonResponse(exchange, 201,
           String.format("{\"success\":true,\"message\":\"Room '%s' "
                         + "created.\",\"roomId\":\"%s\"}",
@@ -484,6 +1453,30 @@ public class SimpleChatServer {
     }
   }
 
+  /**
+   * Prometheus scrape target. Open unless {@code chat.metrics.token} is set,
+   * in which case it must be sent as a bearer token.
+   */
+  static class MetricsHandler implements HttpHandler {
+    private static final String TOKEN = ServerConfig.get("chat.metrics.token", null);
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (TOKEN != null && !TOKEN.equals(bearerToken(exchange))) {
+        sendTextResponse(exchange, 401, "401 (Unauthorized)");
+        return;
+      }
+      sendResponse(exchange, 200, "text/plain; version=0.0.4",
+          metrics.render().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * The sorted room ids as a JSON array, or with {@code details=true} each
+   * room's creator, message count, last activity and parked subscribers.
+   * Both are served from the directory's cache with an ETag, so a client that
+   * polls with {@code If-None-Match} gets a 304 until something changes.
+   */
   static class GetRoomsHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange exchange) throws IOException {
@@ -498,73 +1491,122 @@ public class SimpleChatServer {
             exchange, 405, "{\"success\":false,\"message\":\"GET only\"}");
         return;
       }
-      Set<String> roomIdsSet = roomMessages.keySet();
-      List<String> sortedRoomIds = new ArrayList<>(roomIdsSet);
-      Collections.sort(sortedRoomIds);
-      String jsonResponse = sortedRoomIds.stream()
-                                .map(s -> "\"" + escapeJsonString(s) + "\"")
-                                .collect(Collectors.joining(",", "[", "]"));
-      System.out.println("GetRoomsHandler: User '" + authenticatedUser
-          + "' requested room list. Sending " + sortedRoomIds.size()
-          + " rooms.");
-      sendJsonResponse(exchange, 200, jsonResponse);
+      Map<String, String> params;
+      try {
+        params = parseQuery(exchange);
+      } catch (IllegalArgumentException e) {
+        params = Collections.emptyMap();
+      }
+      RoomStore.Listing listing = "true".equals(params.get("details"))
+          ? rooms.details(subscriptions::watching)
+          : rooms.listing();
+      Compression.Coding coding = listing.json.length < Compression.MIN_BYTES
+          ? null
+          : Compression.negotiate(
+              exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+      String etag = listing.etag(coding);
+      Headers headers = exchange.getResponseHeaders();
+      headers.set("ETag", etag);
+      headers.set("Vary", "Accept-Encoding");
+      // Per user, and always revalidated; the ETag makes that cheap
+      headers.set("Cache-Control", "private, no-cache");
+      if (etagMatches(
+              exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+      if (coding != null)
+        headers.set("Content-Encoding", coding.token);
+      sendResponse(exchange, 200, "application/json", listing.body(coding));
     }
   }
 
   // --- Helper Methods ---
-  private static String generateSalt() {
-    SecureRandom random = new SecureRandom();
-    byte[] salt = new byte[16];
-    random.nextBytes(salt);
-    return Base64.getEncoder().encodeToString(salt);
+  private static String moderateMessage(String message) {
+    return moderation.censor(message);
   }
-  private static String hashPassword(String password, String salt) {
+  private static ModerationEngine createModerationEngine() {
+    String wordsFile = ServerConfig.get("chat.moderation.wordsFile", null);
     try {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      md.update(Base64.getDecoder().decode(salt));
-      byte[] hashedPasswordBytes =
-          md.digest(password.getBytes(StandardCharsets.UTF_8));
-      return Base64.getEncoder().encodeToString(hashedPasswordBytes);
-    } catch (NoSuchAlgorithmException e) {
-      System.err.println("CRITICAL: SHA-256 Hashing algorithm not found!");
-      throw new RuntimeException("Password hashing error", e);
-    }
-  }
-  private static String moderateMessage(String message) {
-    String tempMessage = message;
-    for (String word : FORBIDDEN_WORDS) {
-      tempMessage = tempMessage.replaceAll(
-          "(?i)" + Pattern.quote(word), MODERATION_REPLACEMENT);
+      return new ModerationEngine(FORBIDDEN_WORDS, MODERATION_REPLACEMENT,
+          wordsFile == null ? null : Paths.get(wordsFile));
+    } catch (IOException e) {
+      throw new IllegalStateException(
+          "Cannot read moderation word list " + wordsFile, e);
     }
-    return tempMessage;
   }
   private static Map<String, String> parseFormData(HttpExchange exchange)
       throws IOException {
     Map<String, String> map = new HashMap<>();
-    try (InputStreamReader isr = new InputStreamReader(
-             exchange.getRequestBody(), StandardCharsets.UTF_8);
-         BufferedReader br = new BufferedReader(isr)) {
-      String formData = br.readLine();
-      if (formData == null || formData.isEmpty())
-        return map;
-      for (String pair : formData.split("&")) {
-        String[] keyValue = pair.split("=", 2);
-        if (keyValue.length == 2) {
-          map.put(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8.name()),
-              URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8.name()));
-        } else if (keyValue.length == 1 && !keyValue[0].isEmpty()) {
-          map.put(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8.name()),
-              "");
-        }
-      }
+    RequestCodec.readFields(exchange, map::put);
+    return map;
+  }
+  /** Hands each field to {@code field} in body order, repeats included. */
+  private static void parseFormData(HttpExchange exchange,
+      BiConsumer<String, String> field) throws IOException {
+    RequestCodec.readFields(exchange, field);
+  }
+  private static Map<String, String> parseQuery(HttpExchange exchange)
+      throws IOException {
+    return parseUrlEncoded(exchange.getRequestURI().getRawQuery());
+  }
+  static Map<String, String> parseUrlEncoded(String formData)
+      throws IOException {
+    Map<String, String> map = new HashMap<>();
+    if (formData != null) {
+      byte[] bytes = formData.getBytes(StandardCharsets.UTF_8);
+      RequestCodec.parseForm(bytes, 0, bytes.length, map::put);
     }
     return map;
   }
-  private static void sendJsonResponse(HttpExchange ex, int sc, String json)
+  // If-None-Match uses the weak comparison, so W/ tags match too
+  private static boolean etagMatches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null)
+      return false;
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag))
+        return true;
+    }
+    return false;
+  }
+  private static long parseLongParam(String value, long defaultValue) {
+    if (value == null || value.isEmpty())
+      return defaultValue;
+    return Long.parseLong(value.trim());
+  }
+  static void sendJsonResponse(HttpExchange ex, int sc, String json)
       throws IOException {
     sendResponse(
         ex, sc, "application/json", json.getBytes(StandardCharsets.UTF_8));
   }
+  // Compressed whenever the client allows it and the body is big enough;
+  // the encoded length is not known up front, so that goes out chunked
+  private static void sendJsonResponse(HttpExchange ex, int sc, JsonBody body)
+      throws IOException {
+    Headers headers = ex.getResponseHeaders();
+    headers.set("Content-Type", "application/json;charset=utf-8");
+    headers.set("Vary", "Accept-Encoding");
+    long length = body.length();
+    Compression.Coding coding = length >= 0 && length < Compression.MIN_BYTES
+        ? null
+        : Compression.negotiate(
+            ex.getRequestHeaders().getFirst("Accept-Encoding"));
+    OutputStream raw;
+    if (coding == null) {
+      ex.sendResponseHeaders(sc, length < 0 ? 0 : length); // 0 means chunked
+      raw = ex.getResponseBody();
+    } else {
+      headers.set("Content-Encoding", coding.token);
+      ex.sendResponseHeaders(sc, 0);
+      raw = Compression.encode(ex.getResponseBody(), coding);
+    }
+    try (OutputStream os =
+             new BufferedOutputStream(raw, RESPONSE_BUFFER_BYTES)) {
+      body.writeTo(os);
+    }
+  }
   private static void sendTextResponse(HttpExchange ex, int sc, String text)
       throws IOException {
     sendResponse(ex, sc, "text/plain", text.getBytes(StandardCharsets.UTF_8));
@@ -577,15 +1619,7 @@ public class SimpleChatServer {
       os.write(bytes);
     }
   }
-  private static String escapeJsonString(String s) {
-    if (s == null)
-      return null;
-    return s.replace("\\", "\\\\")
-        .replace("\"", "\\\"")
-        .replace("\b", "\\b")
-        .replace("\f", "\\f")
-        .replace("\n", "\\n")
-        .replace("\r", "\\r")
-        .replace("\t", "\\t");
+  static String escapeJsonString(String s) {
+    return JsonOutput.escape(s);
   }
 }
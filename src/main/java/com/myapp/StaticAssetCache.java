@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The static web client, read once into memory. Assets come from the
+ * {@code static} folder on the classpath, which also works inside the shaded
+ * jar, or from {@code chat.static.dir}. Each asset keeps its bytes, a strong
+ * ETag and, for text, a gzip copy made at load time. Pre-built {@code .gz}
+ * and {@code .br} files next to an asset are served as its gzip and brotli
+ * variants. The map is immutable and a
+ * reload swaps in a new one.
+ */
+class StaticAssetCache {
+  private static final Log LOG = Log.named("StaticAssetCache");
+
+  private final Path root;
+  private volatile Map<String, Asset> assets;
+
+  private StaticAssetCache(Path root) throws IOException {
+    this.root = root;
+    this.assets = load(root);
+  }
+
+  /** Loads from {@code dir} when given, else from the classpath. */
+  static StaticAssetCache open(String dir) throws IOException {
+    if (dir != null)
+      return new StaticAssetCache(Paths.get(dir));
+    URL url = StaticAssetCache.class.getResource("/static");
+    if (url == null)
+      throw new IOException("No static folder on the classpath");
+    try {
+      URI uri = url.toURI();
+      if ("jar".equals(uri.getScheme())) {
+        FileSystem jar;
+        try {
+          jar = FileSystems.newFileSystem(uri, Collections.emptyMap());
+        } catch (FileSystemAlreadyExistsException e) {
+          jar = FileSystems.getFileSystem(uri);
+        }
+        return new StaticAssetCache(jar.provider().getPath(uri));
+      }
+      return new StaticAssetCache(Paths.get(uri));
+    } catch (URISyntaxException e) {
+      throw new IOException("Bad static folder URL " + url, e);
+    }
+  }
+
+  /** Looks up a request path such as {@code /script.js}; "/" is the index. */
+  Asset get(String requestPath) {
+    if (requestPath.isEmpty() || requestPath.equals("/"))
+      requestPath = "/index.html";
+    return assets.get(requestPath);
+  }
+
+  /**
+   * Reloads the whole folder whenever a file in it changes. Only meant for
+   * development against a directory; assets inside a jar cannot change.
+   */
+  void watch() throws IOException {
+    if (root.getFileSystem() != FileSystems.getDefault())
+      return;
+    WatchService watcher = root.getFileSystem().newWatchService();
+    try (Stream<Path> dirs = Files.walk(root)) {
+      for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+      }
+    }
+    Thread t = new Thread(() -> {
+      try {
+        while (true) {
+          WatchKey key = watcher.take();
+          Thread.sleep(50); // Editors write in bursts; take them as one
+          key.pollEvents();
+          key.reset();
+          try {
+            assets = load(root);
+          } catch (IOException e) {
+            LOG.warn("static.reload.failed", "error", e.getMessage(),
+                "keeping", "previous assets");
+          }
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        // Shutting down
+      }
+    }, "static-reload");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private static Map<String, Asset> load(Path root) throws IOException {
+    List<Path> files;
+    try (Stream<Path> walk = Files.walk(root)) {
+      files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    Map<String, byte[]> contents = new HashMap<>();
+    for (Path file : files) {
+      StringBuilder key = new StringBuilder();
+      for (Path part : root.relativize(file)) {
+        key.append('/').append(part.toString());
+      }
+      contents.put(key.toString(), Files.readAllBytes(file));
+    }
+    Map<String, Asset> loaded = new HashMap<>();
+    long bytes = 0;
+    for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      String path = entry.getKey();
+      if (isVariant(path, ".br", contents) || isVariant(path, ".gz", contents))
+        continue; // Served as an encoding of its source file
+      String type = contentType(path);
+      byte[] identity = entry.getValue();
+      byte[] brotli = contents.get(path + ".br");
+      byte[] gzip = contents.get(path + ".gz");
+      if (gzip == null && isText(type))
+        gzip = gzip(identity);
+      loaded.put(path, new Asset(type, identity, gzip, brotli));
+      bytes += identity.length;
+    }
+    LOG.info("static.loaded", "assets", loaded.size(), "bytes", bytes,
+        "from", root.toUri());
+    return Collections.unmodifiableMap(loaded);
+  }
+
+  private static boolean isVariant(
+      String path, String suffix, Map<String, byte[]> contents) {
+    return path.endsWith(suffix) && contents.containsKey(
+        path.substring(0, path.length() - suffix.length()));
+  }
+
+  /** Returns null when compressing does not pay off. */
+  private static byte[] gzip(byte[] data) {
+    if (data.length < Compression.MIN_BYTES)
+      return null;
+    byte[] gzip = Compression.compress(data, Compression.Coding.GZIP);
+    return gzip.length < data.length * 9 / 10 ? gzip : null;
+  }
+
+  private static String contentType(String path) {
+    String name = path.toLowerCase(Locale.ROOT);
+    if (name.endsWith(".html"))
+      return "text/html;charset=utf-8";
+    if (name.endsWith(".css"))
+      return "text/css;charset=utf-8";
+    if (name.endsWith(".js"))
+      return "application/javascript;charset=utf-8";
+    if (name.endsWith(".json"))
+      return "application/json;charset=utf-8";
+    if (name.endsWith(".svg"))
+      return "image/svg+xml";
+    if (name.endsWith(".png"))
+      return "image/png";
+    if (name.endsWith(".jpg") || name.endsWith(".jpeg"))
+      return "image/jpeg";
+    if (name.endsWith(".ico"))
+      return "image/x-icon";
+    return "text/plain;charset=utf-8";
+  }
+
+  private static boolean isText(String type) {
+    return type.startsWith("text/") || type.startsWith("application/")
+        || type.startsWith("image/svg");
+  }
+
+  private static String etag(byte[] data, String suffix) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+      StringBuilder sb = new StringBuilder(36).append('"');
+      for (int i = 0; i < 12; i++) {
+        sb.append(String.format("%02x", digest[i]));
+      }
+      return sb.append(suffix).append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is always available", e);
+    }
+  }
+
+  /** One file with its encodings; a missing encoding is null. */
+  static final class Asset {
+    final String contentType;
+    final byte[] identity;
+    final byte[] gzip;
+    final byte[] brotli;
+    // Each encoding is its own representation, so each gets its own tag
+    final String etag;
+    final String gzipEtag;
+    final String brotliEtag;
+
+    Asset(String contentType, byte[] identity, byte[] gzip, byte[] brotli) {
+      this.contentType = contentType;
+      this.identity = identity;
+      this.gzip = gzip;
+      this.brotli = brotli;
+      this.etag = etag(identity, "");
+      this.gzipEtag = gzip == null ? null : etag(identity, "-gz");
+      this.brotliEtag = brotli == null ? null : etag(identity, "-br");
+    }
+
+    boolean isHtml() {
+      return contentType.startsWith("text/html");
+    }
+  }
+}
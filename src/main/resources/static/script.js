@@ -33,16 +33,28 @@ document.addEventListener('DOMContentLoaded', () => {
     let currentUsername = null;
     let currentSessionToken = null;
     let currentRoomId = 'general';
-    let pollingInterval = null;
+    let subscriptionAbort = null;
+    let messageCursor = null; // Server sequence number of the last change we have seen
+    let oldestLoadedSeq = null;
+    let hasOlderMessages = false;
+    let loadingOlder = false;
+    let fetchInFlight = null;
+    let fetchInFlightRoom = null;
     let isRegisterMode = false;
     const BAD_WORDS_CLIENT = ["darn", "heck", "badword", "crap", "poop", "stupid"];
 
     // --- SERVER URLs (Relative Paths) ---
     const REGISTER_URL = `/register`;
     const LOGIN_URL = `/login`;
+    const LOGOUT_URL = `/logout`;
     const CREATE_ROOM_URL = `/createRoom`;
     const GET_ROOMS_URL = `/getRooms`;
-    const MESSAGES_URL_TEMPLATE = (roomId) => `/getMessages?room=${roomId}`;
+    const PAGE_SIZE = 50;
+    const MESSAGES_LATEST_URL = (roomId, limit) => `/getMessages?room=${encodeURIComponent(roomId)}&limit=${limit}`;
+    const MESSAGES_SINCE_URL = (roomId, cursor) => `/getMessages?room=${encodeURIComponent(roomId)}&since=${cursor}`;
+    const SUBSCRIBE_URL = (roomId, cursor) => `/subscribe?room=${encodeURIComponent(roomId)}&since=${cursor}`;
+    const RESUBSCRIBE_DELAY_MS = 3000;
+    const MESSAGES_BEFORE_URL = (roomId, seq, limit) => `/getMessages?room=${encodeURIComponent(roomId)}&before=${seq}&limit=${limit}`;
     const POST_MESSAGE_URL = `/postMessage`;
     const DELETE_MESSAGE_URL = `/deleteMessage`;
 
@@ -62,13 +74,14 @@ document.addEventListener('DOMContentLoaded', () => {
         safeAddEventListener(usernameInput, 'keypress', (event) => { if (event.key === 'Enter' && passwordInput) passwordInput.focus(); });
         safeAddEventListener(passwordInput, 'keypress', (event) => { if (event.key === 'Enter') handleAuthAttempt(); });
         safeAddEventListener(toggleAuthModeLink, 'click', toggleAuthMode);
-        safeAddEventListener(logoutButton, 'click', handleLogout);
+        safeAddEventListener(logoutButton, 'click', requestLogout);
         safeAddEventListener(messageForm, 'submit', (event) => { event.preventDefault(); postNewMessage(); });
         safeAddEventListener(createRoomBtn, 'click', handleCreateRoom);
         safeAddEventListener(roomListUl, 'click', handleRoomSelection);
         safeAddEventListener(sidebarToggleBtn, 'click', toggleSidebar);
         safeAddEventListener(themeToggleCheckbox, 'change', handleThemeToggle);
         safeAddEventListener(messagesDiv, 'click', handleDeleteMessageClick);
+        safeAddEventListener(messagesDiv, 'scroll', handleMessagesScroll);
 
         document.addEventListener('click', (event) => {
             if (sidebar && sidebar.classList.contains('open') &&
@@ -189,10 +202,20 @@ document.addEventListener('DOMContentLoaded', () => {
         }
     }
 
+    // Ends the session on the server too; the local logout does not wait for it
+    function requestLogout() {
+        if (currentSessionToken) {
+            fetch(LOGOUT_URL, { method: 'POST', keepalive: true, headers: { 'Authorization': 'Bearer ' + currentSessionToken } })
+                .catch(error => console.warn("Logout request failed:", error));
+        }
+        handleLogout();
+    }
+
     function handleLogout() {
         currentUsername = null; currentSessionToken = null;
         localStorage.removeItem('chatUsername'); localStorage.removeItem('chatSessionToken');
-        stopMessagePolling(); showAuthScreen();
+        stopMessageSubscription(); showAuthScreen();
+        messageCursor = null;
         if (messagesDiv) messagesDiv.innerHTML = '';
         displaySystemMessage("You have been logged out. Login or register to continue.", "info", true);
     }
@@ -299,12 +322,12 @@ document.addEventListener('DOMContentLoaded', () => {
 
     function switchRoom(newRoomId) {
         console.log(`Switching to room: ${newRoomId}`); currentRoomId = newRoomId;
+        messageCursor = null; oldestLoadedSeq = null; hasOlderMessages = false;
         if(roomListUl) document.querySelectorAll('#room-list li').forEach(li => {li.classList.toggle('active-room', li.dataset.roomid === currentRoomId);});
         updateCurrentRoomDisplay(); 
         if(messagesDiv) messagesDiv.innerHTML = '';
         displaySystemMessage(`Joined #${currentRoomNameSpan ? currentRoomNameSpan.textContent : newRoomId} as ${currentUsername}.`, "success");
-        fetchMessages();
-        if (currentUsername && currentSessionToken) { stopMessagePolling(); startMessagePolling(); }
+        if (currentUsername && currentSessionToken) startMessageSubscription();
     }
     
     function updateCurrentRoomDisplay() {
@@ -493,14 +516,27 @@ document.addEventListener('DOMContentLoaded', () => {
     }
 
     if (!messagesDiv) return; // Early exit if messagesDiv isn't there
+    if (fetchInFlight && fetchInFlightRoom === currentRoomId) return fetchInFlight; // Polls and post-refreshes share one request
+
+    const request = fetchMessageChanges();
+    fetchInFlight = request; fetchInFlightRoom = currentRoomId;
+    request.finally(() => { if (fetchInFlight === request) fetchInFlight = null; });
+    return request;
+}
 
+    async function fetchMessageChanges() {
     // --- CAPTURE SCROLL STATE BEFORE MODIFYING DOM ---
     const scrollBuffer = 30;
     const userWasNearBottom = (messagesDiv.scrollHeight - messagesDiv.clientHeight) <= (messagesDiv.scrollTop + scrollBuffer);
     const oldScrollTop = messagesDiv.scrollTop; // Store current scroll position
+    const requestedRoomId = currentRoomId;
 
     try {
-        const response = await fetch(MESSAGES_URL_TEMPLATE(currentRoomId), {
+        // First load asks for the newest page; afterwards only changes since our cursor
+        const url = messageCursor === null
+            ? MESSAGES_LATEST_URL(requestedRoomId, PAGE_SIZE)
+            : MESSAGES_SINCE_URL(requestedRoomId, messageCursor);
+        const response = await fetch(url, {
             headers: { 'Authorization': 'Bearer ' + currentSessionToken }
         });
 
@@ -516,8 +552,48 @@ document.addEventListener('DOMContentLoaded', () => {
             return;
         }
 
-        const messagesFromServer = await response.json();
-        
+        const page = await response.json();
+        if (requestedRoomId !== currentRoomId) return; // Room switched while waiting
+        applyPage(page, userWasNearBottom, oldScrollTop);
+
+    } catch (error) {
+        console.error('Error fetching messages:', error.message);
+        // Error already handled if it was a !response.ok, otherwise this is a network/JS error
+        if (currentUsername && chatSection && !chatSection.classList.contains('hidden') && !messagesDiv.querySelector('.system-message.error')) {
+             displaySystemMessage(`Could not connect to load messages.`, 'error', false);
+        }
+    }
+}
+
+    function applyPage(page, userWasNearBottom, oldScrollTop) {
+        if (page.reset) {
+            renderFullPage(page);
+        } else if (messageCursor !== null && page.cursor <= messageCursor) {
+            return; // An overlapping request already applied these changes
+        } else {
+            page.deleted.forEach(id => {
+                const el = messagesDiv.querySelector(`.message[data-message-id="${CSS.escape(id)}"]`);
+                if (el) el.remove();
+            });
+            page.messages.forEach(msg => {
+                if (!messagesDiv.querySelector(`.message[data-message-id="${CSS.escape(msg.id)}"]`)) addMessageToDOM(msg);
+            });
+        }
+        messageCursor = page.cursor;
+
+        // --- APPLY SCROLL POSITION ---
+        if (userWasNearBottom) {
+            messagesDiv.scrollTop = messagesDiv.scrollHeight; // Scroll to new bottom
+        } else {
+            // If user was scrolled up, try to restore their previous scroll position.
+            // This might not be perfect if the content height changed significantly,
+            // but it's better than always scrolling to top or bottom.
+            messagesDiv.scrollTop = oldScrollTop;
+        }
+        // --- END OF APPLY SCROLL POSITION ---
+    }
+
+    function renderFullPage(page) {
         // Preserve system messages (same as before)
         const systemMessagesToPreserve = [];
         messagesDiv.querySelectorAll('.system-message').forEach(sm => {
@@ -525,7 +601,7 @@ document.addEventListener('DOMContentLoaded', () => {
                 systemMessagesToPreserve.push(sm.cloneNode(true));
             }
         });
-        
+
         messagesDiv.innerHTML = ''; // Clear all previous messages
         systemMessagesToPreserve.forEach(sm => messagesDiv.appendChild(sm)); // Re-add preserved
 
@@ -536,38 +612,92 @@ document.addEventListener('DOMContentLoaded', () => {
         if (currentUsername && !hasJoinMessage) {
             displaySystemMessage(`You are in #${currentRoomNameSpan ? currentRoomNameSpan.textContent : currentRoomId} as ${currentUsername}.`, "info", false);
         }
-        
+
         // Render the fetched messages
-        if (messagesFromServer.length === 0) {
+        if (page.messages.length === 0) {
             if (messagesDiv.querySelectorAll('.message').length === 0 && messagesDiv.querySelectorAll('.system-message').length <= 1) {
                 displaySystemMessage(`No messages in #${currentRoomNameSpan ? currentRoomNameSpan.textContent : currentRoomId}. Send one!`);
             }
         } else {
-            messagesFromServer.forEach(msg => addMessageToDOM(msg)); // addMessageToDOM does NOT scroll for other users
+            page.messages.forEach(msg => addMessageToDOM(msg)); // addMessageToDOM does NOT scroll for other users
         }
+        oldestLoadedSeq = page.messages.length > 0 ? page.messages[0].seq : null;
+        hasOlderMessages = page.hasMore;
+    }
 
-        // --- APPLY SCROLL POSITION ---
-        if (userWasNearBottom) {
-            messagesDiv.scrollTop = messagesDiv.scrollHeight; // Scroll to new bottom
-        } else {
-            // If user was scrolled up, try to restore their previous scroll position.
-            // This might not be perfect if the content height changed significantly,
-            // but it's better than always scrolling to top or bottom.
-            messagesDiv.scrollTop = oldScrollTop;
+    // --- Lazy loading of older history when scrolled to the top ---
+    async function loadOlderMessages() {
+        if (loadingOlder || !hasOlderMessages || oldestLoadedSeq === null || !currentSessionToken) return;
+        loadingOlder = true;
+        const requestedRoomId = currentRoomId;
+        try {
+            const response = await fetch(MESSAGES_BEFORE_URL(requestedRoomId, oldestLoadedSeq, PAGE_SIZE), {
+                headers: { 'Authorization': 'Bearer ' + currentSessionToken }
+            });
+            if (!response.ok) throw new Error(`Status ${response.status}`);
+            const page = await response.json();
+            if (requestedRoomId !== currentRoomId) return;
+
+            const firstMessage = messagesDiv.querySelector('.message');
+            const previousHeight = messagesDiv.scrollHeight;
+            page.messages.forEach(msg => {
+                const el = addMessageToDOM(msg);
+                if (el && firstMessage) messagesDiv.insertBefore(el, firstMessage);
+            });
+            messagesDiv.scrollTop += messagesDiv.scrollHeight - previousHeight; // Keep the view anchored
+            if (page.messages.length > 0) oldestLoadedSeq = page.messages[0].seq;
+            hasOlderMessages = page.hasMore;
+        } catch (error) {
+            console.error('Error loading older messages:', error.message);
+        } finally {
+            loadingOlder = false;
         }
-        // --- END OF APPLY SCROLL POSITION ---
+    }
 
-    } catch (error) {
-        console.error('Error fetching messages:', error.message);
-        // Error already handled if it was a !response.ok, otherwise this is a network/JS error
-        if (currentUsername && chatSection && !chatSection.classList.contains('hidden') && !messagesDiv.querySelector('.system-message.error')) {
-             displaySystemMessage(`Could not connect to load messages.`, 'error', false);
-        }
+    function handleMessagesScroll() {
+        if (messagesDiv && messagesDiv.scrollTop < 40) loadOlderMessages();
     }
-}
 
-    function startMessagePolling() { if(pollingInterval)clearInterval(pollingInterval); pollingInterval=setInterval(fetchMessages,3000); console.log("Polling started for:",currentRoomId); }
-    function stopMessagePolling() { if(pollingInterval){clearInterval(pollingInterval);pollingInterval=null;console.log("Polling stopped.");}}
+    // --- Push delivery: a long-poll that the server answers as soon as the room changes ---
+    function startMessageSubscription() {
+        stopMessageSubscription();
+        subscriptionAbort = new AbortController();
+        runSubscription(subscriptionAbort.signal, currentRoomId);
+        console.log("Subscription started for:", currentRoomId);
+    }
+    function stopMessageSubscription() {
+        if (subscriptionAbort) { subscriptionAbort.abort(); subscriptionAbort = null; console.log("Subscription stopped."); }
+    }
+    async function runSubscription(signal, roomId) {
+        while (!signal.aborted && currentSessionToken && roomId === currentRoomId) {
+            if (messageCursor === null) {
+                await fetchMessages();
+                if (messageCursor === null) { await delay(RESUBSCRIBE_DELAY_MS); continue; }
+            }
+            try {
+                const response = await fetch(SUBSCRIBE_URL(roomId, messageCursor), {
+                    headers: { 'Authorization': 'Bearer ' + currentSessionToken },
+                    signal
+                });
+                if (response.status === 401) {
+                    handleLogout();
+                    displaySystemMessage("Your session is invalid. Please log in again.", "error", true);
+                    return;
+                }
+                if (!response.ok) { await delay(RESUBSCRIBE_DELAY_MS); continue; }
+                const scrollBuffer = 30;
+                const userWasNearBottom = (messagesDiv.scrollHeight - messagesDiv.clientHeight) <= (messagesDiv.scrollTop + scrollBuffer);
+                const page = await response.json();
+                if (signal.aborted || roomId !== currentRoomId) return;
+                applyPage(page, userWasNearBottom, messagesDiv.scrollTop);
+            } catch (error) {
+                if (signal.aborted) return;
+                console.error('Subscription error:', error.message);
+                await delay(RESUBSCRIBE_DELAY_MS);
+            }
+        }
+    }
+    function delay(ms) { return new Promise(resolve => setTimeout(resolve, ms)); }
     function generateAvatarColor(u){if(!u)return'#ccc';let h=0;for(let i=0;i<u.length;i++){h=u.charCodeAt(i)+((h<<5)-h);h=h&h;}const r=(h&0xFF0000)>>16;const g=(h&0x00FF00)>>8;const b=h&0x0000FF;return`hsl(${(h%360)},${60+(h%25)}%,${45+(h%10)}%)`;}
     
     // --- Initialize App ---
@@ -0,0 +1,264 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Two-node clusters on loopback, each node backed by a {@link Node} that
+ * only records what it is sent.
+ */
+public class ClusterTest {
+  private static final String[] KEYS = {
+      "chat.cluster.nodes", "chat.cluster.self", "chat.cluster.secret"};
+
+  private final List<Cluster> started = new ArrayList<>();
+
+  @After
+  public void stop() {
+    for (Cluster cluster : started) {
+      cluster.close();
+    }
+    for (String key : KEYS) {
+      System.clearProperty(key);
+    }
+  }
+
+  @Test
+  public void emptySecretIsRefused() throws IOException {
+    String self = freeNode();
+    System.setProperty("chat.cluster.nodes", self + "," + freeNode());
+    System.setProperty("chat.cluster.self", self);
+    try {
+      Cluster.fromConfig(new Node());
+      fail("Started without chat.cluster.secret");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("chat.cluster.secret"));
+    }
+  }
+
+  @Test
+  public void peersWithTheSameSecretShareStateAndChanges()
+      throws IOException {
+    String a = freeNode();
+    String b = freeNode();
+    Node nodeA = start(a, a + "," + b, "shared");
+    Node nodeB = start(b, a + "," + b, "shared");
+    // Each dialler sends its state first
+    await(() -> nodeB.received.contains("user alice@" + a));
+    await(() -> nodeA.received.contains("user alice@" + b));
+    assertEquals(1, nodeA.cluster.connectedPeers());
+    assertEquals(1, nodeB.cluster.connectedPeers());
+
+    nodeA.cluster.message("lobby", "m1", 7, "alice", "hello", 1L);
+    await(() -> nodeB.received.contains("message lobby 7 hello"));
+  }
+
+  @Test
+  public void writesAreForwardedToTheOwner() throws IOException {
+    String a = freeNode();
+    String b = freeNode();
+    Node nodeA = start(a, a + "," + b, "shared");
+    Node nodeB = start(b, a + "," + b, "shared");
+    await(() -> nodeA.cluster.connectedPeers() == 1
+        && nodeB.cluster.connectedPeers() == 1);
+    String room = "room";
+    for (int i = 0; !nodeB.cluster.owns(room); i++) {
+      room = "room-" + i;
+    }
+    assertFalse(nodeA.cluster.owns(room));
+    assertTrue(nodeA.cluster.canWrite(room));
+
+    List<MessageObject> appended = nodeA.cluster.append(
+        room, "bob", Collections.singletonList("hi"));
+    assertEquals(1, appended.size());
+    assertEquals(1, appended.get(0).seq);
+    assertEquals("hi", appended.get(0).text);
+    assertEquals(1, nodeB.lastSeq(room));
+    // append() returns once the owner's change has replicated back
+    assertEquals(1, nodeA.lastSeq(room));
+    assertEquals(1, nodeA.cluster.forwarded());
+  }
+
+  @Test
+  public void closedNodeDropsItsLinksAndPort() throws IOException {
+    String a = freeNode();
+    String b = freeNode();
+    Node nodeA = start(a, a + "," + b, "shared");
+    Node nodeB = start(b, a + "," + b, "shared");
+    await(() -> nodeA.cluster.connectedPeers() == 1
+        && nodeB.cluster.connectedPeers() == 1);
+    nodeB.cluster.close();
+    await(() -> nodeA.cluster.connectedPeers() == 0);
+    assertEquals(0, nodeB.cluster.connectedPeers());
+    await(() -> Thread.getAllStackTraces().keySet().stream()
+        .noneMatch(t -> t.getName().equals("cluster-link-" + a)));
+    // Free again, with nothing left listening or dialling
+    try (ServerSocket socket = new ServerSocket()) {
+      socket.setReuseAddress(true);
+      socket.bind(new InetSocketAddress("127.0.0.1", port(b)));
+    }
+  }
+
+  @Test
+  public void peerWithAnotherSecretIsRejected() throws Exception {
+    String a = freeNode();
+    String b = freeNode();
+    Node nodeA = start(a, a + "," + b, "shared");
+    Node nodeB = start(b, a + "," + b, "other");
+    // Long enough for both sides to dial, and to retry once
+    Thread.sleep(1_500);
+    assertEquals(0, nodeA.cluster.connectedPeers());
+    assertEquals(0, nodeB.cluster.connectedPeers());
+    assertTrue(nodeA.received.isEmpty());
+    assertTrue(nodeB.received.isEmpty());
+  }
+
+  @Test
+  public void oversizedHelloIsDroppedUnread() throws IOException {
+    String a = freeNode();
+    start(a, a + "," + freeNode(), "shared");
+    try (Socket socket = new Socket("127.0.0.1", port(a))) {
+      // Well under the handshake timeout, so only a refusal answers in time
+      socket.setSoTimeout(2_000);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeByte(1); // HELLO
+      out.writeInt(1 << 20);
+      out.flush();
+      assertEquals(-1, socket.getInputStream().read());
+    }
+  }
+
+  private Node start(String self, String nodes, String secret)
+      throws IOException {
+    System.setProperty("chat.cluster.nodes", nodes);
+    System.setProperty("chat.cluster.self", self);
+    System.setProperty("chat.cluster.secret", secret);
+    Node node = new Node();
+    node.cluster = Cluster.fromConfig(node);
+    started.add(node.cluster);
+    node.cluster.start();
+    return node;
+  }
+
+  private static String freeNode() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return "127.0.0.1:" + socket.getLocalPort();
+    }
+  }
+
+  private static int port(String node) {
+    return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+  }
+
+  private static void await(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + 5_000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline)
+        fail("Timed out");
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /**
+   * One node's chat state, reduced to each room's last seq, plus a log of
+   * what its peers replicated to it.
+   */
+  private static final class Node implements Cluster.Local {
+    final Map<String, Long> lastSeqs = new ConcurrentHashMap<>();
+    final Queue<String> received = new ConcurrentLinkedQueue<>();
+    Cluster cluster;
+
+    @Override
+    public void writeState(ChatJournal.Events out, Cluster cluster) {
+      out.user("alice@" + cluster.self, "salt", "hash");
+    }
+
+    @Override
+    public Cluster.Replica replica() {
+      return new Cluster.Replica() {
+        @Override
+        public void user(String username, String salt, String hashed) {
+          received.add("user " + username);
+        }
+
+        @Override
+        public void session(String token, String username,
+            long createdAtMillis, long lastSeenMillis) {}
+
+        @Override
+        public void sessionEnded(String token) {}
+
+        @Override
+        public void room(String roomId, String creator,
+            long createdAtMillis) {}
+
+        @Override
+        public void message(String roomId, String id, long seq,
+            String sender, String text, long createdAtMillis) {
+          lastSeqs.merge(roomId, seq, Math::max);
+          received.add("message " + roomId + " " + seq + " " + text);
+        }
+
+        @Override
+        public void deleted(String roomId, String messageId, long seq) {}
+
+        @Override
+        public void roomSeq(String roomId, long lastSeq) {}
+
+        @Override
+        public void applied() {}
+      };
+    }
+
+    @Override
+    public List<MessageObject> append(String roomId, String sender,
+        List<String> texts) {
+      List<MessageObject> appended = new ArrayList<>();
+      for (String text : texts) {
+        long seq = lastSeqs.merge(roomId, 1L, Long::sum);
+        MessageObject message = new MessageObject(UUID.randomUUID().toString(),
+            seq, sender, text, roomId, System.currentTimeMillis());
+        appended.add(message);
+        cluster.message(roomId, message.getId(), seq, sender, text,
+            message.createdAtMillis);
+      }
+      return appended;
+    }
+
+    @Override
+    public long delete(String roomId, String messageId, String sender) {
+      return -1;
+    }
+
+    @Override
+    public boolean createRoom(String roomId, String creator) {
+      return lastSeqs.putIfAbsent(roomId, 0L) == null;
+    }
+
+    @Override
+    public long lastSeq(String roomId) {
+      return lastSeqs.getOrDefault(roomId, -1L);
+    }
+  }
+}
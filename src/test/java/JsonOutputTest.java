@@ -0,0 +1,108 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/** Escaping and encoding, checked against getBytes and the request parser. */
+public class JsonOutputTest {
+  private static final String NASTY = "say \"hi\" \\ back/slash\b\f\n\r\t"
+      + "\u0000\u0001\u001f\u007f café € 😀 中文";
+
+  @Test
+  public void asciiIsWrittenAsIs() {
+    assertEquals("\"hello, world\"", text(new JsonOutput(0)
+        .string("hello, world")));
+  }
+
+  @Test
+  public void quotesBackslashesAndControlsAreEscaped() {
+    assertEquals("\"a\\\"b\\\\c\\b\\f\\n\\r\\t\\u0000\\u0001\\u001f\"",
+        text(new JsonOutput(0).string("a\"b\\c\b\f\n\r\t\u0000\u0001\u001f")));
+  }
+
+  @Test
+  public void nonAsciiIsEncodedAsGetBytesWould() {
+    String s = "café € 😀 中文 \u007f /";
+    byte[] expected = ("\"" + s + "\"").getBytes(StandardCharsets.UTF_8);
+    assertArrayEquals(expected, new JsonOutput(4).string(s).toByteArray());
+  }
+
+  @Test
+  public void loneSurrogatesBecomeQuestionMarks() {
+    for (String s : new String[] {"a\ud83db", "a\ude00b", "ab\ud83d"}) {
+      byte[] expected = ("\"" + s + "\"").getBytes(StandardCharsets.UTF_8);
+      assertArrayEquals(s, expected,
+          new JsonOutput(0).string(s).toByteArray());
+    }
+  }
+
+  @Test
+  public void documentsAreBuiltFromParts() {
+    JsonOutput out = new JsonOutput(0).raw("{\"n\":").number(-5)
+        .raw(",\"s\":").string("x").raw(",\"none\":").string(null).raw("}");
+    assertEquals("{\"n\":-5,\"s\":\"x\",\"none\":null}", text(out));
+    assertEquals(out.toByteArray().length, out.length());
+  }
+
+  @Test
+  public void bufferGrowsPastItsCapacity() {
+    char[] chars = new char[10_000];
+    Arrays.fill(chars, '\n');
+    String s = new String(chars);
+    JsonOutput out = new JsonOutput(16).string(s);
+    assertEquals(2 + 2 * s.length(), out.length());
+    assertEquals(s, parse(text(out)));
+  }
+
+  @Test
+  public void stringsReadBackAsWritten() {
+    String[] samples = {"", "plain", NASTY, "ééé", "\"\""};
+    for (String s : samples) {
+      assertEquals(s, parse(text(new JsonOutput(0).string(s))));
+    }
+  }
+
+  @Test
+  public void escapeLeavesPlainStringsAlone() {
+    String s = "nothing to see, café €";
+    assertSame(s, JsonOutput.escape(s));
+    assertNull(JsonOutput.escape(null));
+  }
+
+  @Test
+  public void escapeMatchesTheByteWriter() {
+    String escaped = JsonOutput.escape(NASTY);
+    assertEquals(text(new JsonOutput(0).string(NASTY)),
+        "\"" + escaped + "\"");
+    assertEquals(NASTY, parse("\"" + escaped + "\""));
+  }
+
+  @Test
+  public void escapeGrowsPastItsFirstGuess() {
+    char[] chars = new char[100];
+    Arrays.fill(chars, '\u0001');
+    String escaped = JsonOutput.escape(new String(chars));
+    assertEquals(600, escaped.length());
+    assertEquals(new String(chars), parse("\"" + escaped + "\""));
+  }
+
+  private static String text(JsonOutput out) {
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  // The one string in a JSON string literal, as requests decode it
+  private static String parse(String literal) {
+    byte[] bytes = ("{\"s\":" + literal + "}").getBytes(StandardCharsets.UTF_8);
+    List<String> values = new ArrayList<>();
+    RequestCodec.parseJson(bytes, 0, bytes.length,
+        (name, value) -> values.add(value));
+    assertEquals(1, values.size());
+    return values.get(0);
+  }
+}
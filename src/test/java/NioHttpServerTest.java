@@ -0,0 +1,370 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Wire-level behaviour of {@link NioHttpServer}, over plain sockets. */
+public class NioHttpServerTest {
+  private NioHttpServer server;
+  private ExecutorService executor;
+  private Socket socket;
+
+  @Before
+  public void start() throws IOException {
+    executor = Executors.newCachedThreadPool();
+    startServer();
+    socket = connect();
+  }
+
+  private void startServer() throws IOException {
+    server = NioHttpServer.open(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(executor);
+    // Answers with the method, query and request body
+    server.createContext("/echo", exchange -> {
+      byte[] body = readAll(exchange.getRequestBody());
+      String query = exchange.getRequestURI().getRawQuery();
+      byte[] reply = (exchange.getRequestMethod() + " " + query + " "
+          + new String(body, StandardCharsets.UTF_8))
+          .getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, reply.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(reply);
+      }
+    });
+    // Streams a body of unknown length in two writes
+    server.createContext("/stream", exchange -> {
+      exchange.sendResponseHeaders(200, 0);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes("hello "));
+        out.flush();
+        out.write(bytes("world"));
+      }
+    });
+    server.start();
+  }
+
+  // A server with lower limits, in place of the default one
+  private void restartWith(String key, long value) throws IOException {
+    socket.close();
+    server.stop(0);
+    System.setProperty(key, Long.toString(value));
+    try {
+      startServer();
+    } finally {
+      System.clearProperty(key);
+    }
+    socket = connect();
+  }
+
+  private Socket connect() throws IOException {
+    Socket s = new Socket("127.0.0.1", server.getAddress().getPort());
+    s.setSoTimeout(5_000);
+    return s;
+  }
+
+  @After
+  public void stop() throws IOException {
+    socket.close();
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void pipelinedRequestsAreAnsweredInOrder() throws IOException {
+    send("GET /echo?1 HTTP/1.1\r\nHost: x\r\n\r\n"
+        + "POST /echo?2 HTTP/1.1\r\nHost: x\r\nContent-Length: 3\r\n\r\nabc"
+        + "GET /echo?3 HTTP/1.1\r\nHost: x\r\n\r\n");
+    assertEquals("GET 1 ", read().body);
+    assertEquals("POST 2 abc", read().body);
+    assertEquals("GET 3 ", read().body);
+  }
+
+  @Test
+  public void expectContinueIsAnsweredBeforeTheBody() throws IOException {
+    send("POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n"
+        + "Expect: 100-continue\r\n\r\n");
+    Response interim = read();
+    assertEquals(100, interim.status);
+    assertEquals("", interim.body);
+    send("hello");
+    Response response = read();
+    assertEquals(200, response.status);
+    assertEquals("POST null hello", response.body);
+  }
+
+  @Test
+  public void expectContinueIsSkippedWhenTheBodyIsAlreadyHere()
+      throws IOException {
+    send("POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n"
+        + "Expect: 100-continue\r\n\r\nhello");
+    Response response = read();
+    assertEquals(200, response.status);
+    assertEquals("POST null hello", response.body);
+  }
+
+  @Test
+  public void transferEncodingIsRefused() throws IOException {
+    send("POST /echo HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n"
+        + "\r\n");
+    Response response = read();
+    assertEquals(411, response.status);
+    assertEquals("close", response.header("Connection"));
+    assertTrue(closed());
+  }
+
+  @Test
+  public void oversizedBodyIsRefusedBeforeItIsRead() throws IOException {
+    send("POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 2000000\r\n\r\n");
+    Response response = read();
+    assertEquals(413, response.status);
+    assertTrue(closed());
+  }
+
+  @Test
+  public void oversizedHeadIsRefused() throws IOException {
+    // Exactly one default read buffer, with no end of head in it
+    char[] filler = new char[16 * 1024];
+    Arrays.fill(filler, 'a');
+    String head = "GET /echo HTTP/1.1\r\nX-Filler: " + new String(filler);
+    send(head.substring(0, 16 * 1024));
+    Response response = read();
+    assertEquals(431, response.status);
+    assertTrue(closed());
+  }
+
+  @Test
+  public void bodyIsBufferedOnlyAsItArrives() throws IOException {
+    send("POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 1000000\r\n\r\n");
+    await(() -> server.connections() == 1);
+    assertEquals(0, server.bufferedBodyBytes());
+    send("0123456789");
+    await(() -> server.bufferedBodyBytes() > 0);
+    assertTrue(server.bufferedBodyBytes() < 100_000);
+    // A client that goes away gives back what its body held
+    socket.close();
+    await(() -> server.bufferedBodyBytes() == 0);
+  }
+
+  @Test
+  public void bodiesOverTheServerWideBudgetAreRefused() throws IOException {
+    restartWith("chat.nio.maxBufferedBodyBytes", 256 * 1024);
+    char[] part = new char[200 * 1024];
+    Arrays.fill(part, 'a');
+    send("POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 1000000\r\n\r\n"
+        + new String(part));
+    await(() -> server.bufferedBodyBytes() == 256 * 1024);
+    try (Socket other = connect()) {
+      other.getOutputStream().write(bytes("POST /echo HTTP/1.1\r\nHost: x\r\n"
+          + "Content-Length: 10\r\n\r\n0123456789"));
+      Socket first = socket;
+      socket = other;
+      try {
+        Response response = read();
+        assertEquals(503, response.status);
+        assertEquals("1", response.header("Retry-After"));
+      } finally {
+        socket = first;
+      }
+    }
+    socket.close();
+    await(() -> server.bufferedBodyBytes() == 0);
+  }
+
+  @Test
+  public void connectionsOverTheLimitAreRefused() throws IOException {
+    restartWith("chat.nio.maxConnections", 1);
+    await(() -> server.connections() == 1);
+    Socket first = socket;
+    socket = connect();
+    try {
+      assertEquals(503, read().status);
+      assertTrue(closed());
+    } finally {
+      socket.close();
+      socket = first;
+    }
+    send("GET /echo?still HTTP/1.1\r\nHost: x\r\n\r\n");
+    assertEquals("GET still ", read().body);
+  }
+
+  @Test
+  public void badRequestLineIsRefused() throws IOException {
+    send("GET\r\n\r\n");
+    assertEquals(400, read().status);
+  }
+
+  @Test
+  public void bodyOfUnknownLengthIsChunked() throws IOException {
+    send("GET /stream HTTP/1.1\r\nHost: x\r\n\r\n");
+    Response response = read();
+    assertEquals(200, response.status);
+    assertEquals("chunked", response.header("Transfer-Encoding"));
+    assertNull(response.header("Content-Length"));
+    assertEquals("hello world", response.body);
+    // The last chunk ends the body, so the connection carries on
+    send("GET /echo?next HTTP/1.1\r\nHost: x\r\n\r\n");
+    assertEquals("GET next ", read().body);
+  }
+
+  @Test
+  public void halfClosedClientStillGetsItsAnswers() throws IOException {
+    send("GET /echo?1 HTTP/1.1\r\nHost: x\r\n\r\n"
+        + "GET /echo?2 HTTP/1.1\r\nHost: x\r\n\r\n");
+    socket.shutdownOutput();
+    assertEquals("GET 1 ", read().body);
+    assertEquals("GET 2 ", read().body);
+    assertTrue(closed());
+  }
+
+  @Test
+  public void http10BodyOfUnknownLengthEndsWithTheConnection()
+      throws IOException {
+    send("GET /stream HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+    Response response = read();
+    assertEquals(200, response.status);
+    assertNull(response.header("Transfer-Encoding"));
+    assertNull(response.header("Content-Length"));
+    assertEquals("close", response.header("Connection"));
+    assertEquals("hello world", response.body);
+  }
+
+  @Test
+  public void http10KeepAliveIsHonouredAndAnnounced() throws IOException {
+    send("GET /echo?1 HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+    Response first = read();
+    assertEquals("keep-alive", first.header("Connection"));
+    assertEquals("GET 1 ", first.body);
+    send("GET /echo?2 HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+    assertEquals("GET 2 ", read().body);
+  }
+
+  @Test
+  public void http10ClosesByDefault() throws IOException {
+    send("GET /echo?1 HTTP/1.0\r\n\r\n");
+    Response response = read();
+    assertEquals("close", response.header("Connection"));
+    assertEquals("GET 1 ", response.body);
+    assertTrue(closed());
+  }
+
+  private static void await(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + 5_000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline)
+        fail("Timed out");
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  private void send(String request) throws IOException {
+    socket.getOutputStream().write(request.getBytes(StandardCharsets.UTF_8));
+    socket.getOutputStream().flush();
+  }
+
+  private boolean closed() throws IOException {
+    try {
+      return socket.getInputStream().read() < 0;
+    } catch (IOException e) {
+      return true; // Reset, which also means closed
+    }
+  }
+
+  /** Reads one response, framed the way its headers say. */
+  private Response read() throws IOException {
+    InputStream in = socket.getInputStream();
+    Response response = new Response();
+    String statusLine = line(in);
+    response.status = Integer.parseInt(statusLine.split(" ")[1]);
+    for (String line = line(in); !line.isEmpty(); line = line(in)) {
+      int colon = line.indexOf(':');
+      response.headers.put(line.substring(0, colon),
+          line.substring(colon + 1).trim());
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    String length = response.header("Content-Length");
+    if (response.status < 200) {
+      // Interim responses have no body
+    } else if ("chunked".equals(response.header("Transfer-Encoding"))) {
+      for (int size; (size = Integer.parseInt(line(in), 16)) > 0; ) {
+        body.write(exactly(in, size));
+        assertEquals("", line(in));
+      }
+      assertEquals("", line(in));
+    } else if (length != null) {
+      body.write(exactly(in, Integer.parseInt(length)));
+    } else {
+      body.write(readAll(in));
+    }
+    response.body = new String(body.toByteArray(), StandardCharsets.UTF_8);
+    return response;
+  }
+
+  private static String line(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (int b; (b = in.read()) != '\n'; ) {
+      if (b < 0)
+        throw new EOFException("Connection closed mid-line: " + line);
+      line.append((char) b);
+    }
+    assertFalse(line.length() == 0 || line.charAt(line.length() - 1) != '\r');
+    return line.substring(0, line.length() - 1);
+  }
+
+  private static byte[] exactly(InputStream in, int n) throws IOException {
+    byte[] bytes = new byte[n];
+    for (int read = 0; read < n; ) {
+      int count = in.read(bytes, read, n - read);
+      if (count < 0)
+        throw new EOFException("Expected " + n + " bytes, got " + read);
+      read += count;
+    }
+    return bytes;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int n; (n = in.read(buffer)) > 0; ) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static final class Response {
+    int status;
+    final Map<String, String> headers =
+        new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    String body;
+
+    String header(String name) {
+      return headers.get(name);
+    }
+  }
+}
@@ -0,0 +1,228 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Body decoding, alone and behind {@link RequestCodec#filter}. */
+public class RequestCodecTest {
+  private HttpServer server;
+
+  @Before
+  public void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    // Answers with the fields it was sent, one "name=value" per line
+    server.createContext("/fields", exchange -> {
+      StringBuilder fields = new StringBuilder();
+      RequestCodec.readFields(exchange, (name, value) ->
+          fields.append(name).append('=').append(value).append('\n'));
+      byte[] reply = fields.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, reply.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(reply);
+      }
+    }).getFilters().add(RequestCodec.filter());
+    server.start();
+  }
+
+  @After
+  public void stop() {
+    server.stop(0);
+  }
+
+  @Test
+  public void formFieldsAreDecoded() {
+    assertEquals(Arrays.asList("a=1", "b=two words", "c=\u20ac", "d=",
+            "e=x=y"),
+        form("a=1&b=two+words&c=%E2%82%AC&&d&e=x%3Dy"));
+  }
+
+  @Test
+  public void formDecodesAsUrlDecoderDoes() throws IOException {
+    String[] samples = {
+        "plain", "a+b", "%41%62", "%c3%a9t%C3%A9", "100%25", "%F0%9F%98%80",
+        "caf\u00e9", "%E2%82"};
+    for (String sample : samples) {
+      assertEquals(sample, Arrays.asList(
+              "k=" + URLDecoder.decode(sample, "UTF-8")),
+          form("k=" + sample));
+    }
+  }
+
+  @Test
+  public void badFormEscapesAreRefused() {
+    for (String body : new String[] {"a=%zz", "a=%4", "a=%", "%g1=b"}) {
+      try {
+        form(body);
+        fail("Accepted " + body);
+      } catch (IllegalArgumentException expected) {
+        // As URLDecoder would
+      }
+    }
+  }
+
+  @Test
+  public void jsonScalarsAreFields() {
+    assertEquals(Arrays.asList("room=general", "message=say \"hi\"\n",
+            "n=-1.5e3", "ok=true", "no=false"),
+        json("{\"room\":\"general\", \"message\":\"say \\\"hi\\\"\\n\","
+            + " \"n\":-1.5e3, \"ok\":true, \"no\":false, \"x\":null}"));
+  }
+
+  @Test
+  public void nestedJsonMembersAreFieldsInDocumentOrder() {
+    assertEquals(Arrays.asList("room=a", "message=1", "room=b", "message=2"),
+        json("[{\"room\":\"a\",\"message\":\"1\"},"
+            + " {\"room\":\"b\",\"message\":\"2\",\"tags\":[],\"meta\":{}}]"));
+  }
+
+  @Test
+  public void jsonEscapesDecodeToUtf8() {
+    assertEquals(Arrays.asList("s=/\\\b\f\r\t\u00e9\u20ac\ud83d\ude00"),
+        json("{\"s\":\"\\/\\\\\\b\\f\\r\\t\\u00e9\\u20AC\\ud83d\\ude00\"}"));
+    assertEquals(Arrays.asList("s=\ufffdx"), json("{\"s\":\"\\ud83dx\"}"));
+    assertEquals(Arrays.asList("s=caf\u00e9"),
+        json("{\"s\":\"caf\u00e9\"}"));
+  }
+
+  @Test
+  public void badJsonIsRefused() {
+    StringBuilder deep = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      deep.append('[');
+    }
+    String[] bodies = {
+        "{\"a\":1} x", "{\"a\":\"open", "{\"a\" 1}", "{a:1}", "{\"a\":1,}",
+        "[1 2]", "{\"a\":\"\\q\"}", "{\"a\":\"\\u12\"}", "nul", "",
+        deep.toString()};
+    for (String body : bodies) {
+      try {
+        json(body);
+        fail("Accepted " + body);
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains(" at byte "));
+      }
+    }
+  }
+
+  @Test
+  public void smallFormBodyIsRead() throws IOException {
+    assertEquals("room=general\nmessage=hi there\n",
+        post("application/x-www-form-urlencoded",
+            "room=general&message=hi+there", false));
+  }
+
+  @Test
+  public void bodiesLargerThanAPooledBufferAreRead() throws IOException {
+    char[] text = new char[30_000];
+    Arrays.fill(text, 'x');
+    String body = "{\"message\":\"" + new String(text) + "\"}";
+    String expected = "message=" + new String(text) + "\n";
+    assertEquals(expected, post("application/json", body, false));
+    assertEquals(expected, post("application/json", body, true));
+    // And the pooled buffers they may have used are clean for the next
+    assertEquals("a=b\n", post("application/json", "{\"a\":\"b\"}", true));
+  }
+
+  @Test
+  public void badBodyIsAnswered400() throws IOException {
+    HttpURLConnection connection = open("application/json", false, 5);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write("{\"a\":".getBytes(StandardCharsets.US_ASCII));
+    }
+    assertEquals(400, connection.getResponseCode());
+  }
+
+  @Test
+  public void bodyOverTheLimitIsAnswered413BeforeItIsRead()
+      throws IOException {
+    try (Socket socket = new Socket("127.0.0.1",
+        server.getAddress().getPort())) {
+      socket.setSoTimeout(5_000);
+      socket.getOutputStream().write(("POST /fields HTTP/1.1\r\nHost: x\r\n"
+          + "Content-Length: " + (RequestCodec.MAX_BODY_BYTES + 1)
+          + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      String statusLine = line(socket.getInputStream());
+      assertTrue(statusLine, statusLine.startsWith("HTTP/1.1 413 "));
+    }
+  }
+
+  private static List<String> form(String body) {
+    List<String> fields = new ArrayList<>();
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    RequestCodec.parseForm(bytes, 0, bytes.length,
+        (name, value) -> fields.add(name + "=" + value));
+    return fields;
+  }
+
+  private static List<String> json(String body) {
+    List<String> fields = new ArrayList<>();
+    // Offsets inside a larger buffer, as readFields passes them
+    byte[] bytes = ("##" + body + "##").getBytes(StandardCharsets.UTF_8);
+    RequestCodec.parseJson(bytes, 2, bytes.length - 2,
+        (name, value) -> fields.add(name + "=" + value));
+    return fields;
+  }
+
+  private String post(String type, String body, boolean chunked)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    HttpURLConnection connection = open(type, chunked, bytes.length);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(bytes);
+    }
+    assertEquals(200, connection.getResponseCode());
+    try (InputStream in = connection.getInputStream()) {
+      return new String(readAll(in), StandardCharsets.UTF_8);
+    }
+  }
+
+  private HttpURLConnection open(String type, boolean chunked, int length)
+      throws IOException {
+    URL url = new URL(
+        "http://127.0.0.1:" + server.getAddress().getPort() + "/fields");
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", type);
+    connection.setDoOutput(true);
+    if (chunked) {
+      connection.setChunkedStreamingMode(4096);
+    } else {
+      connection.setFixedLengthStreamingMode(length);
+    }
+    return connection;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int n; (n = in.read(buffer)) > 0; ) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static String line(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (int b; (b = in.read()) >= 0 && b != '\n'; ) {
+      line.append((char) b);
+    }
+    return line.toString().trim();
+  }
+}